@@ -0,0 +1,371 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The state of one aggregate function over all the groups of an
+ * aggregation. Groups are numbered 0, 1, ... in the order they are
+ * created, and their state is kept in primitive arrays indexed by group
+ * number, so merging a value neither boxes nor allocates. SUM and AVG add
+ * up longs, so they are exact as long as the sum fits in a long; a SUM
+ * that does not fit in the int result field is an error rather than
+ * wrapping around. The
+ * approximate aggregates keep a sketch per group instead, which partial
+ * aggregates combine by merging.
+ */
+abstract class Accumulator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default fraction of APPROX_PERCENTILE, the median */
+    static final double MEDIAN = 0.5;
+
+    /**
+     * @return a new accumulator for op, without groups; APPROX_PERCENTILE
+     *         estimates the median
+     * @throws IllegalArgumentException
+     *             if op is not supported
+     */
+    static Accumulator of(Aggregator.Op op) {
+        return of(op, MEDIAN);
+    }
+
+    /**
+     * @param percentile
+     *            the fraction in [0, 1] of APPROX_PERCENTILE, ignored by
+     *            other operators
+     * @return a new accumulator for op, without groups
+     * @throws IllegalArgumentException
+     *             if op is not supported, or percentile is out of range
+     */
+    static Accumulator of(Aggregator.Op op, double percentile) {
+        switch (op) {
+        case COUNT_DISTINCT:
+            return new CountDistinct();
+        case APPROX_COUNT_DISTINCT:
+            return new ApproxCountDistinct();
+        case APPROX_PERCENTILE:
+            if (!(percentile >= 0 && percentile <= 1))
+                throw new IllegalArgumentException("percentile " + percentile
+                        + " is not in [0, 1]");
+            return new ApproxPercentile(percentile);
+        case COUNT:
+            return new Count();
+        case SUM:
+            return new Sum();
+        case MIN:
+            return new Min();
+        case MAX:
+            return new Max();
+        case AVG:
+            return new Avg();
+        default:
+            throw new IllegalArgumentException("unsupported aggregate " + op);
+        }
+    }
+
+    /** @return true if op aggregates fields of any type, not only ints */
+    static boolean acceptsAnyType(Aggregator.Op op) {
+        return op == Aggregator.Op.COUNT || op == Aggregator.Op.COUNT_DISTINCT
+                || op == Aggregator.Op.APPROX_COUNT_DISTINCT;
+    }
+
+    /**
+     * @return true if partial aggregates of op over disjoint sets of tuples
+     *         can be combined (see {@link #combine}); distinct counts cannot
+     */
+    static boolean combinable(Aggregator.Op op) {
+        return op != Aggregator.Op.COUNT_DISTINCT;
+    }
+
+    /** The capacity to grow arrays to, to hold group g */
+    static int grow(int length, int g) {
+        return Math.max(g + 1, Math.max(16, length * 2));
+    }
+
+    /**
+     * Add group g, the next group number, with no values; or clear the
+     * values of group g, an existing group.
+     */
+    abstract void addGroup(int g);
+
+    /** Merge the value f into group g. */
+    abstract void merge(int g, Field f);
+
+    /**
+     * Merge group og of other, an accumulator of the same aggregate, into
+     * group g.
+     *
+     * @throws UnsupportedOperationException
+     *             if the aggregate is not {@link #combinable}
+     */
+    abstract void combine(int g, Accumulator other, int og);
+
+    /**
+     * @return the value of the aggregate of group g
+     * @throws IllegalStateException
+     *             if the value does not fit in an int field
+     */
+    abstract int result(int g);
+
+    /** @return the number of 8 byte values kept for every group */
+    abstract int slots();
+
+    static final class Count extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] count = new long[0];
+
+        void addGroup(int g) {
+            if (g >= count.length)
+                count = Arrays.copyOf(count, grow(count.length, g));
+            count[g] = 0;
+        }
+
+        void merge(int g, Field f) {
+            count[g]++;
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            count[g] += ((Count) other).count[og];
+        }
+
+        int result(int g) {
+            return (int) count[g];
+        }
+
+        int slots() {
+            return 1;
+        }
+    }
+
+    static final class Sum extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] sum = new long[0];
+
+        void addGroup(int g) {
+            if (g >= sum.length)
+                sum = Arrays.copyOf(sum, grow(sum.length, g));
+            sum[g] = 0;
+        }
+
+        void merge(int g, Field f) {
+            sum[g] += ((IntField) f).getValue();
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            sum[g] += ((Sum) other).sum[og];
+        }
+
+        int result(int g) {
+            if (sum[g] != (int) sum[g])
+                throw new IllegalStateException("SUM " + sum[g]
+                        + " does not fit in an int field");
+            return (int) sum[g];
+        }
+
+        int slots() {
+            return 1;
+        }
+    }
+
+    static final class Min extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private int[] min = new int[0];
+
+        void addGroup(int g) {
+            if (g >= min.length)
+                min = Arrays.copyOf(min, grow(min.length, g));
+            min[g] = Integer.MAX_VALUE;
+        }
+
+        void merge(int g, Field f) {
+            int v = ((IntField) f).getValue();
+            if (v < min[g])
+                min[g] = v;
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            int v = ((Min) other).min[og];
+            if (v < min[g])
+                min[g] = v;
+        }
+
+        int result(int g) {
+            return min[g];
+        }
+
+        int slots() {
+            return 1;
+        }
+    }
+
+    static final class Max extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private int[] max = new int[0];
+
+        void addGroup(int g) {
+            if (g >= max.length)
+                max = Arrays.copyOf(max, grow(max.length, g));
+            max[g] = Integer.MIN_VALUE;
+        }
+
+        void merge(int g, Field f) {
+            int v = ((IntField) f).getValue();
+            if (v > max[g])
+                max[g] = v;
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            int v = ((Max) other).max[og];
+            if (v > max[g])
+                max[g] = v;
+        }
+
+        int result(int g) {
+            return max[g];
+        }
+
+        int slots() {
+            return 1;
+        }
+    }
+
+    /** Keeps the exact sum and count; the average is their quotient. */
+    static final class Avg extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] sum = new long[0];
+        private long[] count = new long[0];
+
+        void addGroup(int g) {
+            if (g >= sum.length) {
+                sum = Arrays.copyOf(sum, grow(sum.length, g));
+                count = Arrays.copyOf(count, sum.length);
+            }
+            sum[g] = 0;
+            count[g] = 0;
+        }
+
+        void merge(int g, Field f) {
+            sum[g] += ((IntField) f).getValue();
+            count[g]++;
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            Avg o = (Avg) other;
+            sum[g] += o.sum[og];
+            count[g] += o.count[og];
+        }
+
+        int result(int g) {
+            // the average of ints is an int, however large their sum
+            return count[g] == 0 ? 0 : (int) (sum[g] / count[g]);
+        }
+
+        int slots() {
+            return 2;
+        }
+    }
+
+    /**
+     * Counts the distinct values of groups whose values are merged in
+     * sorted order, as Aggregate does by sorting its input: a value is new
+     * if it differs from the previous one. Counts of partial aggregates
+     * cannot be combined, as they may share values.
+     */
+    static final class CountDistinct extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] count = new long[0];
+        private Field[] last = new Field[0];
+
+        void addGroup(int g) {
+            if (g >= count.length) {
+                count = Arrays.copyOf(count, grow(count.length, g));
+                last = Arrays.copyOf(last, count.length);
+            }
+            count[g] = 0;
+            last[g] = null;
+        }
+
+        void merge(int g, Field f) {
+            if (last[g] == null || !last[g].equals(f)) {
+                count[g]++;
+                last[g] = f;
+            }
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            throw new UnsupportedOperationException(
+                    "distinct counts of partial aggregates cannot be combined");
+        }
+
+        int result(int g) {
+            return (int) count[g];
+        }
+
+        int slots() {
+            return 2;
+        }
+    }
+
+    static final class ApproxCountDistinct extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private HyperLogLog[] sketches = new HyperLogLog[0];
+
+        void addGroup(int g) {
+            if (g >= sketches.length)
+                sketches = Arrays.copyOf(sketches, grow(sketches.length, g));
+            sketches[g] = new HyperLogLog();
+        }
+
+        void merge(int g, Field f) {
+            sketches[g].add(f);
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            sketches[g].merge(((ApproxCountDistinct) other).sketches[og]);
+        }
+
+        int result(int g) {
+            return (int) Math.min(Integer.MAX_VALUE, sketches[g].estimate());
+        }
+
+        int slots() {
+            return (1 << HyperLogLog.DEFAULT_PRECISION) / 8;
+        }
+    }
+
+    static final class ApproxPercentile extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private final double percentile;
+        private QuantileSketch[] sketches = new QuantileSketch[0];
+
+        ApproxPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        void addGroup(int g) {
+            if (g >= sketches.length)
+                sketches = Arrays.copyOf(sketches, grow(sketches.length, g));
+            sketches[g] = new QuantileSketch();
+        }
+
+        void merge(int g, Field f) {
+            sketches[g].add(((IntField) f).getValue());
+        }
+
+        void combine(int g, Accumulator other, int og) {
+            sketches[g].merge(((ApproxPercentile) other).sketches[og]);
+        }
+
+        int result(int g) {
+            return sketches[g].size() == 0 ? 0
+                    : sketches[g].quantile(percentile);
+        }
+
+        int slots() {
+            // a sketch holds up to about 3k ints
+            return 3 * QuantileSketch.DEFAULT_K / 2;
+        }
+    }
+}
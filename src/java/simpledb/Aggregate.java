@@ -3,31 +3,49 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min) of one or more columns, grouped by zero or more columns, in a single
+ * pass over its child.
+ * <p>
+ * Groups are aggregated by a {@link SpillableAggregator}, so group-bys with
+ * more groups than fit in the memory budget of the operator (see
+ * {@link #setMemoryBudget}) spill them to disk.
+ * <p>
+ * When the child scans a large HeapFile, possibly through Filters, the
+ * table is aggregated in two phases instead (see
+ * {@link ParallelAggregation}): up to {@link #setParallelism} threads each
+ * aggregate a range of its pages, and their partial aggregates are merged.
+ * Group-bys whose partials would not fit in the memory budget are
+ * aggregated by a single thread.
+ * <p>
+ * Exact distinct counts (COUNT_DISTINCT) are computed by first sorting the
+ * child on the group-by fields and the counted field with an
+ * {@link ExternalSort}, which spills to disk within the memory budget, so
+ * every group only has to remember its last value. All the COUNT_DISTINCT
+ * aggregates of an operator must count the same field.
  *
  * SELECT avg(age) FROM customer
+ * SELECT a, b, sum(x), count(y) FROM t GROUP BY a, b
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
-    private boolean no_grouping;
     private OpIterator child;
-    private int fieldIndex;
-    private int groupFieldIndex;
-    private Aggregator.Op op;
-    private Aggregator aggregator;
+    private int[] fieldIndexes;
+    private int[] groupFieldIndexes;
+    private Aggregator.Op[] ops;
+    private double[] percentiles;
+    // the field counted by COUNT_DISTINCT aggregates, or -1 if there are none
+    private int distinctField = -1;
+    private TupleDesc td;
+    private SpillableAggregator aggregator;
     private OpIterator aggrIterator;
+    private long memoryBudget = SpillableAggregator.DEFAULT_MEMORY_BUDGET;
+    private int parallelism = ExternalSort.DEFAULT_PARALLELISM;
 
     /**
      * Constructor.
      * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
-     * 
      * @param child
      *            The OpIterator that is feeding us tuples.
      * @param afield
@@ -39,104 +57,292 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-	// some code goes here
-        if (gfield == Aggregator.NO_GROUPING)
-            no_grouping = true;
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                gfield == Aggregator.NO_GROUPING ? new int[0]
+                        : new int[] { gfield });
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns.
+     * 
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of every column in afields
+     * @param gfields
+     *            The columns over which we are grouping the result, empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, or an operator is not
+     *             supported on its column
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops,
+            int[] gfields) {
+        this(child, afields, aops, null, gfields);
+    }
+
+    /**
+     * Constructor for several aggregates, including percentiles, and
+     * group-by columns.
+     * 
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of every column in afields
+     * @param percentiles
+     *            The fraction in [0, 1] of every APPROX_PERCENTILE in aops,
+     *            ignored for other operators; null estimates medians
+     * @param gfields
+     *            The columns over which we are grouping the result, empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if afields, aops and percentiles differ in length, an
+     *             operator is not supported on its column, or COUNT_DISTINCT
+     *             counts more than one column
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops,
+            double[] percentiles, int[] gfields) {
+        if (afields.length != aops.length || afields.length == 0)
+            throw new IllegalArgumentException("need one operator for each of at least one aggregate");
+        if (percentiles != null && percentiles.length != aops.length)
+            throw new IllegalArgumentException("need one percentile for every aggregate");
         this.child = child;
-        fieldIndex = afield;
-        groupFieldIndex = gfield;
-        op = aop;
-
-        Type type = child.getTupleDesc().getFieldType(afield);
-        if (no_grouping) {
-            if (type == Type.INT_TYPE) {
-                aggregator = new IntegerAggregator(Aggregator.NO_GROUPING, null, afield, aop);
-            } else if (type == Type.STRING_TYPE) {
-                aggregator = new StringAggregator(Aggregator.NO_GROUPING, null, afield, aop);
-            }
-        } else {
-            Type gType = child.getTupleDesc().getFieldType(gfield);
-            if (type == Type.INT_TYPE) {
-                aggregator = new IntegerAggregator(gfield, gType, afield, aop);
-            } else if (type == Type.STRING_TYPE) {
-                aggregator = new StringAggregator(gfield, gType, afield, aop);
-            }
+        fieldIndexes = afields.clone();
+        groupFieldIndexes = gfields.clone();
+        ops = aops.clone();
+        this.percentiles = percentiles == null ? null : percentiles.clone();
+        for (int i = 0; i < aops.length; i++) {
+            if (aops[i] != Aggregator.Op.COUNT_DISTINCT)
+                continue;
+            if (distinctField != -1 && distinctField != afields[i])
+                throw new IllegalArgumentException("COUNT_DISTINCT of more than one column is not supported");
+            distinctField = afields[i];
+        }
+        // fails early on unsupported operators
+        newAggregator();
+
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = childTd.getFieldType(gfields[i]);
+            names[i] = childTd.getFieldName(gfields[i]);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            types[gfields.length + i] = Type.INT_TYPE;
+            names[gfields.length + i] = nameOfAggregatorOp(aops[i]) + "("
+                    + childTd.getFieldName(afields[i]) + ")";
         }
+        td = new TupleDesc(types, names);
+    }
+
+    private SpillableAggregator newAggregator() {
+        return new SpillableAggregator(groupFieldIndexes, groupFieldTypes(),
+                fieldIndexes, aggregateFieldTypes(), ops, percentiles,
+                memoryBudget);
+    }
+
+    private Type[] groupFieldTypes() {
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] gtypes = new Type[groupFieldIndexes.length];
+        for (int i = 0; i < gtypes.length; i++)
+            gtypes[i] = childTd.getFieldType(groupFieldIndexes[i]);
+        return gtypes;
+    }
+
+    private Type[] aggregateFieldTypes() {
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] atypes = new Type[fieldIndexes.length];
+        for (int i = 0; i < atypes.length; i++)
+            atypes[i] = childTd.getFieldType(fieldIndexes[i]);
+        return atypes;
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
-     *         {@link simpledb.Aggregator#NO_GROUPING}
+     * @return If this aggregate is accompanied by a groupby, return the
+     *         (first) groupby field index in the <b>INPUT</b> tuples. If not,
+     *         return {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	// some code goes here
-        if (no_grouping)
+        if (groupFieldIndexes.length == 0)
             return Aggregator.NO_GROUPING;
         else
-            return groupFieldIndex;
+            return groupFieldIndexes[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     *         of the groupby field in the <b>OUTPUT</b> tuples. If not, return
-     *         null;
+     *         of the (first) groupby field in the <b>OUTPUT</b> tuples. If
+     *         not, return null;
      * */
     public String groupFieldName() {
-	// some code goes here
-        if (no_grouping)
+        if (groupFieldIndexes.length == 0)
             return null;
         else
-            return child.getTupleDesc().getFieldName(groupFieldIndex);
+            return td.getFieldName(0);
+    }
+
+    /**
+     * @return the indexes of all groupby fields in the <b>INPUT</b> tuples,
+     *         empty if there is no grouping
+     */
+    public int[] groupFields() {
+        return groupFieldIndexes.clone();
     }
 
     /**
-     * @return the aggregate field
+     * @return the (first) aggregate field
      * */
     public int aggregateField() {
-	// some code goes here
-        return fieldIndex;
+        return fieldIndexes[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name in the <b>INPUT</b> tuples of the (first)
+     *         aggregate field
      * */
     public String aggregateFieldName() {
-	// some code goes here
-        return child.getTupleDesc().getFieldName(fieldIndex);
+        return child.getTupleDesc().getFieldName(fieldIndexes[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-	// some code goes here
-        return op;
+        return ops[0];
+    }
+
+    /**
+     * @return the indexes of all aggregate fields in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return fieldIndexes.clone();
+    }
+
+    /**
+     * @return the operator of every aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return ops.clone();
+    }
+
+    /**
+     * @return the fraction of every APPROX_PERCENTILE aggregate, null if
+     *         they estimate medians
+     */
+    public double[] aggregatePercentiles() {
+        return percentiles == null ? null : percentiles.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    /**
+     * Set the number of bytes the groups may use in memory; groups beyond
+     * it are spilled to temporary files. Takes effect the next time the
+     * operator is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Set the number of threads that may scan and aggregate the child; 1
+     * aggregates in the thread that opens the operator. Takes effect the
+     * next time the operator is opened.
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = threads;
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
         child.open();
         super.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+        aggregateChild();
+    }
+
+    /**
+     * Aggregate all the tuples of the child, which was just opened, so
+     * that fetchNext can return the groups.
+     */
+    protected void aggregateChild() throws DbException,
+            TransactionAbortedException {
+        if (aggrIterator != null)
+            aggrIterator.close();
+        if (aggregator != null)
+            aggregator.close();
+        aggregator = newAggregator();
+        if (distinctField != -1) {
+            aggregateSorted();
+            return;
+        }
+        HashAggregator merged = null;
+        ParallelAggregation parallel = parallelism > 1
+                ? ParallelAggregation.of(child) : null;
+        if (parallel != null && parallel.workers(parallelism) > 1)
+            merged = parallel.aggregate(groupFieldIndexes,
+                    groupFieldTypes(), fieldIndexes, aggregateFieldTypes(),
+                    ops, percentiles, parallelism, aggregator.maxGroups());
+        if (merged != null) {
+            aggrIterator = merged.iterator();
+        } else {
+            while (child.hasNext()) {
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
+            aggrIterator = aggregator.iterator();
+        }
+        aggrIterator.open();
+    }
+
+    /**
+     * Aggregate the child sorted on the group-by fields and then the field
+     * counted by COUNT_DISTINCT, so the values of every group reach the
+     * aggregator in order. Groups that spill keep their order, as their
+     * partitions are read back in the order they were written.
+     */
+    private void aggregateSorted() throws DbException,
+            TransactionAbortedException {
+        int[] fields = Arrays.copyOf(groupFieldIndexes,
+                groupFieldIndexes.length + 1);
+        fields[groupFieldIndexes.length] = distinctField;
+        boolean[] asc = new boolean[fields.length];
+        Arrays.fill(asc, true);
+        ExternalSort sort = new ExternalSort(child.getTupleDesc(),
+                new SortOrder(fields, asc), memoryBudget, parallelism);
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            sort.finish();
+            while (sort.hasNext())
+                aggregator.mergeTupleIntoGroup(sort.next());
+        } finally {
+            sort.close();
         }
         aggrIterator = aggregator.iterator();
         aggrIterator.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. Its first fields are the fields by which we are
+     * grouping, if any, followed by the result of every aggregate. Should
+     * return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
@@ -153,26 +359,23 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
-     * 
-     * The name of an aggregate column should be informative. For example:
-     * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
-     * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * Returns the TupleDesc of this Aggregate: the group by fields, with
+     * their names in the child, followed by one int field for every
+     * aggregate, named "aop(child_td.getFieldName(afield))".
      */
     public TupleDesc getTupleDesc() {
-	// some code goes here
-        return child.getTupleDesc();
+        return td;
     }
 
     public void close() {
 	// some code goes here
         super.close();
         child.close();
-        aggrIterator.close();
+        if (aggrIterator != null)
+            aggrIterator.close();
+        if (aggregator != null)
+            aggregator.close();
+        aggregator = null;
     }
 
     @Override
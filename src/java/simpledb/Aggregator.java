@@ -25,7 +25,23 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab7.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * COUNT_DISTINCT: the exact number of distinct values. The
+         * Aggregate operator sorts its input to compute it, so it spills to
+         * disk like any sort.
+         * */
+        COUNT_DISTINCT,
+        /**
+         * APPROX_COUNT_DISTINCT: the number of distinct values, estimated
+         * by a {@link HyperLogLog} sketch per group.
+         * */
+        APPROX_COUNT_DISTINCT,
+        /**
+         * APPROX_PERCENTILE: a percentile of int values, estimated by a
+         * {@link QuantileSketch} per group.
+         * */
+        APPROX_PERCENTILE;
 
         /**
          * Interface to access operations by a string containing an integer
@@ -63,6 +79,12 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==COUNT_DISTINCT)
+        		return "count_distinct";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
+        	if (this==APPROX_PERCENTILE)
+        		return "approx_percentile";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
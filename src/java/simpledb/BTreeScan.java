@@ -4,9 +4,11 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate. It can also be reopened with a different
+ * predicate through the {@link IndexOpIterator} interface, which is how
+ * {@link IndexNestedLoopJoin} probes it.
  */
-public class BTreeScan implements OpIterator {
+public class BTreeScan implements IndexOpIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -15,6 +17,7 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -74,6 +77,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
@@ -95,6 +99,21 @@ public class BTreeScan implements OpIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	/**
+	 * @return the index predicate this scan was created or last reopened with,
+	 *         or null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the BTreeFile this operator scans
+	 */
+	public BTreeFile getBTreeFile() {
+		return (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -144,4 +163,30 @@ public class BTreeScan implements OpIterator {
 		close();
 		open();
 	}
+
+	public void open(IndexPredicate ipred) throws NoSuchElementException,
+	DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		this.ipred = ipred;
+		it = getBTreeFile().indexIterator(tid, ipred);
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred) throws DbException,
+	TransactionAbortedException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		if (it instanceof BTreeSearchIterator) {
+			// lets the search iterator reuse the leaf it found for the last key
+			((BTreeSearchIterator) it).rewind(ipred);
+			this.ipred = ipred;
+		}
+		else {
+			close();
+			open(ipred);
+		}
+	}
 }
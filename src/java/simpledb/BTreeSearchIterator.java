@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File
+ */
+class BTreeSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	// the leaf page the last descent from the root ended on, kept so that
+	// successive probes for nearby keys can skip the descent
+	BTreePageId startp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page applicable
+	 * for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+		}
+		else {
+			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		}
+		startp = curp.getId();
+		it = curp.iterator();
+	}
+
+	/**
+	 * Restart this iterator with a new predicate. If the leaf page the previous
+	 * search started on is still the left-most page that can contain matches for
+	 * ipred, the scan restarts there instead of descending from the root again.
+	 * This makes repeated probes with nearby keys (e.g. from an index nested-loops
+	 * join over sorted or clustered input) cost a single page lookup.
+	 * 
+	 * @param ipred - the new predicate to filter on
+	 */
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		super.close();
+		boolean reuse = startp != null && canStartAt(startp, ipred);
+		this.ipred = ipred;
+		if(reuse) {
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, startp, Permissions.READ_ONLY);
+			it = curp.iterator();
+		}
+		else {
+			open();
+		}
+	}
+
+	/**
+	 * @return true if a search for ipred may start on the given leaf page, i.e.
+	 * no page to the left of it can hold a matching tuple
+	 */
+	private boolean canStartAt(BTreePageId pid, IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		Op op = ipred.getOp();
+		boolean seek = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ;
+		boolean wasSeek = this.ipred.getOp() == Op.EQUALS || this.ipred.getOp() == Op.GREATER_THAN
+				|| this.ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+		if(!seek) {
+			// range scans from the left end always start on the left-most leaf
+			return !wasSeek;
+		}
+		BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		Iterator<Tuple> first = p.iterator();
+		Iterator<Tuple> last = p.reverseIterator();
+		if(!first.hasNext()) {
+			return false;
+		}
+		Field lo = first.next().getField(f.keyField());
+		Field hi = last.next().getField(f.keyField());
+		// every page to the left only holds keys <= lo, so they can be skipped
+		// as long as the search key is strictly greater than lo
+		return ipred.getField().compare(Op.GREATER_THAN, lo)
+				&& ipred.getField().compare(Op.LESS_THAN_OR_EQ, hi);
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the next page by following the right sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+					// if the predicate was not satisfied and the operation is less than, we have
+					// hit the end
+					return null;
+				}
+				else if(ipred.getOp() == Op.EQUALS && 
+						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+					// if the tuple is now greater than the field passed in and the operation
+					// is equals, we have reached the end
+					return null;
+				}
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			// if there are no more pages to the right, end the iteration
+			if(nextp == null) {
+				return null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
@@ -216,13 +216,21 @@ public class BufferPool {
             lockAcquired = lockManager.acquireLock(pid, tid, lockType);
         }
 
-        if (pages.get(pid) != null)
-            return pages.get(pid);
-        else {
-            int tabId = pid.getTableId();
-            DbFile file =  Database.getCatalog().getDatabaseFile(tabId);
-            Page page = file.readPage(pid);
-
+        Page cached = pages.get(pid);
+        if (cached != null)
+            return cached;
+
+        int tabId = pid.getTableId();
+        DbFile file =  Database.getCatalog().getDatabaseFile(tabId);
+        Page page = file.readPage(pid);
+
+        // pages may be read by several threads at once (e.g. parallel scans),
+        // so the check for a full pool, the eviction and the insert must be
+        // atomic; the read itself is done outside the lock
+        synchronized (this) {
+            cached = pages.get(pid);
+            if (cached != null)
+                return cached;
             if (numPages == pages.size()) {
                 evictPage();
             }
@@ -288,6 +296,8 @@ public class BufferPool {
             if (holdsLock(tid, pid))
                 releasePage(tid, pid);
         }
+
+        TableStats.transactionComplete(tid, commit);
     }
 
     private synchronized void restorePages(TransactionId tid) {
@@ -330,6 +340,7 @@ public class BufferPool {
         // after inserted, tuple will get a record Id, then we can mark page dirty
         for (Page page: pageList)
             page.markDirty(true, tid);
+        TableStats.recordInsert(tid, tableId, t);
     }
 
     /**
@@ -358,6 +369,7 @@ public class BufferPool {
 
         for (Page page: pageList)
             page.markDirty(true, tid);
+        TableStats.recordDelete(tid, tableId, t);
     }
 
     /**
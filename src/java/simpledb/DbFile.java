@@ -59,6 +59,11 @@ public interface DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Returns the number of pages in this DbFile.
+     */
+    public int numPages();
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A histogram over an integer field whose buckets hold (about) the same
+ * number of values each, rather than covering ranges of the same width. Dense
+ * regions of the domain thus get narrow buckets and sparse ones wide
+ * buckets, so that the error of an estimate is bounded by the size of a
+ * bucket regardless of how skewed the field is.
+ * <p>
+ * Every bucket covers the closed range [lo, hi] between its smallest and
+ * largest value, and records the number of values and distinct values in it.
+ * Values are assumed to be spread uniformly within a bucket, and there are no
+ * values between buckets.
+ * <p>
+ * Equi-depth histograms are built by {@link IntHistogramBuilder#buildEquiDepth}.
+ */
+public class EquiDepthHistogram implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] lo;
+    private int[] hi;
+    private double[] counts;
+    private double[] distinct;
+    private double total;
+
+    /**
+     * Create a histogram from its buckets, which must be sorted and
+     * disjoint.
+     */
+    EquiDepthHistogram(int[] lo, int[] hi, double[] counts, double[] distinct) {
+        this.lo = lo;
+        this.hi = hi;
+        this.counts = counts;
+        this.distinct = distinct;
+        for (double c : counts)
+            total += c;
+    }
+
+    /** @return the number of buckets */
+    public int numBuckets() {
+        return lo.length;
+    }
+
+    /** @return the number of values in the histogram */
+    public double total() {
+        return total;
+    }
+
+    /** @return the smallest value of bucket b */
+    int bucketLo(int b) {
+        return lo[b];
+    }
+
+    /** @return the largest value of bucket b */
+    int bucketHi(int b) {
+        return hi[b];
+    }
+
+    /** @return the number of values in bucket b */
+    double bucketCount(int b) {
+        return counts[b];
+    }
+
+    /** @return the estimated number of distinct values in bucket b */
+    double bucketDistinct(int b) {
+        return distinct(b);
+    }
+
+    /**
+     * Estimate the number of values v of the histogram satisfying
+     * <tt>v op constant</tt>.
+     */
+    public double estimateCount(Predicate.Op op, int constant) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return countEq(constant);
+        case NOT_EQUALS:
+            return total - countEq(constant);
+        case LESS_THAN:
+            return countLt(constant);
+        case LESS_THAN_OR_EQ:
+            return countLt(constant) + countEq(constant);
+        case GREATER_THAN:
+            return total - countLt(constant) - countEq(constant);
+        case GREATER_THAN_OR_EQ:
+            return total - countLt(constant);
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Estimate the fraction of the values v of the histogram satisfying
+     * <tt>v op constant</tt>.
+     */
+    public double estimateSelectivity(Predicate.Op op, int constant) {
+        if (total <= 0)
+            return 0.0;
+        return Math.max(0.0, Math.min(1.0, estimateCount(op, constant) / total));
+    }
+
+    /**
+     * @return the average selectivity of an equality predicate on a value
+     *         of the histogram
+     */
+    public double avgSelectivity() {
+        if (total <= 0)
+            return 0.0;
+        double sum = 0;
+        for (int b = 0; b < lo.length; b++)
+            sum += counts[b] * counts[b] / distinct(b);
+        return sum / (total * total);
+    }
+
+    // index of the bucket containing v, or -1
+    private int bucketOf(int v) {
+        int b = floorBucket(v);
+        return b >= 0 && v <= hi[b] ? b : -1;
+    }
+
+    // index of the last bucket with lo <= v, or -1
+    private int floorBucket(int v) {
+        int b = Arrays.binarySearch(lo, v);
+        return b >= 0 ? b : -b - 2;
+    }
+
+    private double distinct(int b) {
+        return Math.max(1.0, distinct[b]);
+    }
+
+    private double countEq(int v) {
+        int b = bucketOf(v);
+        return b < 0 ? 0.0 : counts[b] / distinct(b);
+    }
+
+    private double countLt(int v) {
+        int b = floorBucket(v);
+        if (b < 0)
+            return 0.0;
+        double n = 0;
+        for (int i = 0; i < b; i++)
+            n += counts[i];
+        if (v > hi[b])
+            return n + counts[b];
+        // v is in bucket b: the values below it, except those equal to it
+        double width = (double) hi[b] - lo[b] + 1;
+        return n + counts[b] * ((double) v - lo[b]) / width;
+    }
+
+    /**
+     * Adjust the histogram after a tuple was inserted (delta > 0) or deleted
+     * (delta < 0). A value outside every bucket is counted in the nearest
+     * bucket below it (or the first bucket), which is widened to include it.
+     */
+    void adjustValue(int v, int delta) {
+        if (lo.length == 0) {
+            if (delta <= 0)
+                return;
+            lo = new int[] { v };
+            hi = new int[] { v };
+            counts = new double[] { 0 };
+            distinct = new double[] { 1 };
+        }
+        int b = Math.max(0, floorBucket(v));
+        if (delta > 0) {
+            lo[b] = Math.min(lo[b], v);
+            hi[b] = Math.max(hi[b], v);
+        }
+        double c = Math.max(0.0, counts[b] + delta);
+        total += c - counts[b];
+        counts[b] = c;
+    }
+
+    /**
+     * Multiply the number of values of every bucket by factor, e.g. to
+     * extrapolate the counts of a sample to the whole table.
+     */
+    void scale(double factor) {
+        for (int b = 0; b < counts.length; b++)
+            counts[b] *= factor;
+        total *= factor;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < lo.length; b++)
+            sb.append("[").append(lo[b]).append(",").append(hi[b]).append(":")
+                    .append(counts[b]).append("/").append(distinct[b]).append("] ");
+        return sb.toString();
+    }
+}
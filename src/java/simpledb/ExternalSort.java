@@ -0,0 +1,635 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ExternalSort sorts a stream of tuples using a bounded amount of memory.
+ * <p>
+ * Tuples are collected in memory until they would exceed the memory
+ * budget; the collected tuples are then sorted and written to a temporary
+ * file as a sorted run. Once all tuples were added, the runs are merged
+ * with a loser tree, reading one page of every run at a time. If there are
+ * more runs than pages in the budget, groups of runs are first merged into
+ * longer runs until a single merge suffices. Inputs that fit in the budget
+ * are sorted in memory and never written to disk.
+ * <p>
+ * Tuples are ordered by their normalized keys (see {@link SortOrder}),
+ * which are compared as byte strings: the first 8 bytes as a single long,
+ * the rest byte by byte. Runs are sorted in memory by MSD radix sort on the
+ * key bytes, falling back to comparisons for small buckets. The memory
+ * used by a tuple is estimated as its size on the heap (see
+ * {@link Tuple#estimateHeapSize}), plus the length of its key and a fixed
+ * overhead per entry. Tuples that compare equal are returned in the order
+ * they were added.
+ * <p>
+ * With a parallelism above one, large in-memory sorts are spread over a
+ * shared ForkJoinPool: every radix pass over a large range counts and
+ * scatters its entries in chunks, one task per chunk, and the resulting
+ * buckets are sorted as independent tasks. Merge passes over many runs
+ * merge their groups concurrently, with a fan-in reduced so that all the
+ * groups together still read no more pages at once than a sequential
+ * merge would. The final merge is sequential, as its tuples are returned
+ * one at a time.
+ */
+public class ExternalSort {
+
+    /** Default memory budget of a sort, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    /** Default number of threads a sort may use, one per core */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime()
+            .availableProcessors();
+    /** Ranges with fewer entries than this are sorted by a single thread */
+    static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    /**
+     * Estimated bytes of an Entry, the byte array header of its key and its
+     * slot in the entries array
+     */
+    static final int ENTRY_OVERHEAD = 56;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            DEFAULT_PARALLELISM);
+
+    private final TupleDesc td;
+    private final SortOrder order;
+    private final int tupleSize;
+    // estimated bytes in memory per entry, not counting its key
+    private final long entrySize;
+    private final long memoryBudget;
+    private final int fanIn;
+    private final int parallelism;
+
+    // the tuples held in memory, in entries[0..count)
+    private Entry[] entries = new Entry[16];
+    private int count = 0;
+    private long memoryUsed = 0;
+    private final ArrayList<File> runs = new ArrayList<File>();
+    private boolean finished = false;
+
+    // the tuples being returned: either the position in entries, or a merge
+    // of all runs
+    private int pos = 0;
+    private LoserTree merge = null;
+
+    /**
+     * Creates a sort using up to {@link #DEFAULT_PARALLELISM} threads.
+     *
+     * @param td
+     *            the schema of the tuples to sort
+     * @param order
+     *            the order to sort the tuples in
+     * @param memoryBudget
+     *            the number of bytes the sort may use to hold tuples
+     */
+    public ExternalSort(TupleDesc td, SortOrder order, long memoryBudget) {
+        this(td, order, memoryBudget, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param td
+     *            the schema of the tuples to sort
+     * @param order
+     *            the order to sort the tuples in
+     * @param memoryBudget
+     *            the number of bytes the sort may use to hold tuples
+     * @param parallelism
+     *            the number of threads the sort may use; 1 sorts in the
+     *            calling thread only
+     * @throws IllegalArgumentException
+     *             if parallelism < 1
+     */
+    public ExternalSort(TupleDesc td, SortOrder order, long memoryBudget,
+            int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        this.td = td;
+        this.order = order;
+        this.tupleSize = td.getSize();
+        this.entrySize = Tuple.estimateHeapSize(td) + ENTRY_OVERHEAD;
+        this.memoryBudget = memoryBudget;
+        this.fanIn = (int) Math.max(2,
+                Math.min(1024, memoryBudget / BufferPool.getPageSize()));
+    }
+
+    /**
+     * Add a tuple to the input of the sort.
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new IllegalStateException("sort already finished");
+        Entry e = new Entry(t.materialize(), order.encode(t));
+        if (count == entries.length)
+            entries = Arrays.copyOf(entries, count * 2);
+        entries[count++] = e;
+        memoryUsed += entrySize + e.key.length;
+        if (memoryUsed >= memoryBudget)
+            spill();
+    }
+
+    /**
+     * Sort the tuples added, and position the sort before the first tuple.
+     */
+    public void finish() throws DbException {
+        if (finished)
+            throw new IllegalStateException("sort already finished");
+        finished = true;
+        if (!runs.isEmpty()) {
+            if (count > 0)
+                spill();
+            entries = null;
+            // merge passes over consecutive groups, which keeps the runs
+            // in input order
+            while (runs.size() > fanIn) {
+                List<File> merged = parallelism > 1 ? mergePassParallel()
+                        : mergePass(fanIn);
+                runs.clear();
+                runs.addAll(merged);
+            }
+        } else {
+            sortEntries();
+        }
+        rewind();
+    }
+
+    /** @return true if there are sorted tuples left to return */
+    public boolean hasNext() throws DbException {
+        if (merge != null)
+            return merge.hasNext();
+        return pos < count;
+    }
+
+    /**
+     * @return the next tuple in sorted order
+     * @throws NoSuchElementException
+     *             if there are no more tuples
+     */
+    public Tuple next() throws DbException {
+        if (merge != null)
+            return merge.next();
+        if (pos >= count)
+            throw new NoSuchElementException();
+        return entries[pos++].t;
+    }
+
+    /**
+     * Position the sort before the first tuple again.
+     */
+    public void rewind() throws DbException {
+        if (!finished)
+            throw new IllegalStateException("sort not finished");
+        pos = 0;
+        if (merge != null)
+            merge.close();
+        merge = runs.isEmpty() ? null : new LoserTree(runs);
+    }
+
+    /** @return the number of sorted runs written to disk */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Release the memory and temporary files used by the sort.
+     */
+    public void close() {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        entries = null;
+        count = 0;
+        for (File f : runs)
+            f.delete();
+        runs.clear();
+    }
+
+    /** Sort the tuples in memory and write them as a new run. */
+    private void spill() throws DbException {
+        sortEntries();
+        File f = newRunFile();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(f),
+                            BufferPool.getPageSize()));
+            try {
+                for (int i = 0; i < count; i++)
+                    write(out, entries[i].t);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            f.delete();
+            throw new DbException("could not write sorted run: " + e);
+        }
+        runs.add(f);
+        Arrays.fill(entries, 0, count, null);
+        count = 0;
+        memoryUsed = 0;
+    }
+
+    /** The groups of runs merged by one pass with the given fan-in */
+    private List<List<File>> groups(int groupSize) {
+        ArrayList<List<File>> groups = new ArrayList<List<File>>();
+        for (int i = 0; i < runs.size(); i += groupSize)
+            groups.add(new ArrayList<File>(runs.subList(i,
+                    Math.min(runs.size(), i + groupSize))));
+        return groups;
+    }
+
+    private List<File> mergePass(int groupSize) throws DbException {
+        ArrayList<File> merged = new ArrayList<File>();
+        for (List<File> group : groups(groupSize))
+            merged.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+        return merged;
+    }
+
+    /**
+     * A merge pass whose groups are merged concurrently. Each of the
+     * parallelism groups merged at once gets its share of the fan-in.
+     */
+    private List<File> mergePassParallel() throws DbException {
+        ArrayList<Future<File>> tasks = new ArrayList<Future<File>>();
+        for (final List<File> group : groups(Math.max(2, fanIn / parallelism))) {
+            tasks.add(pool.submit(new Callable<File>() {
+                public File call() throws DbException {
+                    return group.size() == 1 ? group.get(0) : mergeRuns(group);
+                }
+            }));
+        }
+        ArrayList<File> merged = new ArrayList<File>();
+        DbException failure = null;
+        for (Future<File> task : tasks) {
+            try {
+                merged.add(task.get());
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof DbException
+                            ? (DbException) e.getCause()
+                            : new DbException("could not merge sorted runs: "
+                                    + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                    failure = new DbException("interrupted while merging sorted runs");
+            }
+        }
+        if (failure != null) {
+            // the runs of the failed groups are still listed in runs, and
+            // deleted by close()
+            runs.addAll(merged);
+            throw failure;
+        }
+        return merged;
+    }
+
+    /** Merge runs into a single new run, deleting them. */
+    private File mergeRuns(List<File> group) throws DbException {
+        File f = newRunFile();
+        LoserTree tree = new LoserTree(group);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(f),
+                            BufferPool.getPageSize()));
+            try {
+                while (tree.hasNext())
+                    write(out, tree.next());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            f.delete();
+            throw new DbException("could not merge sorted runs: " + e);
+        } finally {
+            tree.close();
+        }
+        for (File g : group)
+            g.delete();
+        return f;
+    }
+
+    /**
+     * @return a new temporary file for tuples written with
+     *         {@link #writeTuple}, deleted when the VM exits
+     */
+    static File newRunFile() throws DbException {
+        try {
+            File f = File.createTempFile("sort", ".run");
+            f.deleteOnExit();
+            return f;
+        } catch (IOException e) {
+            throw new DbException("could not create sorted run: " + e);
+        }
+    }
+
+    /** A tuple with its normalized key */
+    private static final class Entry {
+        final Tuple t;
+        final byte[] key;
+        final long prefix;
+
+        Entry(Tuple t, byte[] key) {
+            this.t = t;
+            this.key = key;
+            this.prefix = SortOrder.prefix(key);
+        }
+    }
+
+    private static int compare(Entry a, Entry b) {
+        if (a.prefix != b.prefix)
+            return Long.compareUnsigned(a.prefix, b.prefix);
+        return SortOrder.compareKeys(a.key, b.key, 8);
+    }
+
+    private static final Comparator<Entry> BY_KEY = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return ExternalSort.compare(a, b);
+        }
+    };
+
+    /** buckets with at most this many entries are sorted by comparisons */
+    private static final int RADIX_CUTOFF = 32;
+
+    private void sortEntries() {
+        if (parallelism > 1 && count >= PARALLEL_THRESHOLD)
+            pool.invoke(new RadixTask(entries, new Entry[count], 0, count, 0,
+                    parallelism));
+        else if (count > RADIX_CUTOFF)
+            radixSort(entries, new Entry[count], 0, count, 0);
+        else
+            Arrays.sort(entries, 0, count, BY_KEY);
+    }
+
+    /**
+     * Stable MSD radix sort of a[lo..hi), whose keys are equal before byte
+     * d. Keys that end before byte d + 1 come first. aux[lo..hi) is used as
+     * scratch space.
+     */
+    private static void radixSort(Entry[] a, Entry[] aux, int lo, int hi,
+            int d) {
+        if (hi - lo <= RADIX_CUTOFF) {
+            // Arrays.sort is a stable merge sort on objects
+            Arrays.sort(a, lo, hi, BY_KEY);
+            return;
+        }
+        // bucket 0 holds the keys that ended, bucket b + 1 those whose byte
+        // d is b
+        int[] start = new int[258];
+        for (int i = lo; i < hi; i++)
+            start[bucket(a[i].key, d) + 1]++;
+        for (int b = 0; b < 257; b++)
+            start[b + 1] += start[b];
+        for (int i = lo; i < hi; i++)
+            aux[lo + start[bucket(a[i].key, d)]++] = a[i];
+        System.arraycopy(aux, lo, a, lo, hi - lo);
+        // start[b] is now the end of bucket b
+        for (int b = 1; b < 257; b++) {
+            if (start[b] - start[b - 1] > 1)
+                radixSort(a, aux, lo + start[b - 1], lo + start[b], d + 1);
+        }
+    }
+
+    /**
+     * A parallel version of {@link #radixSort}. A large range is split into
+     * chunks which are counted and scattered concurrently; chunk c writes
+     * its entries of bucket b after those of chunks 0..c-1, so the sort
+     * stays stable. The buckets are then sorted by subtasks, and ranges
+     * below {@link #PARALLEL_THRESHOLD} sequentially.
+     */
+    private static final class RadixTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry[] a, aux;
+        private final int lo, hi, d, chunks;
+
+        RadixTask(Entry[] a, Entry[] aux, int lo, int hi, int d, int chunks) {
+            this.a = a;
+            this.aux = aux;
+            this.lo = lo;
+            this.hi = hi;
+            this.d = d;
+            this.chunks = chunks;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo < PARALLEL_THRESHOLD) {
+                radixSort(a, aux, lo, hi, d);
+                return;
+            }
+            final int n = chunks;
+            final int[] from = new int[n + 1];
+            for (int c = 0; c <= n; c++)
+                from[c] = lo + (int) ((long) (hi - lo) * c / n);
+            final int[][] pos = new int[n][257];
+
+            ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (int c = 0; c < n; c++) {
+                final int chunk = c;
+                tasks.add(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    protected void compute() {
+                        int[] count = pos[chunk];
+                        for (int i = from[chunk]; i < from[chunk + 1]; i++)
+                            count[bucket(a[i].key, d)]++;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            // turn the counts into the position of every chunk's part of
+            // every bucket, and remember where the buckets end
+            int[] end = new int[257];
+            int next = lo;
+            for (int b = 0; b < 257; b++) {
+                for (int c = 0; c < n; c++) {
+                    int count = pos[c][b];
+                    pos[c][b] = next;
+                    next += count;
+                }
+                end[b] = next;
+            }
+
+            tasks.clear();
+            for (int c = 0; c < n; c++) {
+                final int chunk = c;
+                tasks.add(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    protected void compute() {
+                        int[] p = pos[chunk];
+                        for (int i = from[chunk]; i < from[chunk + 1]; i++)
+                            aux[p[bucket(a[i].key, d)]++] = a[i];
+                    }
+                });
+            }
+            invokeAll(tasks);
+            System.arraycopy(aux, lo, a, lo, hi - lo);
+
+            ArrayList<RadixTask> buckets = new ArrayList<RadixTask>();
+            for (int b = 1; b < 257; b++) {
+                if (end[b] - end[b - 1] > 1)
+                    buckets.add(new RadixTask(a, aux, end[b - 1], end[b],
+                            d + 1, chunks));
+            }
+            invokeAll(buckets);
+        }
+    }
+
+    private static int bucket(byte[] key, int d) {
+        return d < key.length ? (key[d] & 0xFF) + 1 : 0;
+    }
+
+    private void write(DataOutputStream out, Tuple t) throws IOException {
+        writeTuple(out, t, td);
+    }
+
+    /**
+     * Write the fields of a tuple in their fixed-size page format, as runs
+     * are written.
+     */
+    static void writeTuple(DataOutputStream out, Tuple t, TupleDesc td)
+            throws IOException {
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+    }
+
+    /**
+     * Read a tuple written by {@link #writeTuple}.
+     *
+     * @param buf
+     *            a buffer of td.getSize() bytes
+     * @return the tuple, or null at the end of the input
+     */
+    static Tuple readTuple(DataInputStream in, TupleDesc td, byte[] buf)
+            throws DbException {
+        try {
+            in.readFully(buf);
+        } catch (EOFException e) {
+            return null;
+        } catch (IOException e) {
+            throw new DbException("could not read sorted run: " + e);
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(dis));
+        } catch (java.text.ParseException e) {
+            throw new DbException("corrupt sorted run");
+        }
+        return t;
+    }
+
+    /**
+     * Reads the tuples of a run one at a time.
+     */
+    private class RunReader {
+        private final DataInputStream in;
+        private final byte[] buf = new byte[tupleSize];
+        Entry current;
+
+        RunReader(File f) throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(f), BufferPool.getPageSize()));
+            } catch (FileNotFoundException e) {
+                throw new DbException("sorted run disappeared: " + e);
+            }
+            advance();
+        }
+
+        /** Read the next tuple of the run into current, or null at its end. */
+        void advance() throws DbException {
+            Tuple t = readTuple(in, td, buf);
+            current = t == null ? null : new Entry(t, order.encode(t));
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Merges sorted runs with a tree of losers. The leaves are the current
+     * tuples of the runs; every internal node holds the run that lost the
+     * comparison there, and tree[0] the overall winner, so taking the
+     * smallest tuple only replays the comparisons on the path from its run
+     * to the root: log2(k) comparisons for k runs.
+     */
+    private class LoserTree {
+        private final RunReader[] readers;
+        private final int[] tree;
+        private final int k;
+
+        LoserTree(List<File> files) throws DbException {
+            k = files.size();
+            readers = new RunReader[k];
+            try {
+                for (int i = 0; i < k; i++)
+                    readers[i] = new RunReader(files.get(i));
+            } catch (DbException e) {
+                close();
+                throw e;
+            }
+            // start with a virtual run k that beats every other run, then
+            // let each run play its way up
+            tree = new int[k];
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        /**
+         * Return true if the current tuple of run a comes before that of
+         * run b. Exhausted runs come last; ties go to the earlier run.
+         */
+        private boolean beats(int a, int b) {
+            if (a == k || b == k)
+                return a == k;
+            Entry ta = readers[a].current;
+            Entry tb = readers[b].current;
+            if (ta == null || tb == null)
+                return tb == null && (ta != null || a < b);
+            int c = ExternalSort.compare(ta, tb);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Replay the matches from the leaf of run s to the root. */
+        private void adjust(int s) {
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], s)) {
+                    int winner = tree[t];
+                    tree[t] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+
+        boolean hasNext() {
+            return readers[tree[0]].current != null;
+        }
+
+        Tuple next() throws DbException {
+            int w = tree[0];
+            Entry e = readers[w].current;
+            if (e == null)
+                throw new NoSuchElementException();
+            readers[w].advance();
+            adjust(w);
+            return e.t;
+        }
+
+        void close() {
+            for (RunReader r : readers)
+                if (r != null)
+                    r.close();
+        }
+    }
+}
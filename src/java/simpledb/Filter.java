@@ -12,6 +12,8 @@ public class Filter extends Operator {
     private static final long serialVersionUID = 1L;
     private Predicate predicate;
     private OpIterator child;
+    private RuntimeFilter runtimeFilter = null;
+    private int runtimeFilterField;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -33,6 +35,26 @@ public class Filter extends Operator {
         return predicate;
     }
 
+    /**
+     * Additionally drop tuples whose value of field is not contained in
+     * filter.
+     *
+     * @param field
+     *            the index of the field to test
+     * @param filter
+     *            the filter to apply, or null to remove the current one
+     * @see RuntimeFilter#pushDown
+     */
+    public void setRuntimeFilter(int field, RuntimeFilter filter) {
+        this.runtimeFilterField = field;
+        this.runtimeFilter = filter;
+    }
+
+    /** @return true if a runtime filter is set */
+    boolean hasRuntimeFilter() {
+        return runtimeFilter != null;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return child.getTupleDesc();
@@ -70,6 +92,9 @@ public class Filter extends Operator {
         // some code goes here
         while (child.hasNext()) {
             Tuple t = child.next();
+            if (runtimeFilter != null
+                    && !runtimeFilter.mightContain(t.getField(runtimeFilterField)))
+                continue;
             if (predicate.filter(t))
                 return t;
         }
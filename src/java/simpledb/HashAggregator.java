@@ -0,0 +1,228 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Computes a list of aggregates over groups of zero or more fields in a
+ * single pass, holding all groups in memory.
+ * <p>
+ * Groups are numbered in the order they are first seen, and found by
+ * their key: the group-by value itself when grouping by a single field,
+ * the list of group-by values otherwise. Every aggregate keeps the state of
+ * all groups in an {@link Accumulator}, in arrays indexed by group
+ * number. COUNT and the distinct counts are defined on fields of any type,
+ * the other aggregates only on int fields.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final List<Field> NO_KEY = Collections.emptyList();
+
+    private final int[] gbfields;
+    private final Type[] gbtypes;
+    private final int[] afields;
+    private final Op[] ops;
+    private final Accumulator[] accumulators;
+
+    private final HashMap<Object, Integer> groupIds = new HashMap<Object, Integer>();
+    // the key of every group, by group number
+    private final ArrayList<Object> keys = new ArrayList<Object>();
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuples,
+     *            empty if there is no grouping
+     * @param gbtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuples
+     * @param atypes
+     *            the types of the aggregated fields
+     * @param ops
+     *            the aggregation operator of every aggregated field
+     * @throws IllegalArgumentException
+     *             if an operator is not supported on its field
+     */
+    public HashAggregator(int[] gbfields, Type[] gbtypes, int[] afields,
+            Type[] atypes, Op[] ops) {
+        this(gbfields, gbtypes, afields, atypes, ops, null);
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuples,
+     *            empty if there is no grouping
+     * @param gbtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuples
+     * @param atypes
+     *            the types of the aggregated fields
+     * @param ops
+     *            the aggregation operator of every aggregated field
+     * @param percentiles
+     *            the fraction in [0, 1] of every APPROX_PERCENTILE
+     *            aggregate, ignored for other operators; null estimates
+     *            medians
+     * @throws IllegalArgumentException
+     *             if an operator is not supported on its field
+     */
+    public HashAggregator(int[] gbfields, Type[] gbtypes, int[] afields,
+            Type[] atypes, Op[] ops, double[] percentiles) {
+        if (gbfields.length != gbtypes.length || afields.length != atypes.length
+                || afields.length != ops.length
+                || (percentiles != null && percentiles.length != ops.length))
+            throw new IllegalArgumentException("need one type for every field and one operator for every aggregate");
+        this.gbfields = gbfields.clone();
+        this.gbtypes = gbtypes.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        accumulators = new Accumulator[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            if (!Accumulator.acceptsAnyType(ops[i]) && atypes[i] != Type.INT_TYPE)
+                throw new IllegalArgumentException(ops[i]
+                        + " is only supported on int fields");
+            accumulators[i] = percentiles == null ? Accumulator.of(ops[i])
+                    : Accumulator.of(ops[i], percentiles[i]);
+        }
+    }
+
+    /**
+     * @return the key of the group of tup: a Field when grouping by one
+     *         field, a List of Fields otherwise
+     */
+    Object keyOf(Tuple tup) {
+        if (gbfields.length == 1)
+            return tup.getField(gbfields[0]);
+        if (gbfields.length == 0)
+            return NO_KEY;
+        Field[] key = new Field[gbfields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = tup.getField(gbfields[i]);
+        return Arrays.asList(key);
+    }
+
+    /** @return the number of groups aggregated so far */
+    int numGroups() {
+        return keys.size();
+    }
+
+    /** @return the number of accumulator values kept for every group */
+    int numSlots() {
+        int n = 0;
+        for (Accumulator a : accumulators)
+            n += a.slots();
+        return n;
+    }
+
+    /** @return true if the group with the given key was already aggregated */
+    boolean hasGroup(Object key) {
+        return groupIds.containsKey(key);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, creating the
+     * group if it is new.
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        mergeTupleIntoGroup(keyOf(tup), tup);
+    }
+
+    /** Merge tup into the group with the given key, its group */
+    void mergeTupleIntoGroup(Object key, Tuple tup) {
+        int g = groupOf(key);
+        for (int i = 0; i < accumulators.length; i++)
+            accumulators[i].merge(g, tup.getField(afields[i]));
+    }
+
+    /**
+     * @return true if every aggregate can be combined with that of another
+     *         partial aggregation (see {@link #merge})
+     */
+    boolean combinable() {
+        for (Op op : ops)
+            if (!Accumulator.combinable(op))
+                return false;
+        return true;
+    }
+
+    /**
+     * Merge the groups of other, a partial aggregation of other tuples with
+     * the same group-by fields and aggregates, into this one. Groups new to
+     * this aggregation are added after its own, in the order of other.
+     *
+     * @throws IllegalStateException
+     *             if the aggregates are not {@link #combinable}
+     */
+    void merge(HashAggregator other) {
+        if (!combinable())
+            throw new IllegalStateException(
+                    "partial aggregates of " + Arrays.toString(ops)
+                            + " cannot be merged");
+        for (int og = 0; og < other.keys.size(); og++) {
+            int g = groupOf(other.keys.get(og));
+            for (int i = 0; i < accumulators.length; i++)
+                accumulators[i].combine(g, other.accumulators[i], og);
+        }
+    }
+
+    /** @return the number of the group with the given key, adding it if new */
+    private int groupOf(Object key) {
+        Integer id = groupIds.get(key);
+        if (id != null)
+            return id;
+        int g = keys.size();
+        groupIds.put(key, g);
+        keys.add(key);
+        for (Accumulator a : accumulators)
+            a.addGroup(g);
+        return g;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples hold the group-by values followed
+     *         by the value of every aggregate, in the order the groups were
+     *         first seen. Without grouping, there is a single tuple, whose
+     *         aggregates are 0 if there was no input.
+     */
+    public OpIterator iterator() {
+        int ng = gbfields.length;
+        Type[] types = new Type[ng + ops.length];
+        for (int i = 0; i < ng; i++)
+            types[i] = gbtypes[i];
+        for (int i = 0; i < ops.length; i++)
+            types[ng + i] = Type.INT_TYPE;
+        TupleDesc td = new TupleDesc(types);
+
+        final ArrayList<Tuple> list = new ArrayList<Tuple>();
+        if (ng == 0 && keys.isEmpty()) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < ops.length; i++)
+                t.setField(i, new IntField(0));
+            list.add(t);
+        }
+        for (int g = 0; g < keys.size(); g++) {
+            Tuple t = new Tuple(td);
+            Object key = keys.get(g);
+            if (ng == 1) {
+                t.setField(0, (Field) key);
+            } else {
+                @SuppressWarnings("unchecked")
+                List<Field> fields = (List<Field>) key;
+                for (int i = 0; i < ng; i++)
+                    t.setField(i, fields.get(i));
+            }
+            for (int i = 0; i < ops.length; i++)
+                t.setField(ng + i, new IntField(accumulators[i].result(g)));
+            list.add(t);
+        }
+        return new TupleIterator(td, list);
+    }
+}
@@ -65,8 +65,13 @@ public class HashEquiJoin extends Operator {
             }
             list.add(t1);
             if (cnt++ == MAP_SIZE)
-                return true;
+                break;
         }
+        // let the probe side skip tuples that cannot match this chunk
+        ArrayList<Field> keys = new ArrayList<Field>(map.size());
+        for (Object key : map.keySet())
+            keys.add((Field) key);
+        RuntimeFilter.pushDown(child2, pred.getField2(), new RuntimeFilter(keys));
         return cnt > 0;
 
     }
@@ -81,6 +86,7 @@ public class HashEquiJoin extends Operator {
 
     public void close() {
         super.close();
+        RuntimeFilter.pushDown(child2, pred.getField2(), null);
         child2.close();
         child1.close();
         this.t1=null;
@@ -116,17 +122,7 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
         t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        return new JoinedTuple(comboTD, t1, t2);
 
     }
 
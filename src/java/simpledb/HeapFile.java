@@ -1,6 +1,5 @@
 package simpledb;
 
-import javafx.geometry.HPos;
 
 import java.io.*;
 import java.util.*;
@@ -272,7 +272,7 @@ public class HeapPage implements Page {
         PageId pageId = rid.getPageId();
         int index = rid.getTupleNumber();
 
-        if (pageId != pid || !isSlotUsed(index))
+        if (!pid.equals(pageId) || !isSlotUsed(index))
             throw new DbException("failed to delete tuple");
         markSlotUsed(index, false);
     }
@@ -373,36 +373,12 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
+        // the highest byte of the header may have bits that do not
+        // correspond to slots, so only look at the bits of actual slots
         int cnt = 0;
-
-        byte b = 1;
-
-        for (int i = 0; i < header.length; i++) {
-            byte bt = header[i];
-
-            // TODO note: the highest byte may have bits not correspond to slots
-            if (i == header.length -1)
-                for (int j = 0; j < getNumTuples() % 8; j++)
-                    if ((bt & (b << j)) == 0)
-                        cnt++;
-
-            if ((bt & b ) == 0)
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i))
                 cnt++;
-            if ((bt & (b << 1)) == 0)
-                cnt++;
-            if ((bt & (b << 2)) == 0)
-                cnt++;
-            if ((bt & (b << 3)) == 0)
-                cnt++;
-            if ((bt & (b << 4)) == 0)
-                cnt++;
-            if ((bt & (b << 5)) == 0)
-                cnt++;
-            if ((bt & (b << 6)) == 0)
-                cnt++;
-            if ((bt & (b << 7)) == 0)
-                cnt++;
-        }
         return cnt;
     }
 
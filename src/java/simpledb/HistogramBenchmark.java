@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Compares the selectivity estimates of fixed-width histograms
+ * ({@link IntHistogram}) with those of {@link TableStats} (most common values
+ * plus an equi-depth histogram) on a Zipf-distributed column, and the cost of
+ * the join plans the optimizer picks with each.
+ * <p>
+ * The schema is orders(cust, amount), customers(id, region) and regions(id,
+ * size), where orders.cust follows a Zipf distribution over the customers.
+ * Customers are stored in a BTreeFile keyed on id, so the optimizer probes
+ * their index for each order that passes the filter on orders.cust if it
+ * estimates that few do, and hash joins otherwise: underestimating a hot
+ * customer picks thousands of index probes over one scan.
+ * <p>
+ * Usage: java simpledb.HistogramBenchmark [rows] [zipf exponent]
+ */
+public class HistogramBenchmark {
+
+    static final int CUSTOMERS = 100000;
+    static final int REGIONS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        double exponent = args.length > 1 ? Double.parseDouble(args[1]) : 1.1;
+        Random r = new Random(42);
+
+        // customer ids are permuted so that hot customers are spread out
+        int[] rank = new int[CUSTOMERS];
+        for (int i = 0; i < CUSTOMERS; i++)
+            rank[i] = i;
+        for (int i = CUSTOMERS - 1; i > 0; i--) {
+            int k = r.nextInt(i + 1);
+            int t = rank[i];
+            rank[i] = rank[k];
+            rank[k] = t;
+        }
+        double[] cdf = new double[CUSTOMERS];
+        double sum = 0;
+        for (int i = 0; i < CUSTOMERS; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+
+        ArrayList<ArrayList<Integer>> orders = new ArrayList<ArrayList<Integer>>();
+        int[] cust = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            int k = java.util.Arrays.binarySearch(cdf, r.nextDouble() * sum);
+            cust[i] = rank[k < 0 ? -k - 1 : k];
+            orders.add(row(cust[i], r.nextInt(10000)));
+        }
+        ArrayList<ArrayList<Integer>> customers = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < CUSTOMERS; i++)
+            customers.add(row(i, r.nextInt(REGIONS)));
+        ArrayList<ArrayList<Integer>> regions = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < REGIONS; i++)
+            regions.add(row(i, r.nextInt(100)));
+
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        addTable("orders", orders, false, lp, stats);
+        addTable("customers", customers, true, lp, stats);
+        addTable("regions", regions, false, lp, stats);
+
+        // estimation error
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int v : cust) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        IntHistogram fixed = new IntHistogram(TableStats.NUM_HIST_BINS, min, max);
+        for (int v : cust)
+            fixed.addValue(v);
+        TableStats ts = stats.get("orders");
+
+        System.out.println("Selectivity estimates on orders.cust (" + rows
+                + " rows, zipf exponent " + exponent + ")");
+        System.out.println(String.format("%-22s %14s %14s %14s %14s",
+                "predicates", "fixed abs err", "fixed q-err", "mcv+ed abs err",
+                "mcv+ed q-err"));
+        int[] hot = new int[10];
+        int[] cold = new int[10];
+        int[] bounds = new int[10];
+        for (int i = 0; i < 10; i++) {
+            hot[i] = rank[i];
+            cold[i] = rank[CUSTOMERS - 1 - i * 97];
+            bounds[i] = (i + 1) * CUSTOMERS / 11;
+        }
+        compare("cust = hot value", Predicate.Op.EQUALS, hot, cust, fixed, ts);
+        compare("cust = cold value", Predicate.Op.EQUALS, cold, cust, fixed, ts);
+        compare("cust < constant", Predicate.Op.LESS_THAN, bounds, cust, fixed, ts);
+
+        // plan cost: the plan chosen with each estimate, costed with the
+        // true selectivity
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        joins.add(new LogicalJoinNode("orders", "customers", "orders.cust",
+                "customers.id", Predicate.Op.EQUALS));
+        joins.add(new LogicalJoinNode("customers", "regions",
+                "customers.region", "regions.id", Predicate.Op.EQUALS));
+        System.out.println();
+        System.out.println("Cost of orders JOIN customers JOIN regions WHERE orders.cust = c,"
+                + " with the plan chosen from each estimate");
+        System.out.println(String.format("%-22s %14s %14s %14s",
+                "constant", "optimal cost", "fixed cost", "mcv+ed cost"));
+        for (int c : new int[] { hot[0], hot[5], cold[0] }) {
+            IntField f = new IntField(c);
+            double truth = trueSelectivity(Predicate.Op.EQUALS, c, cust);
+            double best = planCost(lp, joins, stats, truth, truth);
+            double withFixed = planCost(lp, joins, stats,
+                    fixed.estimateSelectivity(Predicate.Op.EQUALS, c), truth);
+            double withMcv = planCost(lp, joins, stats,
+                    ts.estimateSelectivity(0, Predicate.Op.EQUALS, f), truth);
+            System.out.println(String.format("%-22s %14.0f %14.0f %14.0f",
+                    (c == cold[0] ? "cold " : "hot ") + c, best, withFixed,
+                    withMcv));
+        }
+    }
+
+    private static ArrayList<Integer> row(int a, int b) {
+        ArrayList<Integer> t = new ArrayList<Integer>();
+        t.add(a);
+        t.add(b);
+        return t;
+    }
+
+    /**
+     * Add a table to the catalog and the plan; a BTreeFile table is keyed on
+     * its first field, which is its primary key.
+     */
+    private static void addTable(String name,
+            ArrayList<ArrayList<Integer>> tuples, boolean btree, LogicalPlan lp,
+            HashMap<String, TableStats> stats) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        String[] names = name.equals("orders") ? new String[] { "cust", "amount" }
+                : name.equals("customers") ? new String[] { "id", "region" }
+                        : new String[] { "id", "size" };
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE,
+                Type.INT_TYPE }, names);
+        DbFile file;
+        if (btree) {
+            File heap = File.createTempFile(name, ".heap");
+            heap.deleteOnExit();
+            BTreeFileEncoder.convert(tuples, heap, f, BufferPool.getPageSize(),
+                    2, new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 0);
+            file = new BTreeFile(f, 0, td);
+            Database.getCatalog().addTable(file, name, names[0]);
+        } else {
+            HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+            file = new HeapFile(f, td);
+            Database.getCatalog().addTable(file, name);
+        }
+        lp.addScan(file.getId(), name);
+        stats.put(name, new TableStats(file.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    private static double trueSelectivity(Predicate.Op op, int c, int[] values) {
+        int n = 0;
+        IntField f = new IntField(c);
+        for (int v : values)
+            if (new IntField(v).compare(op, f))
+                n++;
+        return (double) n / values.length;
+    }
+
+    private static void compare(String label, Predicate.Op op, int[] constants,
+            int[] values, IntHistogram fixed, TableStats ts) {
+        double minSel = 1.0 / values.length;
+        double fixedAbs = 0, fixedQ = 0, mcvAbs = 0, mcvQ = 0;
+        for (int c : constants) {
+            double truth = Math.max(minSel, trueSelectivity(op, c, values));
+            double a = Math.max(minSel, fixed.estimateSelectivity(op, c));
+            double b = Math.max(minSel, ts.estimateSelectivity(0, op, new IntField(c)));
+            fixedAbs += Math.abs(a - truth);
+            mcvAbs += Math.abs(b - truth);
+            fixedQ += Math.max(a / truth, truth / a);
+            mcvQ += Math.max(b / truth, truth / b);
+        }
+        int n = constants.length;
+        System.out.println(String.format("%-22s %14.5f %14.2f %14.5f %14.2f",
+                label, fixedAbs / n, fixedQ / n, mcvAbs / n, mcvQ / n));
+    }
+
+    /**
+     * @return the true cost of the join order chosen when the filter on
+     *         orders is estimated to have selectivity estimated
+     */
+    private static double planCost(LogicalPlan lp, Vector<LogicalJoinNode> joins,
+            HashMap<String, TableStats> stats, double estimated, double truth)
+            throws ParsingException {
+        JoinOptimizer jo = new JoinOptimizer(lp, joins);
+        Vector<LogicalJoinNode> plan = jo.orderJoins(stats,
+                selectivities(estimated), false);
+        return jo.estimatePlanCost(plan, stats, selectivities(truth));
+    }
+
+    private static HashMap<String, Double> selectivities(double orders) {
+        HashMap<String, Double> sel = new HashMap<String, Double>();
+        sel.put("orders", orders);
+        sel.put("customers", 1.0);
+        sel.put("regions", 1.0);
+        return sel;
+    }
+}
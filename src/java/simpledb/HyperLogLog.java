@@ -0,0 +1,98 @@
+package simpledb;
+
+/**
+ * A HyperLogLog sketch estimates the number of distinct values in a stream
+ * using a small, fixed amount of memory (2^precision bytes). With the default
+ * precision of 12 the standard error of the estimate is about 1.6%.
+ * <p>
+ * Sketches built over disjoint parts of the input can be merged; the merged
+ * sketch estimates the number of distinct values in the union.
+ */
+public class HyperLogLog implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision
+     *            log2 of the number of registers, between 4 and 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18)
+            throw new IllegalArgumentException("precision must be in [4, 18]");
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Add a field value to the sketch.
+     */
+    public void add(Field f) {
+        addHash(hash(f.hashCode()));
+    }
+
+    /**
+     * Add a value, given as a well-mixed 64 bit hash, to the sketch.
+     */
+    public void addHash(long h) {
+        int idx = (int) (h >>> (64 - precision));
+        long rest = h << precision;
+        int rank = rest == 0 ? 64 - precision + 1
+                : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[idx])
+            registers[idx] = (byte) rank;
+    }
+
+    /**
+     * Add the values of another sketch with the same precision to this one.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("sketches have different precision");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += Math.scalb(1.0, -r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709
+                : 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        // linear counting is more accurate while many registers are empty
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros);
+        return Math.round(e);
+    }
+
+    /**
+     * Spread a 32 bit hash code over 64 bits (the finalizer of MurmurHash3).
+     */
+    static long hash(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
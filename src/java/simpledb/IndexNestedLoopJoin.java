@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator implements the relational join operation
+ * for the case where the inner relation has an index on its join field.
+ * Instead of rescanning the whole inner relation for every outer tuple, it
+ * probes the index with an {@link IndexPredicate} built from the outer
+ * tuple's join value.
+ *
+ * SELECT * FROM orders o, customer c WHERE o.cid = c.id -- c is a BTreeFile on id
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate joinPredicate;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private Predicate.Op indexOp;
+    private TupleDesc comboTD;
+
+    // used in fetchNext()
+    private Tuple t1 = null;
+    private boolean probed = false;
+
+    /**
+     * Constructor. Accepts the outer child and the index to probe, and the
+     * predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; field2 must be
+     *            the field the inner index is keyed on
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Index access method for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *             if the join operator cannot be answered by an index probe
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1,
+            IndexOpIterator child2) {
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.indexOp = getIndexOp(p.getOperator());
+        if (indexOp == null)
+            throw new IllegalArgumentException("operator " + p.getOperator()
+                    + " cannot be used for an index probe");
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Convert the operator of a join predicate "outer op inner" into the
+     * operator of the index predicate "inner op' outer".
+     *
+     * @return the index operator, or null if the join operator cannot be
+     *         answered by an index probe (e.g. NOT_EQUALS or LIKE)
+     */
+    static Predicate.Op getIndexOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return joinPredicate;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(joinPredicate.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(joinPredicate.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+        t1 = null;
+        probed = false;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        if (probed)
+            child2.close();
+        probed = false;
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. For every outer tuple the inner index is probed with the
+     * outer join value; every tuple the probe returns satisfies the join
+     * predicate, so no further filtering is needed.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && child2.hasNext()) {
+                return new JoinedTuple(comboTD, t1, child2.next());
+            }
+
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            IndexPredicate ipred = new IndexPredicate(indexOp,
+                    t1.getField(joinPredicate.getField1()));
+            if (!probed) {
+                child2.open(ipred);
+                probed = true;
+            } else {
+                child2.rewind(ipred);
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+
+}
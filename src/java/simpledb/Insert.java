@@ -84,7 +84,8 @@ public class Insert extends Operator {
             while (child.hasNext()) {
                 Tuple tuple = child.next();
                 try {
-                    Database.getBufferPool().insertTuple(tid, tableId, tuple);
+                    Database.getBufferPool().insertTuple(tid, tableId,
+                            tuple.materialize());
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
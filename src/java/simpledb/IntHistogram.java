@@ -2,7 +2,9 @@ package simpledb;
 
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
-public class IntHistogram {
+public class IntHistogram implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /**
      * the x-axis is value-groups e.g. 1-3, 4-6
@@ -33,7 +35,9 @@ public class IntHistogram {
      * A histogram contains # buckets of pillars (bins)
      * a Pillar corresponds to a group e.g. 1-3     left = 1   right = 4
      */
-    private class Pillar {
+    private static class Pillar implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
         int left;
         int right;
         int cnt;
@@ -143,6 +147,41 @@ public class IntHistogram {
         totalCnt++;
     }
 
+    /**
+     * Add count occurrences of a value to the histogram.
+     */
+    void addValue(int v, int count) {
+        assert v >= min && v <= max : v + " out of range [" + min + "," + max + "]";
+
+        histogram[whichBucket(v)].cnt += count;
+        totalCnt += count;
+    }
+
+    /**
+     * Adjust the count of a value after a tuple was inserted (delta > 0) or
+     * deleted (delta < 0). Values outside the range of the histogram are
+     * counted in the first or last bucket, and counts never drop below zero.
+     */
+    void adjustValue(int v, int delta) {
+        Pillar pillar = histogram[whichBucket(Math.max(min, Math.min(max, v)))];
+        int cnt = Math.max(0, pillar.cnt + delta);
+        totalCnt += cnt - pillar.cnt;
+        pillar.cnt = cnt;
+    }
+
+    /**
+     * Add the counts of another histogram with the same buckets and range
+     * to this one.
+     */
+    void merge(IntHistogram other) {
+        if (other.histogram.length != histogram.length || other.min != min
+                || other.max != max)
+            throw new IllegalArgumentException("histograms have different buckets");
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i].cnt += other.histogram[i].cnt;
+        totalCnt += other.totalCnt;
+    }
+
 
     /**
      * @param v
@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Collects the distribution of an integer field in a single pass, without
+ * knowing the range of its values in advance, and then builds an
+ * {@link IntHistogram} over it.
+ * <p>
+ * Values are counted in NUM_BINS bins of width 2^shift, aligned on multiples
+ * of the width. Whenever a value falls outside the range the bins can cover,
+ * the bin width is doubled (merging pairs of adjacent bins) until the values
+ * seen so far fit again. Counts are therefore exact for fields spanning at
+ * most NUM_BINS distinct values, and otherwise accurate to within one bin,
+ * which is much narrower than a bucket of the final histogram.
+ * <p>
+ * The bins can also be turned into an {@link EquiDepthHistogram}. Builders
+ * that have seen disjoint parts of a table can be merged, which is how
+ * {@link TableStats} collects statistics in parallel.
+ */
+public class IntHistogramBuilder {
+
+    static final int NUM_BINS = 4096;
+
+    private int[] counts = new int[NUM_BINS];
+    private int shift = 0;
+    // bin number (at the current width) of counts[0]
+    private long base = 0;
+
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private int count = 0;
+
+    /**
+     * Add a value to the distribution.
+     */
+    public void addValue(int v) {
+        if (count == 0) {
+            min = max = v;
+            base = v >> shift;
+        } else if (v < min || v > max) {
+            int newMin = Math.min(min, v);
+            int newMax = Math.max(max, v);
+            fit(newMin, newMax, v < min);
+            min = newMin;
+            max = newMax;
+        }
+        counts[(int) ((v >> shift) - base)]++;
+        count++;
+    }
+
+    /**
+     * Add all values seen by another builder to this one.
+     */
+    public void merge(IntHistogramBuilder other) {
+        if (other.count == 0)
+            return;
+        if (count == 0) {
+            counts = other.counts.clone();
+            shift = other.shift;
+            base = other.base;
+            min = other.min;
+            max = other.max;
+            count = other.count;
+            return;
+        }
+
+        int newMin = Math.min(min, other.min);
+        int newMax = Math.max(max, other.max);
+        int newShift = Math.max(shift, other.shift);
+        while ((newMax >> newShift) - (long) (newMin >> newShift) >= NUM_BINS)
+            newShift++;
+        rebin(newShift, newMin >> newShift);
+        min = newMin;
+        max = newMax;
+
+        int d = shift - other.shift;
+        for (int i = 0; i < NUM_BINS; i++) {
+            if (other.counts[i] != 0)
+                counts[(int) (((other.base + i) >> d) - base)] += other.counts[i];
+        }
+        count += other.count;
+    }
+
+    /** @return the number of values added */
+    public int count() {
+        return count;
+    }
+
+    /** @return the smallest value added, or Integer.MAX_VALUE if none */
+    public int min() {
+        return min;
+    }
+
+    /** @return the largest value added, or Integer.MIN_VALUE if none */
+    public int max() {
+        return max;
+    }
+
+    /**
+     * Build a histogram with the given number of buckets over the range of
+     * the values added. Each bin is added at its midpoint.
+     */
+    public IntHistogram build(int buckets) {
+        if (count == 0)
+            return new IntHistogram(buckets, 0, 0);
+        IntHistogram hist = new IntHistogram(buckets, min, max);
+        long width = 1L << shift;
+        for (int i = 0; i < NUM_BINS; i++) {
+            if (counts[i] == 0)
+                continue;
+            long lo = Math.max(min, (base + i) * width);
+            long hi = Math.min(max, (base + i) * width + width - 1);
+            hist.addValue((int) (lo + (hi - lo) / 2), counts[i]);
+        }
+        return hist;
+    }
+
+    /**
+     * Build an equi-depth histogram with (at most) the given number of
+     * buckets over the values added, leaving out some values that are
+     * described elsewhere (typically the most common values). Buckets never
+     * split a bin, and start and end at the first and last non-empty bins
+     * they contain.
+     *
+     * @param excluded
+     *            values to leave out of the histogram
+     * @param excludedCounts
+     *            the number of occurrences of each excluded value to remove
+     * @param distinct
+     *            the estimated number of distinct values that are not
+     *            excluded; the distinct values of a bucket are estimated in
+     *            proportion to the non-empty bins it contains
+     */
+    public EquiDepthHistogram buildEquiDepth(int buckets, int[] excluded,
+            int[] excludedCounts, long distinct) {
+        int[] bins = counts.clone();
+        int total = count;
+        for (int i = 0; i < excluded.length; i++) {
+            int v = excluded[i];
+            if (count == 0 || v < min || v > max)
+                continue;
+            int bin = (int) ((v >> shift) - base);
+            int removed = Math.min(bins[bin], excludedCounts[i]);
+            bins[bin] -= removed;
+            total -= removed;
+        }
+
+        int nonEmpty = 0;
+        for (int c : bins)
+            if (c != 0)
+                nonEmpty++;
+        double distinctPerBin = nonEmpty == 0 ? 1.0
+                : Math.max(1.0, (double) distinct / nonEmpty);
+
+        int[] lo = new int[buckets];
+        int[] hi = new int[buckets];
+        double[] bucketCounts = new double[buckets];
+        double[] bucketDistinct = new double[buckets];
+        long width = 1L << shift;
+        int b = 0;
+        long seen = 0;
+        for (int i = 0; i < NUM_BINS && b < buckets; i++) {
+            if (bins[i] == 0)
+                continue;
+            long binLo = Math.max(min, (base + i) * width);
+            long binHi = Math.min(max, (base + i) * width + width - 1);
+            if (bucketCounts[b] == 0)
+                lo[b] = (int) binLo;
+            hi[b] = (int) binHi;
+            bucketCounts[b] += bins[i];
+            bucketDistinct[b] += Math.min(distinctPerBin, binHi - binLo + 1);
+            seen += bins[i];
+            // close the bucket once it reaches its share of the values
+            if (seen * buckets >= (long) total * (b + 1))
+                b++;
+        }
+        int used = b < buckets && bucketCounts[b] != 0 ? b + 1 : b;
+        return new EquiDepthHistogram(Arrays.copyOf(lo, used),
+                Arrays.copyOf(hi, used), Arrays.copyOf(bucketCounts, used),
+                Arrays.copyOf(bucketDistinct, used));
+    }
+
+    /**
+     * Make the bins cover [newMin, newMax], widening them if necessary.
+     *
+     * @param down
+     *            true if the range grew downwards; the free bins are then
+     *            left below the values so that a descending input does not
+     *            move the bins on every value
+     */
+    private void fit(int newMin, int newMax, boolean down) {
+        int newShift = shift;
+        while ((newMax >> newShift) - (long) (newMin >> newShift) >= NUM_BINS)
+            newShift++;
+        long lo = newMin >> newShift;
+        long hi = newMax >> newShift;
+        if (newShift == shift && lo >= base && hi < base + NUM_BINS)
+            return;
+        rebin(newShift, down ? hi - NUM_BINS + 1 : lo);
+    }
+
+    private void rebin(int newShift, long newBase) {
+        if (newShift == shift && newBase == base)
+            return;
+        int[] old = counts;
+        counts = new int[NUM_BINS];
+        int d = newShift - shift;
+        for (int i = 0; i < NUM_BINS; i++) {
+            if (old[i] != 0)
+                counts[(int) (((base + i) >> d) - newBase)] += old[i];
+        }
+        shift = newShift;
+        base = newBase;
+    }
+
+    public String toString() {
+        return "IntHistogramBuilder(min=" + min + ", max=" + max + ", count="
+                + count + ", binWidth=" + (1L << shift) + ")";
+    }
+}
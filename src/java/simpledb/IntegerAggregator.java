@@ -2,10 +2,13 @@ package simpledb;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered in the order they are first seen; the aggregate of
+ * every group is kept by an {@link Accumulator}, in primitive arrays
+ * indexed by group number.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -15,14 +18,13 @@ public class IntegerAggregator implements Aggregator {
     private int fieldIndex;
     private Op op;
 
-    // grouping
-    private HashMap<Field, Double> aggrResult;
-    private HashMap<Field, Integer> cnt;
+    // the number of every group, and the group-by value of every number;
+    // without grouping, group 0 is the only group
+    private HashMap<Field, Integer> groupIds;
+    private ArrayList<Field> groups;
+    private Accumulator acc;
 
-    // no grpuping
     private boolean no_grouping;
-    private double aggrResult2;
-    private int cnt2;
 
     /**
      * Aggregate constructor
@@ -36,11 +38,11 @@ public class IntegerAggregator implements Aggregator {
      * @param afield
      *            the 0-based index of the aggregate field in the tuple
      * @param what
-     *            the aggregation operator
+     *            the aggregation operator; COUNT_DISTINCT needs the values
+     *            of every group to be merged in sorted order
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
         if (gbfield == Aggregator.NO_GROUPING) {
             no_grouping = true;
         }
@@ -48,10 +50,9 @@ public class IntegerAggregator implements Aggregator {
         groupByType = gbfieldtype;
         fieldIndex = afield;
         op = what;
-        aggrResult = new HashMap<>();
-        cnt = new HashMap<>();
-        aggrResult2 = Double.MIN_VALUE;
-        cnt2 = 0;
+        groupIds = new HashMap<>();
+        groups = new ArrayList<>();
+        acc = Accumulator.of(what);
     }
 
     /**
@@ -62,84 +63,27 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
-
-        // get value
-        IntField valueField = (IntField) tup.getField(fieldIndex);
-        int value = valueField.getValue();
-
+        int g;
         if (no_grouping) {
-            switch (op) {
-                case MIN:
-                    if (aggrResult2 == Integer.MIN_VALUE)
-                        aggrResult2 = value;
-                    if (value < aggrResult2)
-                        aggrResult2 = value;
-                    break;
-                case MAX:
-                    if (aggrResult2 == Integer.MIN_VALUE)
-                        aggrResult2 = value;
-                    if (value > aggrResult2)
-                        aggrResult2 = value;
-                    break;
-                case SUM:
-                    if (aggrResult2 == Integer.MIN_VALUE)
-                        aggrResult2 = 0;
-                    aggrResult2 += value;
-                    break;
-                case AVG:
-                    cnt2++;
-                    aggrResult2 = (aggrResult2 * (cnt2-1) + value) / cnt2;
-                    break;
-                case COUNT:
-                    cnt2++;
-                    aggrResult2 = cnt2;
-                    break;
-                default:
-                    throw new UnsupportedOperationException();
+            g = 0;
+            if (groups.isEmpty()) {
+                groups.add(null);
+                acc.addGroup(0);
             }
-
         } else {
-            Field groupByField =  tup.getField(groupByFieldIndex);
-
-            // need to create a new group
-            if (!aggrResult.containsKey(groupByField)) {
-                if (op == Op.COUNT)
-                    aggrResult.put(groupByField, 1.0);
-                else
-                    aggrResult.put(groupByField, (double)value);
-                cnt.put(groupByField, 1);
-
+            Field groupByField = tup.getField(groupByFieldIndex);
+            Integer id = groupIds.get(groupByField);
+            if (id == null) {
+                // need to create a new group
+                g = groups.size();
+                groupIds.put(groupByField, g);
+                groups.add(groupByField);
+                acc.addGroup(g);
             } else {
-                double oldValue = aggrResult.get(groupByField);
-                int count = cnt.get(groupByField);
-                cnt.replace(groupByField, count + 1);
-
-                switch (op) {
-                    case MIN:
-                        if (value < oldValue)
-                            aggrResult.replace(groupByField, (double)value);
-                        break;
-                    case MAX:
-                        if (value > oldValue)
-                            aggrResult.replace(groupByField, (double)value);
-                        break;
-                    case SUM:
-                        aggrResult.replace(groupByField, value + oldValue);
-                        break;
-                    case AVG:
-                        double avg = aggrResult.get(groupByField);
-                        double result = (count * avg + value) / (count + 1);
-                        aggrResult.replace(groupByField, result);
-                        break;
-                    case COUNT:
-                        aggrResult.replace(groupByField, (double) (count+1));
-                        break;
-                    default:
-                        throw new UnsupportedOperationException();
-                }
+                g = id;
             }
         }
+        acc.merge(g, tup.getField(fieldIndex));
     }
 
     /**
@@ -151,8 +95,6 @@ public class IntegerAggregator implements Aggregator {
      *         the constructor.
      */
     public OpIterator iterator() {
-        // some code goes here
-
         if (no_grouping) {
             Type[] types = new Type[1];
             types[0] = Type.INT_TYPE;
@@ -160,17 +102,9 @@ public class IntegerAggregator implements Aggregator {
 
             ArrayList<Tuple> list = new ArrayList<>();
             Tuple t = new Tuple(td);
-            IntField field = new IntField((int) aggrResult2);
-            t.setField(0, field);
+            t.setField(0, new IntField(groups.isEmpty() ? 0 : acc.result(0)));
             list.add(t);
-
-            Iterable<Tuple> iterable = new Iterable<Tuple>() {
-                @Override
-                public Iterator<Tuple> iterator() {
-                    return list.iterator();
-                }
-            };
-            return new TupleIterator(td, iterable);
+            return new TupleIterator(td, list);
 
         } else {
             // new a tuple descriptor
@@ -179,28 +113,15 @@ public class IntegerAggregator implements Aggregator {
             types[1] = Type.INT_TYPE;
             TupleDesc td = new TupleDesc(types);
 
-            // add tuples to list
-            ArrayList<Tuple> list = new ArrayList();
-            for (Field key: aggrResult.keySet()) {
-                double val = aggrResult.get(key);
-                IntField value = new IntField((int)val);
-
+            // add tuples to list, in the order the groups were seen
+            ArrayList<Tuple> list = new ArrayList<>();
+            for (int g = 0; g < groups.size(); g++) {
                 Tuple t = new Tuple(td);
-                t.setField(0, key);
-                t.setField(1, value);
+                t.setField(0, groups.get(g));
+                t.setField(1, new IntField(acc.result(g)));
                 list.add(t);
             }
-
-            // new a iterable
-            Iterable<Tuple> iterable = new Iterable<Tuple>() {
-                @Override
-                public Iterator<Tuple> iterator() {
-                    return list.iterator();
-                }
-            };
-
-            // return a TupleIterator
-            return new TupleIterator(td, iterable);
+            return new TupleIterator(td, list);
         }
     }
 
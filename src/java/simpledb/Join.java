@@ -138,21 +138,9 @@ public class Join extends Operator {
 
     private Tuple getJoinedTuple(Tuple t1, Tuple t2) {
 
-        Tuple tuple = null;
-
-        if (joinPredicate.filter(t1, t2)) {
-
-            tuple = new Tuple(getTupleDesc());
-            for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
-                tuple.setField(i, t1.getField(i));
-            }
-
-            int offset = t1.getTupleDesc().numFields();
-            for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
-                tuple.setField(offset+i, t2.getField(i));
-            }
-            return tuple;
-        }
+        // the joined tuple is a view over t1 and t2; no fields are copied
+        if (joinPredicate.filter(t1, t2))
+            return new JoinedTuple(getTupleDesc(), t1, t2);
         return null;
     }
 
@@ -14,6 +14,19 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The algorithms a join can be instantiated with, see
+     * {@link #instantiateJoin}.
+     */
+    enum JoinMethod {
+        /** rescan the inner side for every outer tuple, see {@link Join} */
+        NESTED_LOOPS,
+        /** hash the outer side and probe it with the inner one, see {@link ParallelHashEquiJoin} */
+        HASH,
+        /** probe the BTree index of the inner table, see {@link IndexNestedLoopJoin} */
+        INDEX
+    }
+
     /**
      * Constructor
      * 
@@ -34,6 +47,10 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The algorithm is the one {@link #estimateJoinCost} found cheapest when
+     * the join was ordered (see {@link LogicalJoinNode#method}); joins that
+     * were not costed are hash joins for equalities, else nested loops.
      * 
      * @param lj
      *            The join being considered
@@ -68,12 +85,77 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.method == JoinMethod.INDEX && !(lj instanceof LogicalSubplanJoinNode)
+                && isIndexProbe(plan2, lj.p, t2id)) {
+            j = new IndexNestedLoopJoin(p, plan1, (BTreeScan) plan2);
+        } else if (lj.p == Predicate.Op.EQUALS && lj.card1 >= 0
+                && (long) lj.card1 + lj.card2 >= ParallelHashEquiJoin.PARALLEL_THRESHOLD) {
+            // falls back to chunks of the outer side if it does not fit in
+            // memory, as estimateHashJoinCost assumes
+            j = new ParallelHashEquiJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            // small joins, and joins that were not costed
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            // the inner side is rescanned for every outer tuple, which must
+            // not re-execute a subtree of joins (see estimateJoinCost)
+            j = new Join(p, plan1, isBaseScan(plan2) ? plan2
+                    : new Materialize(plan2));
+        }
 
         return j;
 
     }
 
+    /**
+     * Return true if plan is a (possibly filtered) scan of a base table,
+     * which is cheap enough to be rescanned by a nested loops join.
+     */
+    static boolean isBaseScan(OpIterator plan) {
+        while (plan instanceof Operator
+                && ((Operator) plan).getChildren().length == 1
+                && !(plan instanceof Aggregate))
+            plan = ((Operator) plan).getChildren()[0];
+        return plan instanceof SeqScan || plan instanceof BTreeScan;
+    }
+
+    /**
+     * Return true if plan can be probed by an {@link IndexNestedLoopJoin} on
+     * field, i.e. it is an unrestricted scan of a BTreeFile keyed on field and
+     * op can be answered by an index lookup.
+     */
+    static boolean isIndexProbe(OpIterator plan, Predicate.Op op, int field) {
+        if (!(plan instanceof BTreeScan))
+            return false;
+        BTreeScan scan = (BTreeScan) plan;
+        return scan.getIndexPredicate() == null
+                && scan.getBTreeFile().keyField() == field
+                && IndexNestedLoopJoin.getIndexOp(op) != null;
+    }
+
+    /**
+     * Return true if the right-hand table of j is a base table that can be
+     * probed through its BTree index by {@link #instantiateJoin}.
+     */
+    private boolean isIndexProbe(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null)
+            return false;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null || p.hasFilter(j.t2Alias))
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return false;
+        int field;
+        try {
+            field = f.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        return ((BTreeFile) f).keyField() == field
+                && IndexNestedLoopJoin.getIndexOp(j.p) != null;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,19 +184,168 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join, see
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     * 
+     * @param innerIsBase
+     *            true if the right-hand side of the join is a base table
+     *            rather than the result of earlier joins; only then can it be
+     *            probed through an index
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsBase) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        }
+        return estimateJoinCost(j, card1, card2, cost1, cost2, chooseJoinMethod(j,
+                card1, card2, cost1, cost2, innerIsBase));
+    }
+
+    /**
+     * Estimate the cost of a join executed with the given algorithm.
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, JoinMethod method) {
+        if (method == JoinMethod.INDEX)
+            return estimateIndexJoinCost(j, card1, card2, cost1, cost2);
+        if (method == JoinMethod.HASH)
+            return estimateHashJoinCost(j, card1, card2, cost1, cost2);
+        // Insert your code here.
+        // HINT: You may need to use the variable "j" if you implemented
+        // a join algorithm that's more complicated than a basic
+        // nested-loops join.
+        return cost1 + card1 * cost2 + card1 * card2;
+    }
+
+    /**
+     * Return the cheapest algorithm for a join (see
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double, boolean)}):
+     * a hash join for equalities, else nested loops, unless probing the index
+     * of the inner table is cheaper, which is only possible if it is a base
+     * table.
+     */
+    JoinMethod chooseJoinMethod(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsBase) {
+        JoinMethod best = j.p == Predicate.Op.EQUALS ? JoinMethod.HASH
+                : JoinMethod.NESTED_LOOPS;
+        if (innerIsBase && isIndexProbe(j)
+                && estimateJoinCost(j, card1, card2, cost1, cost2, JoinMethod.INDEX)
+                < estimateJoinCost(j, card1, card2, cost1, cost2, best))
+            best = JoinMethod.INDEX;
+        return best;
+    }
+
+    /**
+     * Return a copy of j recording the algorithm it is to be executed with,
+     * and the estimated cardinalities of its outer and inner sides. Joins are
+     * copied since the same LogicalJoinNode is costed in many subplans, each
+     * of which may pick a different algorithm for it.
+     */
+    private static LogicalJoinNode withMethod(LogicalJoinNode j,
+            JoinMethod method, int card1, int card2) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return j;
+        LogicalJoinNode copy = new LogicalJoinNode(j.t1Alias, j.t2Alias,
+                j.f1PureName, j.f2PureName, j.p);
+        copy.method = method;
+        copy.card1 = card1;
+        copy.card2 = card2;
+        return copy;
+    }
+
+    /**
+     * Estimate the cost of a {@link ParallelHashEquiJoin}, which reads both
+     * sides once if the hash tables of the left-hand side fit in its memory
+     * budget. A larger left-hand side is read in chunks by a
+     * {@link HashEquiJoin}, which reads the right-hand side once per chunk.
+     * Every left-hand tuple is charged for being read and hashed, and every
+     * right-hand tuple for one probe.
+     */
+    private double estimateHashJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        double chunks = 1;
+        if ((double) card1 * buildTupleSize(j) > ParallelHashEquiJoin.DEFAULT_MEMORY_BUDGET)
+            chunks = Math.ceil((double) card1 / HashEquiJoin.MAP_SIZE);
+        return cost1 + chunks * cost2 + 2.0 * card1 + chunks * card2;
+    }
+
+    /**
+     * Return the estimated bytes a tuple of j's left-hand table takes in the
+     * hash tables of a {@link ParallelHashEquiJoin}. The left-hand side may be
+     * the result of earlier joins, whose tuples are wider, so this is a lower
+     * bound.
+     */
+    private long buildTupleSize(LogicalJoinNode j) {
+        Integer tableId = j.t1Alias == null ? null : p.getTableId(j.t1Alias);
+        TupleDesc td = tableId == null ? Utility.getTupleDesc(1) : Database
+                .getCatalog().getTupleDesc(tableId);
+        return ParallelHashEquiJoin.estimateBuildSize(td);
+    }
+
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin} that probes the
+     * BTree index of j's right-hand table once per left-hand tuple.
+     * 
+     * A probe descends the tree once and then only touches the leaf pages
+     * holding its matches; since consecutive probes reuse the leaf they
+     * started on and the internal pages stay cached, each probe is charged
+     * one page read plus the fraction of the table its matches cover.
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                p.getTableId(j.t2Alias));
+        int numPages = Math.max(1, f.numPages());
+        double pageCost = cost2 / numPages;
+
+        double matchesPerProbe;
+        if (j.p == Predicate.Op.EQUALS) {
+            int distinct = numDistinctValues(j.t2Alias, j.f2PureName);
+            matchesPerProbe = isPkey(j.t2Alias, j.f2PureName) ? 1.0
+                    : distinct > 0 ? (double) card2 / distinct
+                    : (double) Math.max(card1, card2) / Math.max(1, card1);
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            double cost = cost1 + card1 * cost2
-                        + card1 * card2;
-            return cost;
+            matchesPerProbe = 0.3 * card2;
         }
+        matchesPerProbe = Math.min(matchesPerProbe, card2);
+
+        double probeCost = pageCost + matchesPerProbe * cost2
+                / Math.max(1, card2);
+        return cost1 + pageCost * TableStats.treeHeight(numPages, card2) + card1
+                * probeCost + card1 * matchesPerProbe;
+    }
+
+    /**
+     * Estimate the cost of a bushy join, i.e. of joining the results of two
+     * independent subplans. Equalities are hash joins (see
+     * {@link #estimateHashJoinCost}). Otherwise each subplan is executed once:
+     * the outer one streams its tuples, while the inner one is materialized
+     * (see {@link Materialize}, which writes the tuples past its memory budget
+     * to a temporary file), at a cost of one unit per tuple, and then
+     * rescanned for every outer tuple.
+     * 
+     * @param j
+     *            the join, with the outer subplan on its left-hand side
+     * @param card1
+     *            Estimated cardinality of the outer subplan
+     * @param card2
+     *            Estimated cardinality of the inner subplan
+     * @param cost1
+     *            Estimated cost of the outer subplan
+     * @param cost2
+     *            Estimated cost of the inner subplan
+     */
+    double estimateBushyJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        if (j.p == Predicate.Op.EQUALS)
+            return estimateHashJoinCost(j, card1, card2, cost1, cost2);
+        return cost1 + cost2 + card2 + (double) card1 * card2;
     }
 
     /**
@@ -143,12 +374,30 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1;
         } else {
-            return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
-                    j.f1PureName, j.f2PureName, card1, card2, t1pkey, t2pkey,
-                    stats, p.getTableAliasToIdMapping());
+            // the selectivity of a join does not depend on the plan, so it
+            // is computed once per join (and orientation)
+            String key = j.t1Alias + "." + j.f1PureName + " " + j.p + " "
+                    + j.t2Alias + "." + j.f2PureName;
+            Double selectivity = joinSelectivities.get(key);
+            if (selectivity == null) {
+                selectivity = estimateJoinSelectivity(j.p, j.t1Alias,
+                        j.t2Alias, j.f1PureName, j.f2PureName, stats,
+                        p.getTableAliasToIdMapping());
+                joinSelectivities.put(key, selectivity);
+            }
+            return estimateTableJoinCardinality(j.p, card1, card2, t1pkey,
+                    t2pkey, selectivity);
         }
     }
 
+    private final HashMap<String, Double> joinSelectivities = new HashMap<String, Double>();
+
+    /**
+     * The statistics of the tables, as last passed to {@link #orderJoins} or
+     * {@link #estimatePlanCost}
+     */
+    private Map<String, TableStats> stats = TableStats.getStatsMap();
+
     /**
      * Estimate the join cardinality of two tables.
      * */
@@ -157,22 +406,72 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
         // some code goes here
+        double selectivity = estimateJoinSelectivity(joinOp, table1Alias,
+                table2Alias, field1PureName, field2PureName, stats,
+                tableAliasToId);
+        return estimateTableJoinCardinality(joinOp, card1, card2, t1pkey,
+                t2pkey, selectivity);
+    }
 
-        if (joinOp == Predicate.Op.EQUALS) {
-            if (t1pkey) {
-                card = card2;
-            } else if (t2pkey) {
-                card = card1;
-            } else {
-                card = card1 > card2 ? card1 : card2;
-            }
+    /**
+     * Estimate the join cardinality of two inputs from the selectivity of
+     * the join predicate.
+     *
+     * @param selectivity
+     *            the fraction of pairs of tuples of the base tables that
+     *            join, or a negative number if unknown
+     */
+    private static int estimateTableJoinCardinality(Predicate.Op joinOp,
+            int card1, int card2, boolean t1pkey, boolean t2pkey,
+            double selectivity) {
+        double card;
+        if (joinOp == Predicate.Op.EQUALS && t1pkey) {
+            card = card2;
+        } else if (joinOp == Predicate.Op.EQUALS && t2pkey) {
+            card = card1;
+        } else if (selectivity >= 0) {
+            // the filtered inputs are assumed to keep the value distribution
+            // of their base tables
+            card = selectivity * card1 * card2;
+        } else if (joinOp == Predicate.Op.EQUALS) {
+            card = Math.max(card1, card2);
         } else {
-            double temp = 0.3 * card1 * card2;
-            card = (int)temp;
+            card = 0.3 * card1 * card2;
+        }
+        return card < 1 ? 1 : (int) Math.min(Integer.MAX_VALUE, card);
+    }
+
+    /**
+     * Estimate the selectivity of a join predicate from the statistics of
+     * the joined columns (see {@link TableStats#estimateJoinSelectivity}).
+     *
+     * @return the selectivity, or -1 if the statistics of either column are
+     *         not available
+     */
+    static double estimateJoinSelectivity(Predicate.Op joinOp,
+            String table1Alias, String table2Alias, String field1PureName,
+            String field2PureName, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        if (stats == null || tableAliasToId == null || table2Alias == null)
+            return -1;
+        Integer id1 = tableAliasToId.get(table1Alias);
+        Integer id2 = tableAliasToId.get(table2Alias);
+        if (id1 == null || id2 == null)
+            return -1;
+        Catalog catalog = Database.getCatalog();
+        TableStats s1 = stats.get(catalog.getTableName(id1));
+        TableStats s2 = stats.get(catalog.getTableName(id2));
+        if (s1 == null || s2 == null)
+            return -1;
+        int field1, field2;
+        try {
+            field1 = catalog.getTupleDesc(id1).fieldNameToIndex(field1PureName);
+            field2 = catalog.getTupleDesc(id2).fieldNameToIndex(field2PureName);
+        } catch (NoSuchElementException e) {
+            return -1;
         }
-        return card <= 0 ? 1 : card;
+        return s1.estimateJoinSelectivity(field1, joinOp, s2, field2);
     }
 
     /**
@@ -208,9 +507,49 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Default number of relations above which {@link #orderJoins} switches
+     * from dynamic programming to greedy join ordering.
+     */
+    public static final int DEFAULT_GREEDY_THRESHOLD = 14;
+
+    private int greedyThreshold = DEFAULT_GREEDY_THRESHOLD;
+
+    /**
+     * Default number of joins up to which {@link #orderJoins} also considers
+     * bushy plans. Enumerating the ways to split every set of joins into two
+     * takes O(3^n) time for n joins, against O(2^n) for left-deep plans.
+     */
+    public static final int DEFAULT_BUSHY_THRESHOLD = 10;
+
+    private int bushyThreshold = DEFAULT_BUSHY_THRESHOLD;
+
+    /**
+     * Set the number of relations above which {@link #orderJoins} orders the
+     * joins greedily instead of searching for the optimal order.
+     */
+    public void setGreedyThreshold(int greedyThreshold) {
+        this.greedyThreshold = greedyThreshold;
+    }
+
+    /**
+     * Set the number of joins up to which {@link #orderJoins} considers bushy
+     * plans as well as left-deep ones; 0 restricts it to left-deep plans.
+     */
+    public void setBushyThreshold(int bushyThreshold) {
+        this.bushyThreshold = bushyThreshold;
+    }
+
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Queries over at most {@link #setGreedyThreshold greedyThreshold}
+     * relations are planned by dynamic programming over connected sets of
+     * joins, so sets that would require a cross product are never
+     * enumerated; with at most {@link #setBushyThreshold bushyThreshold}
+     * joins the plans may be bushy. Larger queries are ordered greedily, see
+     * {@link #orderJoinsGreedy}.
      *
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -222,8 +561,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed. A join between two tables that
+     *         were each already joined to others joins the results of those
+     *         two (bushy) subplans.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -232,47 +573,342 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        if (joins.isEmpty())
+            return new Vector<LogicalJoinNode>();
+        this.stats = stats;
 
-        // some code goes here
-        //Replace the following
-        PlanCache planCache = new PlanCache();
-
-        Set<Set<LogicalJoinNode>> nodeSets = null;
-        for (int i = 1; i < joins.size() + 1; i++) {
-            nodeSets = enumerateSubsets(joins, i);
-            for (Set<LogicalJoinNode> nodeSet: nodeSets) {
-                double costSoFar = Double.MAX_VALUE;
-                for (LogicalJoinNode node: nodeSet) {
-                    CostCard costCard = computeCostAndCardOfSubplan(stats, filterSelectivities,
-                            node, nodeSet, costSoFar, planCache);
-                    if (costCard == null)
-                        continue;
-                    if (costCard.cost < costSoFar) {
-                        costSoFar = costCard.cost;
-                        planCache.addPlan(nodeSet, costSoFar, costCard.card, costCard.plan);
-                    }
+        CostCard best;
+        if (joins.size() >= Long.SIZE || numRelations() > greedyThreshold)
+            best = orderJoinsGreedy(stats, filterSelectivities);
+        else
+            best = orderJoinsDP(stats, filterSelectivities);
+
+        Vector<LogicalJoinNode> res = best == null ? null : best.plan;
+        if (explain)
+            printJoins(res, planCacheOf(res, stats, filterSelectivities),
+                    stats, filterSelectivities);
+
+        return res;
+    }
+
+    /**
+     * Find the cheapest plan for all joins by dynamic programming. Sets of
+     * joins are encoded as bitmasks over the indexes in {@link #joins}; level
+     * k holds the best plan for every connected set of k joins, and is built
+     * by extending each plan of level k-1 with every join that shares a table
+     * with it. With at most bushyThreshold joins, each set of level k then
+     * also considers the bushy plans that join the best plans of two smaller
+     * sets over disjoint tables, see {@link #bestBushyPlan}.
+     *
+     * @return the best plan, or null if the joins are not connected
+     */
+    private CostCard orderJoinsDP(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        int n = joins.size();
+        long[] adj = adjacentJoins();
+        long[] tables = joinedTables();
+        boolean bushy = n <= bushyThreshold;
+
+        HashMap<Long, CostCard> level = new HashMap<Long, CostCard>();
+        for (int i = 0; i < n; i++) {
+            CostCard cc = computeCostAndCardOfSubplan(stats,
+                    filterSelectivities, joins.get(i), null, Double.MAX_VALUE);
+            if (cc != null)
+                level.put(1L << i, cc);
+        }
+        HashMap<Long, CostCard> best = new HashMap<Long, CostCard>(level);
+
+        for (int k = 2; k <= n; k++) {
+            HashMap<Long, CostCard> next = new HashMap<Long, CostCard>();
+            for (Map.Entry<Long, CostCard> e : level.entrySet()) {
+                long set = e.getKey();
+                long frontier = 0;
+                for (long rest = set; rest != 0; rest &= rest - 1)
+                    frontier |= adj[Long.numberOfTrailingZeros(rest)];
+                frontier &= ~set;
+
+                for (; frontier != 0; frontier &= frontier - 1) {
+                    int i = Long.numberOfTrailingZeros(frontier);
+                    long newSet = set | (1L << i);
+                    CostCard bestSoFar = next.get(newSet);
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, joins.get(i), e.getValue(),
+                            bestSoFar == null ? Double.MAX_VALUE
+                                    : bestSoFar.cost);
+                    if (cc != null)
+                        next.put(newSet, cc);
                 }
             }
+            if (bushy) {
+                for (Map.Entry<Long, CostCard> e : next.entrySet())
+                    e.setValue(bestBushyPlan(stats, filterSelectivities,
+                            e.getKey(), e.getValue(), best, tables));
+            }
+            best.putAll(next);
+            level = next;
         }
 
-        Vector<LogicalJoinNode> res = null;
-        for (Set<LogicalJoinNode> nodeSet : nodeSets)
-            res = planCache.getOrder(nodeSet);
+        return level.get((1L << n) - 1);
+    }
 
-        if (explain)
-            printJoins(res, planCache, stats, filterSelectivities);
+    /**
+     * Look for a bushy plan for a set of joins that is cheaper than plan: one
+     * whose last join j connects the best plans of two sets of joins that
+     * partition the other joins of the set and share no table.
+     *
+     * @param set
+     *            the set of joins, as a bitmask
+     * @param plan
+     *            the best plan for set found so far
+     * @param best
+     *            the best plans of the smaller connected sets
+     * @param tables
+     *            the tables joined by each join, see {@link #joinedTables}
+     * @return the cheapest plan
+     */
+    private CostCard bestBushyPlan(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, long set,
+            CostCard plan, HashMap<Long, CostCard> best, long[] tables)
+            throws ParsingException {
+        for (long js = set; js != 0; js &= js - 1) {
+            int i = Long.numberOfTrailingZeros(js);
+            LogicalJoinNode j = joins.get(i);
+            if (j instanceof LogicalSubplanJoinNode)
+                continue;
+            long rest = set & ~(1L << i);
+            long lowest = rest & -rest;
+            // visit each split of rest once, with the lowest join on the left
+            for (long left = rest; left != 0; left = (left - 1) & rest) {
+                if ((left & lowest) == 0 || left == rest)
+                    continue;
+                long right = rest & ~left;
+                CostCard l = best.get(left);
+                CostCard r = best.get(right);
+                if (l == null || r == null)
+                    continue;
+                long lt = tablesOf(left, tables);
+                long rt = tablesOf(right, tables);
+                if ((lt & rt) != 0 || (tables[i] & lt) == 0
+                        || (tables[i] & rt) == 0)
+                    continue;
+                CostCard cc = computeCostAndCardOfBushyPlan(stats,
+                        filterSelectivities, j, l, r, plan.cost);
+                if (cc != null)
+                    plan = cc;
+            }
+        }
+        return plan;
+    }
 
-        return res;
+    /**
+     * Order the joins greedily: start with the cheapest single join, and then
+     * repeatedly append the join that is cheapest to add to the plan so far.
+     * Takes O(n^2) cost estimates for n joins.
+     *
+     * @return the plan, or null if the joins are not connected
+     */
+    private CostCard orderJoinsGreedy(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        int n = joins.size();
+        boolean[] used = new boolean[n];
+        CostCard plan = null;
+        for (int step = 0; step < n; step++) {
+            CostCard bestStep = null;
+            int bestJoin = -1;
+            for (int i = 0; i < n; i++) {
+                if (used[i])
+                    continue;
+                CostCard cc = computeCostAndCardOfSubplan(stats,
+                        filterSelectivities, joins.get(i), plan,
+                        bestStep == null ? Double.MAX_VALUE : bestStep.cost);
+                if (cc != null) {
+                    bestStep = cc;
+                    bestJoin = i;
+                }
+            }
+            if (bestStep == null)
+                return null;
+            used[bestJoin] = true;
+            plan = bestStep;
+        }
+        return plan;
+    }
+
+    /**
+     * @return for every join, the bitmask of the other joins that share a
+     *         table with it
+     */
+    private long[] adjacentJoins() {
+        int n = joins.size();
+        long[] adj = new long[n];
+        for (int i = 0; i < n; i++) {
+            for (int k = i + 1; k < n; k++) {
+                if (sharesTable(joins.get(i), joins.get(k))) {
+                    adj[i] |= 1L << k;
+                    adj[k] |= 1L << i;
+                }
+            }
+        }
+        return adj;
+    }
+
+    /**
+     * @return for every join, the bitmask of the tables it joins, numbered
+     *         in order of their first appearance in {@link #joins}
+     */
+    private long[] joinedTables() {
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        long[] tables = new long[joins.size()];
+        for (int i = 0; i < joins.size(); i++) {
+            for (String alias : new String[] { joins.get(i).t1Alias,
+                    joins.get(i).t2Alias }) {
+                if (alias == null)
+                    continue;
+                if (!index.containsKey(alias))
+                    index.put(alias, index.size());
+                tables[i] |= 1L << index.get(alias);
+            }
+        }
+        return tables;
+    }
+
+    private static long tablesOf(long set, long[] tables) {
+        long t = 0;
+        for (; set != 0; set &= set - 1)
+            t |= tables[Long.numberOfTrailingZeros(set)];
+        return t;
+    }
+
+    private static boolean sharesTable(LogicalJoinNode a, LogicalJoinNode b) {
+        return a.t1Alias.equals(b.t1Alias)
+                || (b.t2Alias != null && a.t1Alias.equals(b.t2Alias))
+                || (a.t2Alias != null && (a.t2Alias.equals(b.t1Alias)
+                        || a.t2Alias.equals(b.t2Alias)));
+    }
+
+    /**
+     * @return the number of distinct tables joined by {@link #joins}
+     */
+    private int numRelations() {
+        HashSet<String> aliases = new HashSet<String>();
+        for (LogicalJoinNode j : joins) {
+            aliases.add(j.t1Alias);
+            if (j.t2Alias != null)
+                aliases.add(j.t2Alias);
+        }
+        return aliases.size();
+    }
+
+    /**
+     * Build a PlanCache holding the cost, cardinality and subplans of every
+     * subplan of a plan, for {@link #printJoins}.
+     */
+    private PlanCache planCacheOf(Vector<LogicalJoinNode> plan,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        PlanCache pc = new PlanCache();
+        if (plan != null)
+            replayPlan(plan, stats, filterSelectivities, pc);
+        return pc;
+    }
+
+    /**
+     * Estimate the cost of executing the joins in a given order, see
+     * {@link #orderJoins}. Joins of a plan returned by orderJoins are costed
+     * with the algorithm chosen for them.
+     *
+     * @return the estimated cost, or Double.MAX_VALUE if plan does not join
+     *         all of its tables together
+     */
+    double estimatePlanCost(Vector<LogicalJoinNode> plan,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        if (plan.isEmpty())
+            return 0;
+        this.stats = stats;
+        CostCard cc = replayPlan(plan, stats, filterSelectivities, null);
+        return cc == null ? Double.MAX_VALUE : cc.cost;
+    }
+
+    /**
+     * Cost the joins of plan in order. The subplans built so far are kept
+     * as groups of joined tables: a join starts a new group, extends the
+     * group holding one of its tables, or joins the two groups holding its
+     * tables (a bushy join).
+     *
+     * @param pc
+     *            if not null, every subplan is added to it
+     * @return the cost and cardinality of the plan, or null if plan does not
+     *         join all of its tables together
+     */
+    private CostCard replayPlan(Vector<LogicalJoinNode> plan,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc)
+            throws ParsingException {
+        ArrayList<CostCard> groups = new ArrayList<CostCard>();
+        for (LogicalJoinNode j : plan) {
+            CostCard left = groupOf(groups, j.t1Alias);
+            CostCard right = groupOf(groups, j.t2Alias);
+            CostCard cc;
+            if (left != null && right != null && left != right) {
+                cc = computeCostAndCardOfBushyPlan(stats, filterSelectivities,
+                        j, left, right, Double.MAX_VALUE);
+            } else {
+                if (left == null)
+                    left = right;
+                right = null;
+                cc = computeCostAndCardOfSubplan(stats, filterSelectivities,
+                        j, left, Double.MAX_VALUE);
+            }
+            if (cc == null)
+                return null;
+            groups.remove(left);
+            groups.remove(right);
+            groups.add(cc);
+
+            if (pc != null) {
+                // the groups the (possibly swapped) last join reads from
+                LogicalJoinNode last = cc.plan.lastElement();
+                Vector<LogicalJoinNode> outer = new Vector<LogicalJoinNode>();
+                Vector<LogicalJoinNode> inner = new Vector<LogicalJoinNode>();
+                for (CostCard g : new CostCard[] { left, right }) {
+                    if (g == null)
+                        continue;
+                    if (outer.isEmpty() && doesJoin(g.plan, last.t1Alias))
+                        outer = g.plan;
+                    else
+                        inner = g.plan;
+                }
+                pc.addPlan(new HashSet<LogicalJoinNode>(cc.plan), cc.cost,
+                        cc.card, cc.plan, new HashSet<LogicalJoinNode>(outer),
+                        new HashSet<LogicalJoinNode>(inner));
+            }
+        }
+        return groups.size() == 1 ? groups.get(0) : null;
+    }
+
+    /**
+     * @return the group of joins that joins the table, or null if none does
+     */
+    private CostCard groupOf(ArrayList<CostCard> groups, String alias) {
+        if (alias == null)
+            return null;
+        for (CostCard g : groups) {
+            if (doesJoin(g.plan, alias))
+                return g;
+        }
+        return null;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * This is a helper method that computes the cost and cardinality of
+     * appending joinToRemove to the best plan for the remaining joins.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -282,28 +918,26 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
+     *            the join to add to prev
+     * @param prev
+     *            the best plan for the joins other than joinToRemove, or null
+     *            if joinToRemove is the only join in the set
      * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            the cost of the best plan found so far for the same set of
+     *            joins; plans that are not cheaper are discarded
      * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *         optimal subplan, or null if joinToRemove does not join a table
+     *         of prev or the plan is not cheaper than bestCostSoFar
      * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *             when stats or filterSelectivities is missing tables involved
+     *             in join
      */
     @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
+            LogicalJoinNode joinToRemove, CostCard prev,
+            double bestCostSoFar) throws ParsingException {
 
         LogicalJoinNode j = joinToRemove;
 
@@ -321,40 +955,30 @@ public class JoinOptimizer {
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
 
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean t1IsBase = true, t2IsBase = true;
 
-        if (news.isEmpty()) { // base case -- both are base relations
+        if (prev == null) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = p.estimateAccessCost(j.t1Alias, stats.get(table1Name));
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : p.estimateAccessCost(
+                    table2Alias, stats.get(table2Name));
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
         } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
+            // figure best way to join j to prev
+            prevBest = prev.plan;
+            double prevBestCost = prev.cost;
+            int bestCard = prev.card;
 
             // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
@@ -363,9 +987,10 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1IsBase = false;
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : p.estimateAccessCost(
+                        j.t2Alias, stats.get(table2Name));
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -379,7 +1004,9 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t2IsBase = false;
+                t1cost = p.estimateAccessCost(j.t1Alias,
+                        stats.get(table1Name));
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
@@ -392,14 +1019,30 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t2IsBase);
+        JoinMethod method = j instanceof LogicalSubplanJoinNode ? null
+                : chooseJoinMethod(j, t1card, t2card, t1cost, t2cost, t2IsBase);
+        if (j.method != null) {
+            // a join replayed from a chosen plan keeps the algorithm and
+            // orientation it will be executed with
+            method = j.method;
+            cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, method);
+        }
+
+        int outerCard = t1card, innerCard = t2card;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = j.method != null ? Double.MAX_VALUE
+                : estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsBase);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            outerCard = t2card;
+            innerCard = t1card;
+            method = j instanceof LogicalSubplanJoinNode ? null
+                    : chooseJoinMethod(j, t2card, t1card, t2cost, t1cost, t1IsBase);
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
@@ -413,7 +1056,66 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.plan.addElement(withMethod(j, method, outerCard, innerCard)); // prevbest is left -- add new join to end
+        return cc;
+    }
+
+    /**
+     * Compute the cost and cardinality of joining the results of two
+     * subplans over disjoint sets of tables with j, which must join a table
+     * of each. Either subplan may be the outer one; the cheaper orientation
+     * is chosen (see {@link #estimateBushyJoinCost}).
+     * 
+     * @param left
+     *            the best plan for one set of joins
+     * @param right
+     *            the best plan for the other set of joins
+     * @param bestCostSoFar
+     *            plans that are not cheaper than this are discarded
+     * @return the plan, which executes the joins of left, then those of
+     *         right, then j; or null if j does not connect left and right or
+     *         the plan is not cheaper than bestCostSoFar
+     */
+    @SuppressWarnings("unchecked")
+    private CostCard computeCostAndCardOfBushyPlan(
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, LogicalJoinNode j,
+            CostCard left, CostCard right, double bestCostSoFar)
+            throws ParsingException {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null)
+            return null;
+        if (!doesJoin(left.plan, j.t1Alias)) {
+            CostCard tmp = left;
+            left = right;
+            right = tmp;
+        }
+        if (!doesJoin(left.plan, j.t1Alias) || !doesJoin(right.plan, j.t2Alias))
+            return null;
+
+        CostCard outer = left, inner = right;
+        double cost = estimateBushyJoinCost(j, left.card, right.card,
+                left.cost, right.cost);
+        LogicalJoinNode j2 = j.swapInnerOuter();
+        double swapped = estimateBushyJoinCost(j2, right.card, left.card,
+                right.cost, left.cost);
+        if (swapped < cost) {
+            j = j2;
+            cost = swapped;
+            outer = right;
+            inner = left;
+        }
+        if (cost >= bestCostSoFar)
+            return null;
+
+        CostCard cc = new CostCard();
+        cc.card = estimateJoinCardinality(j, outer.card, inner.card,
+                hasPkey(outer.plan), hasPkey(inner.plan), stats);
+        cc.cost = cost;
+        cc.plan = (Vector<LogicalJoinNode>) left.plan.clone();
+        cc.plan.addAll(right.plan);
+        cc.plan.addElement(withMethod(j, j.p == Predicate.Op.EQUALS
+                ? JoinMethod.HASH : JoinMethod.NESTED_LOOPS, outer.card,
+                inner.card));
         return cc;
     }
 
@@ -446,6 +1148,20 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
+    /**
+     * Return the number of distinct values of the specified field, or 0 if
+     * the table has no statistics
+     */
+    private int numDistinctValues(String tableAlias, String field) {
+        int tableId = p.getTableId(tableAlias);
+        TableStats s = stats == null ? null : stats.get(Database.getCatalog()
+                .getTableName(tableId));
+        if (s == null)
+            return 0;
+        return s.numDistinctValues(Database.getCatalog().getTupleDesc(tableId)
+                .fieldNameToIndex(field));
+    }
+
     /**
      * Return true if a primary key field is joined by one of the joins in
      * joinlist
@@ -490,79 +1206,9 @@ public class JoinOptimizer {
 
         f.setSize(300, 500);
 
-        HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
-
-        // int numTabs = 0;
-
-        // int k;
-        DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
-
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t1Alias, root);
-
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t2Alias, root);
-
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
-            }
-
-            treetop = root;
-        }
+        DefaultMutableTreeNode treetop = js.isEmpty() ? null : planTree(
+                new HashSet<LogicalJoinNode>(js), pc, stats, selectivities);
 
         JTree tree = new JTree(treetop);
         JScrollPane treeView = new JScrollPane(tree);
@@ -592,4 +1238,38 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Build the tree of the best plan for the joins s in pc: the last join
+     * of the plan, with the trees of the subplans or base tables it reads.
+     */
+    private DefaultMutableTreeNode planTree(Set<LogicalJoinNode> s,
+            PlanCache pc, HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities) {
+        LogicalJoinNode j = pc.getOrder(s).lastElement();
+        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Join " + j
+                + " (Cost =" + pc.getCost(s) + ", card = " + pc.getCard(s)
+                + ")");
+        Set<LogicalJoinNode> outer = pc.getOuter(s);
+        Set<LogicalJoinNode> inner = pc.getInner(s);
+        root.add(outer == null || outer.isEmpty() ? tableNode(j.t1Alias,
+                stats, selectivities) : planTree(outer, pc, stats,
+                selectivities));
+        root.add(inner == null || inner.isEmpty() ? tableNode(j.t2Alias,
+                stats, selectivities) : planTree(inner, pc, stats,
+                selectivities));
+        return root;
+    }
+
+    private DefaultMutableTreeNode tableNode(String alias,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities) {
+        if (alias == null)
+            return new DefaultMutableTreeNode("Subplan");
+        TableStats s = stats.get(Database.getCatalog().getTableName(
+                this.p.getTableId(alias)));
+        return new DefaultMutableTreeNode(alias + " (Cost = "
+                + p.estimateAccessCost(alias, s) + ", card = "
+                + s.estimateTableCardinality(selectivities.get(alias)) + ")");
+    }
+
 }
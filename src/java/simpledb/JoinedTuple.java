@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinedTuple is the output tuple of a join: a read-only view over the two
+ * input tuples, where fields [0, n1) are those of the left tuple and the
+ * remaining fields are those of the right tuple. Nothing is copied when the
+ * view is created, so high fan-out joins do not pay for copying every field
+ * of every match.
+ * <p>
+ * Calling {@link #setField} or {@link #resetTupleDesc} turns the view into an
+ * ordinary tuple with its own copy of the fields. {@link #materialize}
+ * returns such a copy without changing the view.
+ */
+public class JoinedTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Tuple left;
+    private final Tuple right;
+    private final int leftFields;
+    // set once the view has been written to
+    private Tuple copy = null;
+
+    /**
+     * Create a view of left joined with right.
+     *
+     * @param td
+     *            the merged schema of left and right
+     * @param left
+     *            the tuple providing the first fields
+     * @param right
+     *            the tuple providing the remaining fields
+     */
+    public JoinedTuple(TupleDesc td, Tuple left, Tuple right) {
+        super(td, null);
+        this.left = left;
+        this.right = right;
+        this.leftFields = left.getTupleDesc().numFields();
+    }
+
+    public Field getField(int i) {
+        if (copy != null)
+            return copy.getField(i);
+        return i < leftFields ? left.getField(i) : right.getField(i - leftFields);
+    }
+
+    public void setField(int i, Field f) {
+        if (copy == null)
+            copy = materialize();
+        copy.setField(i, f);
+    }
+
+    public TupleDesc getTupleDesc() {
+        if (copy != null)
+            return copy.getTupleDesc();
+        return super.getTupleDesc();
+    }
+
+    public void resetTupleDesc(TupleDesc td) {
+        copy = new Tuple(td);
+    }
+
+    public Tuple materialize() {
+        if (copy != null)
+            return copy;
+        TupleDesc td = getTupleDesc();
+        ArrayList<Field> fields = new ArrayList<Field>(td.numFields());
+        for (int i = 0; i < td.numFields(); i++)
+            fields.add(getField(i));
+        Tuple t = new Tuple(td, fields);
+        t.setRecordId(getRecordId());
+        return t;
+    }
+
+    public Iterator<Field> fields() {
+        final int n = getTupleDesc().numFields();
+        return new Iterator<Field>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < n;
+            }
+
+            public Field next() {
+                if (i >= n)
+                    throw new NoSuchElementException();
+                return getField(i++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int n = getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                sb.append('\t');
+            sb.append(getField(i));
+        }
+        return sb.toString();
+    }
+}
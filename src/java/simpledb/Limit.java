@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit implements a LIMIT clause without ORDER BY: it returns the first n
+ * tuples of its child and then stops reading it.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private int limit;
+    private int returned = 0;
+
+    /**
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to return the first of
+     */
+    public Limit(int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /** @return the maximum number of tuples returned */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned < limit && child.hasNext()) {
+            returned++;
+            return child.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
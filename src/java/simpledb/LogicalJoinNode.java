@@ -23,6 +23,14 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The join algorithm the optimizer found cheapest, or null if the join
+     * was not costed (see {@link JoinOptimizer#instantiateJoin}) */
+    JoinOptimizer.JoinMethod method;
+
+    /** The estimated cardinalities of the outer and inner sides, or -1 if
+     * the join was not costed */
+    int card1 = -1, card2 = -1;
+
     public LogicalJoinNode() {
     }
 
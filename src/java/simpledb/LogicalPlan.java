@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -29,13 +30,16 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private Vector<Double> aggPercentiles = new Vector<Double>();
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = NO_LIMIT;
     private String query;
+    private QueryPlanCache.CachedPlan choices = null;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -105,6 +109,130 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Return true if at least one filter was added via {@link #addFilter}
+        on the table with the given alias.
+    */
+    boolean hasFilter(String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                return true;
+        }
+        return false;
+    }
+
+    /** Return the filter on the table with the given alias that is best
+        answered by a range scan of the table's BTree index, or null if the
+        table is not stored in a BTreeFile, has no filter on its key field
+        that an {@link IndexPredicate} can express, or a full scan is
+        estimated to be cheaper.
+        @param s the statistics of the table, or null if there are none
+    */
+    LogicalFilterNode chooseIndexFilter(String alias, TableStats s) {
+        Integer tableId = getTableId(alias);
+        if (s == null || tableId == null)
+            return null;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            return null;
+
+        LogicalFilterNode best = null;
+        double bestCost = s.estimateScanCost();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias))
+                continue;
+            double cost = estimateIndexScanCost((BTreeFile) file, lf, s);
+            if (cost < bestCost) {
+                best = lf;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /** Return the selectivity of every filter of this plan, in order, as
+        estimated with the given statistics, or null if a filter cannot be
+        estimated.
+    */
+    double[] filterSelectivities(Map<String,TableStats> baseTableStats) {
+        double[] sels = new double[filters.size()];
+        for (int i = 0; i < sels.length; i++) {
+            LogicalFilterNode lf = filters.get(i);
+            Integer tableId = getTableId(lf.tableAlias);
+            if (tableId == null)
+                return null;
+            TableStats s = baseTableStats.get(Database.getCatalog().getTableName(tableId));
+            if (s == null)
+                return null;
+            try {
+                TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+                int field = td.fieldNameToIndex(lf.fieldPureName);
+                Field f = filterConstant(lf, td.getFieldType(field));
+                sels[i] = s.estimateSelectivity(field, lf.p, f);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        return sels;
+    }
+
+    /** Estimate the cost of reading the table with the given alias through
+        the cheapest access path: a full scan, or a range scan of its BTree
+        index on the filter chosen by {@link #chooseIndexFilter}.
+    */
+    double estimateAccessCost(String alias, TableStats s) {
+        LogicalFilterNode lf = chooseIndexFilter(alias, s);
+        if (lf == null)
+            return s.estimateScanCost();
+        BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                getTableId(alias));
+        return estimateIndexScanCost(file, lf, s);
+    }
+
+    /** Estimate the cost of answering lf with a range scan of file, or
+        return Double.MAX_VALUE if lf is not a sargable predicate on the key
+        field of file.
+    */
+    private static double estimateIndexScanCost(BTreeFile file,
+            LogicalFilterNode lf, TableStats s) {
+        if (!isIndexOp(lf.p))
+            return Double.MAX_VALUE;
+        TupleDesc td = file.getTupleDesc();
+        int field;
+        try {
+            field = td.fieldNameToIndex(lf.fieldPureName);
+        } catch (NoSuchElementException e) {
+            return Double.MAX_VALUE;
+        }
+        if (field != file.keyField())
+            return Double.MAX_VALUE;
+        Field f = filterConstant(lf, td.getFieldType(field));
+        return s.estimateIndexScanCost(s.estimateSelectivity(field, lf.p, f));
+    }
+
+    /** Return true if a BTree index scan can return exactly the tuples
+        satisfying "key op constant".
+    */
+    private static boolean isIndexOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** Convert the constant of lf into a field of the given type. */
+    private static Field filterConstant(LogicalFilterNode lf, Type type) {
+        if (type == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -175,6 +303,16 @@ public class LogicalPlan {
      * @throws ParsingException 
     */
     public void addProjectField(String fname, String aggOp) throws ParsingException {
+        addProjectField(fname, aggOp, Accumulator.MEDIAN);
+    }
+
+    /** Add a specified field/aggregate combination to the select list of the query.
+        @param fname the field to add to the output
+        @param aggOp the aggregate operation over the field.
+        @param percentile the fraction of an APPROX_PERCENTILE aggregate
+     * @throws ParsingException 
+    */
+    public void addProjectField(String fname, String aggOp, double percentile) throws ParsingException {
         fname=disambiguateName(fname);
         if (fname.equals("*"))
             fname="null.*";
@@ -182,38 +320,95 @@ public class LogicalPlan {
         if (aggOp != null) {
             System.out.println("\t with aggregator " + aggOp);
         }
-        selectList.addElement(new LogicalSelectListNode(aggOp, fname));
+        selectList.addElement(new LogicalSelectListNode(aggOp, fname, percentile));
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Equivalent to {@link #addGroupBy} on gfield (unless
+        it is null or already grouped by) followed by {@link
+        #addAggregate(String, String)}.
         @param op the aggregation operator
         @param afield the field to aggregate over
         @param gfield the field to group by
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        if (gfield != null && !groupByFields.contains(disambiguateName(gfield)))
+            addGroupBy(gfield);
+        addAggregate(op, afield);
+    }
+
+    /** Add an aggregate over the field to the query.  All aggregates are
+        computed in a single pass, over the groups given by {@link
+        #addGroupBy}.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or "*" for COUNT(*)
+     * @throws ParsingException if afield is "*" and op is not COUNT
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        addAggregate(op, afield, Accumulator.MEDIAN);
+    }
+
+    /** Add an aggregate over the field to the query, with a percentile.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or "*" for COUNT(*)
+        @param percentile the fraction in [0, 1] estimated by an
+        APPROX_PERCENTILE aggregate, ignored by other operators
+     * @throws ParsingException if afield is "*" and op is not COUNT, or
+        percentile is not in [0, 1]
+    */
+    public void addAggregate(String op, String afield, double percentile) throws ParsingException {
+        if (afield.equals("*")) {
+            if (getAggOp(op) != Aggregator.Op.COUNT)
+                throw new ParsingException("Only COUNT can aggregate *");
+        } else {
+            afield = disambiguateName(afield);
+        }
+        if (!(percentile >= 0 && percentile <= 1))
+            throw new ParsingException("Percentile " + percentile + " is not in [0, 1]");
+        aggOps.add(op);
+        aggFields.add(afield);
+        aggPercentiles.add(percentile);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.  Groups are
+        the distinct combinations of values of all fields added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        groupByFields.add(disambiguateName(gfield));
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields added
+        by later calls break ties of the earlier ones.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAsc.add(asc);
+    }
+
+    /** Value of {@link #getLimit} for plans without a LIMIT clause */
+    public static final int NO_LIMIT = -1;
+
+    /** Add a LIMIT clause: return only the first n result tuples (in the
+     *  order given by the ORDER BY clause, if any).
+     *  @throws ParsingException if n is negative
+     */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("Invalid LIMIT " + n);
+        limit = n;
+    }
+
+    /** @return the LIMIT of the plan, or {@link #NO_LIMIT} */
+    public int getLimit() {
+        return limit;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -268,6 +463,9 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("COUNT_DISTINCT")) return Aggregator.Op.COUNT_DISTINCT;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
+        if (s.equals("APPROX_PERCENTILE")) return Aggregator.Op.APPROX_PERCENTILE;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -285,16 +483,63 @@ public class LogicalPlan {
      *  @return A OpIterator representing this plan.
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        return physicalPlan(t, baseTableStats, explain, null);
+    }
+
+    /** Return the decisions made by the optimizer during the last call to
+     *  {@link #physicalPlan}, which a {@link QueryPlanCache} can replay for
+     *  another query of the same shape, or null if the plan contains a
+     *  subquery or the decisions were themselves replayed.
+     */
+    QueryPlanCache.CachedPlan getPlanChoices() {
+        return choices;
+    }
+
+    /** Convert this LogicalPlan into a physicalPlan like {@link
+     *  #physicalPlan(TransactionId, Map, boolean)}, but if cached is not
+     *  null, scan tables and order the joins as recorded in cached rather
+     *  than optimizing the plan.
+     */
+    OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            QueryPlanCache.CachedPlan cached) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // filters answered by an index scan rather than by a Filter
+        HashSet<LogicalFilterNode> indexFilters = new HashSet<LogicalFilterNode>();
+        HashMap<String,Integer> indexFilterPositions = new HashMap<String,Integer>();
+        choices = null;
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                // BTree tables are scanned through the index, either as a
+                // range scan answering their most selective key filter or
+                // unrestricted so that joins can later probe them (see
+                // JoinOptimizer.instantiateJoin)
+                if (file instanceof BTreeFile) {
+                    LogicalFilterNode lf;
+                    if (cached == null)
+                        lf = chooseIndexFilter(table.alias,
+                                baseTableStats.get(Database.getCatalog().getTableName(table.t)));
+                    else if (cached.indexFilters.containsKey(table.alias))
+                        lf = filters.get(cached.indexFilters.get(table.alias));
+                    else
+                        lf = null;
+                    IndexPredicate ipred = null;
+                    if (lf != null) {
+                        Type type = file.getTupleDesc().getFieldType(
+                                ((BTreeFile) file).keyField());
+                        ipred = new IndexPredicate(lf.p, filterConstant(lf, type));
+                        indexFilters.add(lf);
+                        indexFilterPositions.put(table.alias, filters.indexOf(lf));
+                    }
+                    ss = new BTreeScan(t, file.getId(), table.alias, ipred);
+                } else
+                    ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -323,10 +568,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -334,7 +576,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (cached != null)
+                continue;
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -346,7 +591,17 @@ public class LogicalPlan {
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (cached != null) {
+            joins = new Vector<LogicalJoinNode>(cached.joins);
+        } else {
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            boolean hasSubplan = false;
+            for (LogicalJoinNode lj : joins)
+                hasSubplan |= lj instanceof LogicalSubplanJoinNode;
+            if (!hasSubplan)
+                choices = new QueryPlanCache.CachedPlan(joins, indexFilterPositions,
+                        tableMap, statsMap, filterSelectivities(statsMap));
+        }
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
@@ -414,28 +669,38 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                String fname = disambiguateName(si.fname);
+                if (!fname.equals("*")) {
+                    TupleDesc td = node.getTupleDesc();
+                    try {
+                        td.fieldNameToIndex(si.fname);
+                    } catch (NoSuchElementException e) {
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                    }
                 }
+                int agg = -1;
+                for (int j = 0; j < aggOps.size() && agg == -1; j++) {
+                    if (aggOps.get(j).equalsIgnoreCase(si.aggOp) && aggFields.get(j).equals(fname)
+                            && aggPercentiles.get(j) == si.percentile)
+                        agg = j;
+                }
+                if (agg == -1)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + fname + ") in SELECT list was not added to the plan");
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(disambiguateName(si.fname));
+                    if (g == -1) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(groupByFields.get(g));
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  groupByFields.get(g) + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +727,30 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                double[] percentiles = new double[aggOps.size()];
+                boolean distinct = false;
+                for (int i = 0; i < afields.length; i++) {
+                    // COUNT(*) counts tuples, so any field will do
+                    afields[i] = aggFields.get(i).equals("*") ? 0
+                            : td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                    percentiles[i] = aggPercentiles.get(i);
+                    distinct |= ops[i] == Aggregator.Op.COUNT_DISTINCT;
+                }
+                // input ordered on the group-by fields, e.g. by a BTree
+                // index, is aggregated one group at a time, unless distinct
+                // values have to be sorted as well
+                if (!distinct && StreamAggregate.isOrderedOn(node, gfields))
+                    aggNode = new StreamAggregate(node, afields, ops,
+                            percentiles, gfields);
+                else
+                    aggNode = new Aggregate(node, afields, ops, percentiles,
+                            gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,9 +759,28 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                try {
+                    fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                asc[i] = oByAsc.get(i);
+            }
+            SortOrder order = new SortOrder(fields, asc);
+            // a heap of the first tuples is cheaper than sorting everything,
+            // as long as it fits in the memory a sort may use
+            if (limit != NO_LIMIT && (long) limit * node.getTupleDesc().getSize()
+                    <= ExternalSort.DEFAULT_MEMORY_BUDGET)
+                node = new TopN(order, limit, node);
+            else
+                node = new OrderBy(order, node);
         }
+        if (limit != NO_LIMIT && !(node instanceof TopN))
+            node = new Limit(limit, node);
 
         return new Project(outFields, outTypes, node);
     }
@@ -12,8 +12,16 @@ public class LogicalSelectListNode {
     /** The aggregation operation over the field (if any) */
     public String aggOp;
 
+    /** The fraction estimated by an APPROX_PERCENTILE aggregation */
+    public double percentile;
+
     public LogicalSelectListNode(String aggOp, String fname) {
+        this(aggOp, fname, Accumulator.MEDIAN);
+    }
+
+    public LogicalSelectListNode(String aggOp, String fname, double percentile) {
         this.aggOp = aggOp;
         this.fname = fname;
+        this.percentile = percentile;
     }
 }
@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Materialize reads all tuples of its child when it is opened, and then
+ * returns them again on every pass, so rewinding it does not re-execute the
+ * child. It is placed on the inner side of nested loops joins whose inner
+ * input is not a base table scan (the result of other joins or a subquery),
+ * which would otherwise be recomputed for every outer tuple.
+ * <p>
+ * Tuples are held in memory up to the memory budget, estimated as their
+ * size on the heap (see {@link Tuple#estimateHeapSize}); the remaining
+ * tuples are written to a temporary file in the run format of
+ * {@link ExternalSort}, and read back after the ones in memory.
+ */
+public class Materialize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private OpIterator child;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private ArrayList<Tuple> tuples = null;
+    private int pos = 0;
+
+    // the tuples past the memory budget, and the reader of the current pass
+    private File spill = null;
+    private DataInputStream spillIn = null;
+    private byte[] buf;
+
+    /**
+     * @param child
+     *            The child operator whose tuples to hold in memory
+     */
+    public Materialize(OpIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * Set the number of bytes of tuples held in memory; the rest are written
+     * to a temporary file. Takes effect the next time the operator is
+     * opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /** @return true if the last open wrote tuples to a temporary file */
+    boolean isSpilled() {
+        return spill != null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        closeSpill();
+        TupleDesc td = child.getTupleDesc();
+        long tupleSize = Tuple.estimateHeapSize(td);
+        long memoryUsed = 0;
+        tuples = new ArrayList<Tuple>();
+        child.open();
+        try {
+            while (memoryUsed < memoryBudget && child.hasNext()) {
+                tuples.add(child.next());
+                memoryUsed += tupleSize;
+            }
+            if (child.hasNext())
+                writeSpill(td);
+        } finally {
+            child.close();
+        }
+        buf = new byte[td.getSize()];
+        pos = 0;
+        openSpill();
+        super.open();
+    }
+
+    /** Write the remaining tuples of the child to a new temporary file. */
+    private void writeSpill(TupleDesc td) throws DbException,
+            TransactionAbortedException {
+        spill = ExternalSort.newRunFile();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(spill),
+                            BufferPool.getPageSize()));
+            try {
+                while (child.hasNext())
+                    ExternalSort.writeTuple(out, child.next(), td);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            closeSpill();
+            throw new DbException("could not write materialized tuples: " + e);
+        }
+    }
+
+    private void openSpill() throws DbException {
+        if (spill == null)
+            return;
+        try {
+            spillIn = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill), BufferPool.getPageSize()));
+        } catch (FileNotFoundException e) {
+            throw new DbException("materialized tuples disappeared: " + e);
+        }
+    }
+
+    private void closeSpill() {
+        if (spillIn != null) {
+            try {
+                spillIn.close();
+            } catch (IOException e) {
+            }
+            spillIn = null;
+        }
+        if (spill != null)
+            spill.delete();
+        spill = null;
+    }
+
+    public void close() {
+        super.close();
+        tuples = null;
+        closeSpill();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+        if (spillIn != null) {
+            try {
+                spillIn.close();
+            } catch (IOException e) {
+            }
+            spillIn = null;
+        }
+        openSpill();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        if (pos < tuples.size())
+            return tuples.get(pos++);
+        if (spillIn != null)
+            return ExternalSort.readTuple(spillIn, getTupleDesc(), buf);
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (this.child != children[0])
+            this.child = children[0];
+    }
+}
@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The most common values of a field and how many times each occurs. Skewed
+ * fields are poorly described by a histogram alone: a handful of hot values
+ * can hold most of the tuples, and spreading them over a bucket both
+ * underestimates predicates on them and overestimates predicates on the other
+ * values of the bucket. {@link TableStats} therefore keeps the most common
+ * values of each field apart, and describes only the remaining values with an
+ * {@link EquiDepthHistogram}.
+ * <p>
+ * The values are found in one pass with a {@link Collector}.
+ */
+public class MostCommonValues implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The maximum number of values kept per field. */
+    public static final int MAX_VALUES = 32;
+
+    private final HashMap<Field, Integer> counts;
+    private int total;
+
+    private MostCommonValues(HashMap<Field, Integer> counts) {
+        this.counts = counts;
+        for (int c : counts.values())
+            total += c;
+    }
+
+    /** @return the number of values */
+    public int size() {
+        return counts.size();
+    }
+
+    /** @return true if v is one of the values */
+    public boolean contains(Field v) {
+        return counts.containsKey(v);
+    }
+
+    /** @return the values, in no particular order */
+    public Iterator<Field> values() {
+        return counts.keySet().iterator();
+    }
+
+    /** @return the number of occurrences of v, or 0 if v is not one of the values */
+    public int count(Field v) {
+        Integer c = counts.get(v);
+        return c == null ? 0 : c;
+    }
+
+    /** @return the total number of occurrences of all values */
+    public int total() {
+        return total;
+    }
+
+    /**
+     * @return the number of occurrences of the values that satisfy
+     *         <tt>value op constant</tt>
+     */
+    public int count(Predicate.Op op, Field constant) {
+        int n = 0;
+        for (Map.Entry<Field, Integer> e : counts.entrySet())
+            if (e.getKey().compare(op, constant))
+                n += e.getValue();
+        return n;
+    }
+
+    /**
+     * Adjust the count of a value after a tuple was inserted (delta > 0) or
+     * deleted (delta < 0).
+     *
+     * @return false if v is not one of the values, in which case nothing was
+     *         changed
+     */
+    boolean adjustValue(Field v, int delta) {
+        Integer c = counts.get(v);
+        if (c == null)
+            return false;
+        int n = Math.max(0, c + delta);
+        total += n - c;
+        counts.put(v, n);
+        return true;
+    }
+
+    /**
+     * Multiply every count by factor, e.g. to extrapolate the counts of a
+     * sample to the whole table.
+     */
+    void scale(double factor) {
+        total = 0;
+        for (Map.Entry<Field, Integer> e : counts.entrySet()) {
+            int n = (int) Math.round(e.getValue() * factor);
+            e.setValue(n);
+            total += n;
+        }
+    }
+
+    public String toString() {
+        return "MostCommonValues" + counts;
+    }
+
+    /**
+     * Finds the frequent values of a stream with a batched variant of the
+     * Misra-Gries algorithm: it keeps at most NUM_COUNTERS candidate values,
+     * and when a new value arrives with all counters in use, decrements every
+     * counter by the median count, dropping the counters that reach zero.
+     * The counts are thus underestimated by at most the total amount D the
+     * counters were decremented by, which is at most n / (NUM_COUNTERS / 2)
+     * for n values. As long as there are at most NUM_COUNTERS distinct
+     * values, all counts are exact.
+     * <p>
+     * Collectors that have seen disjoint parts of a table can be merged.
+     */
+    public static class Collector {
+
+        static final int NUM_COUNTERS = 8 * MAX_VALUES;
+
+        private final HashMap<Field, int[]> counters = new HashMap<Field, int[]>();
+        private int n = 0;
+        // set once counts were decremented, i.e. are no longer exact
+        private boolean truncated = false;
+        // total amount every counter was decremented by
+        private int decrements = 0;
+
+        /** Add a value to the stream. */
+        public void add(Field v) {
+            n++;
+            int[] c = counters.get(v);
+            if (c != null) {
+                c[0]++;
+            } else {
+                counters.put(v, new int[] { 1 });
+                if (counters.size() > NUM_COUNTERS)
+                    prune(NUM_COUNTERS / 2);
+            }
+        }
+
+        /** Add the values seen by another collector to this one. */
+        public void merge(Collector other) {
+            n += other.n;
+            truncated |= other.truncated;
+            decrements += other.decrements;
+            for (Map.Entry<Field, int[]> e : other.counters.entrySet()) {
+                int[] c = counters.get(e.getKey());
+                if (c != null)
+                    c[0] += e.getValue()[0];
+                else
+                    counters.put(e.getKey(), new int[] { e.getValue()[0] });
+            }
+            if (counters.size() > NUM_COUNTERS)
+                prune(NUM_COUNTERS);
+        }
+
+        /**
+         * Decrement every counter by the count of the (keep + 1)-th largest
+         * one, leaving at most keep counters.
+         */
+        private void prune(int keep) {
+            int[] sorted = new int[counters.size()];
+            int i = 0;
+            for (int[] c : counters.values())
+                sorted[i++] = c[0];
+            Arrays.sort(sorted);
+            int by = sorted[sorted.length - 1 - keep];
+            truncated = true;
+            decrements += by;
+            Iterator<int[]> it = counters.values().iterator();
+            while (it.hasNext()) {
+                int[] c = it.next();
+                c[0] -= by;
+                if (c[0] <= 0)
+                    it.remove();
+            }
+        }
+
+        /** @return the number of values added */
+        public int count() {
+            return n;
+        }
+
+        /**
+         * Pick the most common values. If the counts are exact and there are
+         * at most MAX_VALUES distinct values, all of them are kept. Otherwise
+         * the (up to MAX_VALUES) candidates whose counters show they occur
+         * noticeably more often than the average value are kept. A value that
+         * frequent has almost certainly held its counter since it first
+         * appeared, and was decremented with every other counter, so its
+         * count is taken to be its counter plus D.
+         *
+         * @param distinct
+         *            the estimated number of distinct values added
+         */
+        public MostCommonValues build(long distinct) {
+            HashMap<Field, Integer> counts = new HashMap<Field, Integer>();
+            if (!truncated && counters.size() <= MAX_VALUES) {
+                for (Map.Entry<Field, int[]> e : counters.entrySet())
+                    counts.put(e.getKey(), e.getValue()[0]);
+                return new MostCommonValues(counts);
+            }
+
+            ArrayList<Map.Entry<Field, int[]>> candidates = new ArrayList<Map.Entry<Field, int[]>>(
+                    counters.entrySet());
+            Collections.sort(candidates, new Comparator<Map.Entry<Field, int[]>>() {
+                public int compare(Map.Entry<Field, int[]> a,
+                        Map.Entry<Field, int[]> b) {
+                    return Integer.compare(b.getValue()[0], a.getValue()[0]);
+                }
+            });
+            double threshold = Math.max(2, 1.25 * n / Math.max(1, distinct));
+            for (Map.Entry<Field, int[]> e : candidates) {
+                if (counts.size() == MAX_VALUES || e.getValue()[0] < threshold)
+                    break;
+                counts.put(e.getKey(), e.getValue()[0] + decrements);
+            }
+            return new MostCommonValues(counts);
+        }
+    }
+}
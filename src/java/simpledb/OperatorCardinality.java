@@ -27,8 +27,18 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
+        } else if (o instanceof ParallelHashEquiJoin) {
+            ParallelHashEquiJoin j = (ParallelHashEquiJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            return updateIndexNestedLoopJoinCardinality(
+                    (IndexNestedLoopJoin) o, tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -47,6 +57,10 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof TopN)
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            else if (o instanceof Limit)
+                childC = Math.min(childC, ((Limit) o).getLimit());
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -144,7 +158,8 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
+    private static boolean updateHashEquiJoinCardinality(Operator j,
+            JoinPredicate pred, String joinField1Name, String joinField2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -154,10 +169,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -180,6 +195,9 @@ public class OperatorCardinality {
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof BTreeScan) {
+            child1Card = (int) (tableStats.get(((BTreeScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0));
         }
 
         if (child2 instanceof Operator) {
@@ -192,8 +210,60 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof BTreeScan) {
+            child2Card = (int) (tableStats.get(((BTreeScan) child2)
+                    .getTableName()).estimateTableCardinality(1.0));
+        }
+
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                pred.getOperator(), tableAlias1, tableAlias2,
+                pureFieldName1, pureFieldName2, child1Card, child2Card,
+                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
+        return child1HasJoinPK || child2HasJoinPK;
+    }
+
+    private static boolean updateIndexNestedLoopJoinCardinality(
+            IndexNestedLoopJoin j, Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+
+        OpIterator[] children = j.getChildren();
+        OpIterator child1 = children[0];
+        BTreeScan child2 = (BTreeScan) children[1];
+        int child1Card = 1;
+        int child2Card = 1;
+
+        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String tableAlias1 = tmp1[0];
+        String pureFieldName1 = tmp1[1];
+        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String tableAlias2 = tmp2[0];
+        String pureFieldName2 = tmp2[1];
+
+        boolean child1HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias1))
+                .equals(pureFieldName1);
+        boolean child2HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias2))
+                .equals(pureFieldName2);
+
+        if (child1 instanceof Operator) {
+            Operator child1O = (Operator) child1;
+            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
+                    tableStats);
+            child1HasJoinPK = pk || child1HasJoinPK;
+            child1Card = child1O.getEstimatedCardinality();
+            child1Card = child1Card > 0 ? child1Card : 1;
+        } else if (child1 instanceof SeqScan) {
+            child1Card = (int) (tableStats.get(((SeqScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof BTreeScan) {
+            child1Card = (int) (tableStats.get(((BTreeScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0));
         }
 
+        child2Card = (int) (tableStats.get(child2.getTableName())
+                .estimateTableCardinality(1.0));
+
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
                 .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
@@ -224,24 +294,27 @@ public class OperatorCardinality {
                     .estimateTableCardinality(1.0));
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // the number of groups is at most the product of the numbers of
+        // distinct values of the group fields
+        TupleDesc td = a.getTupleDesc();
+        double groups = 1.0;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = td.getFieldName(i).split("[.]");
+            Integer tableId = tmp.length == 2 ? tableAliasToId.get(tmp[0])
+                    : null;
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
+                                    .fieldNameToIndex(tmp[1]),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
         return hasJoinPK;
     }
 }
@@ -3,18 +3,23 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields.
+ * <p>
+ * The tuples are sorted by an {@link ExternalSort}, so inputs larger than
+ * the memory budget of the operator (see {@link #setMemoryBudget}) are
+ * sorted in runs on disk and merged. Large sorts use up to
+ * {@link #setParallelism} threads.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private SortOrder order;
+    private transient ExternalSort sort;
+    private long memoryBudget = ExternalSort.DEFAULT_MEMORY_BUDGET;
+    private int parallelism = ExternalSort.DEFAULT_PARALLELISM;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,50 +32,97 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new SortOrder(orderbyField, asc), child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting the tuples from the iterator on
+     * several fields.
+     * 
+     * @param order
+     *            the fields to sort on, and their directions.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(SortOrder order, OpIterator child) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.order = order;
     }
-    
+
+    public SortOrder getSortOrder() {
+        return this.order;
+    }
+
     public boolean isASC()
     {
-	return this.asc;
+	return order.isAscending(0);
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return order.getField(0);
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(order.getField(0));
     }
     
+    /**
+     * Set the number of bytes of tuples the sort may hold in memory; larger
+     * inputs are sorted in runs written to temporary files. Takes effect
+     * the next time the operator is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Set the number of threads the sort may use; 1 sorts in the thread
+     * that opens the operator. Takes effect the next time the operator is
+     * opened.
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = threads;
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        if (sort != null)
+            sort.close();
         child.open();
-        // load all the tuples in a collection, and sort it
+        sort = new ExternalSort(td, order, memoryBudget, parallelism);
         while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sort.add(child.next());
+        sort.finish();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (sort != null)
+            sort.close();
+        sort = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        sort.rewind();
     }
 
     /**
@@ -82,8 +134,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (sort != null && sort.hasNext()) {
+            return sort.next();
         } else
             return null;
     }
@@ -99,25 +151,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
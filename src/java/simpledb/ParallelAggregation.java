@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-phase aggregation of a sequential scan of a HeapFile, possibly under
+ * a chain of Filters.
+ * <p>
+ * The pages of the table are split into one contiguous range per worker.
+ * Every worker reads its pages straight from the buffer pool, applies the
+ * predicates of the filters, and aggregates the tuples that pass into a
+ * {@link HashAggregator} of its own, so workers share no state while
+ * scanning. The partial aggregates are then merged in page order, so
+ * groups come out in the order a sequential scan would first see them.
+ * <p>
+ * Every worker may hold every group, so the partials are only kept while
+ * the groups they hold altogether stay below a limit; beyond it, the
+ * aggregation is abandoned, the other workers are stopped, and the caller
+ * aggregates the scan sequentially, where groups can spill to disk. Tables
+ * whose statistics already estimate more groups than the limit are not
+ * attempted in parallel at all.
+ */
+class ParallelAggregation {
+
+    /** Tables with fewer pages than this per worker use fewer workers */
+    static final int MIN_PAGES_PER_WORKER = 16;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            ExternalSort.DEFAULT_PARALLELISM);
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final int numPages;
+    private final Predicate[] predicates;
+
+    private ParallelAggregation(TransactionId tid, int tableid, int numPages,
+            Predicate[] predicates) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.numPages = numPages;
+        this.predicates = predicates;
+    }
+
+    /**
+     * @return a parallel aggregation of the tuples of child, or null if
+     *         child is not a scan of a HeapFile under zero or more Filters,
+     *         or pushes runtime filters down from a join
+     */
+    static ParallelAggregation of(OpIterator child) {
+        ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+        while (child instanceof Filter) {
+            Filter f = (Filter) child;
+            if (f.hasRuntimeFilter())
+                return null;
+            predicates.add(f.getPredicate());
+            child = f.getChildren()[0];
+        }
+        if (!(child instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) child;
+        if (scan.hasRuntimeFilter())
+            return null;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof HeapFile))
+            return null;
+        return new ParallelAggregation(scan.getTransactionId(),
+                scan.getTableId(), ((HeapFile) file).numPages(),
+                predicates.toArray(new Predicate[predicates.size()]));
+    }
+
+    /**
+     * @return the number of workers the table is split among, given the
+     *         number of threads that may be used
+     */
+    int workers(int parallelism) {
+        return Math.max(1, Math.min(parallelism, numPages / MIN_PAGES_PER_WORKER));
+    }
+
+    /**
+     * @return the number of groups of the table on the given fields, as
+     *         estimated from its statistics, or -1 if it has none
+     */
+    long estimateGroups(int[] gbfields) {
+        TableStats stats = TableStats.getTableStats(Database.getCatalog()
+                .getTableName(tableid));
+        if (stats == null)
+            return -1;
+        long groups = 1;
+        for (int f : gbfields)
+            groups = Math.min(groups * Math.max(1, stats.numDistinctValues(f)),
+                    Math.max(1, stats.totalTuples()));
+        return groups;
+    }
+
+    /**
+     * Aggregate the table.
+     *
+     * @param percentiles
+     *            the fraction of every APPROX_PERCENTILE aggregate, or null
+     * @param parallelism
+     *            the number of threads that may be used
+     * @param maxGroups
+     *            the number of groups all workers together may hold
+     * @return the aggregate of all the tuples that pass the filters, or
+     *         null if an aggregate cannot be combined from partial ones, the
+     *         table is estimated to have more than maxGroups groups, or the
+     *         workers held more than maxGroups groups
+     */
+    HashAggregator aggregate(final int[] gbfields, final Type[] gbtypes,
+            final int[] afields, final Type[] atypes,
+            final Aggregator.Op[] ops, final double[] percentiles,
+            int parallelism, final long maxGroups)
+            throws DbException, TransactionAbortedException {
+        for (Aggregator.Op op : ops)
+            if (!Accumulator.combinable(op))
+                return null;
+        if (estimateGroups(gbfields) > maxGroups)
+            return null;
+        int workers = workers(parallelism);
+        final AtomicLong groups = new AtomicLong();
+        // set once the result of the workers is no longer needed
+        final AtomicBoolean stop = new AtomicBoolean();
+        ArrayList<Future<HashAggregator>> tasks = new ArrayList<Future<HashAggregator>>();
+        for (int w = 0; w < workers; w++) {
+            final int from = (int) ((long) numPages * w / workers);
+            final int to = (int) ((long) numPages * (w + 1) / workers);
+            tasks.add(pool.submit(new Callable<HashAggregator>() {
+                public HashAggregator call() throws DbException,
+                        TransactionAbortedException {
+                    HashAggregator partial = new HashAggregator(gbfields,
+                            gbtypes, afields, atypes, ops, percentiles);
+                    for (int i = from; i < to; i++) {
+                        if (stop.get() || groups.get() > maxGroups)
+                            return null;
+                        HeapPage page = (HeapPage) Database.getBufferPool()
+                                .getPage(tid, new HeapPageId(tableid, i),
+                                        Permissions.READ_ONLY);
+                        Iterator<Tuple> it = page.iterator();
+                        while (it.hasNext()) {
+                            Tuple t = it.next();
+                            if (!passes(t))
+                                continue;
+                            int before = partial.numGroups();
+                            partial.mergeTupleIntoGroup(t);
+                            if (partial.numGroups() > before
+                                    && groups.incrementAndGet() > maxGroups)
+                                return null;
+                        }
+                    }
+                    return partial;
+                }
+            }));
+        }
+
+        HashAggregator result = null;
+        boolean abandoned = false;
+        Exception failure = null;
+        try {
+            for (Future<HashAggregator> task : tasks) {
+                if (abandoned || failure != null) {
+                    task.cancel(false);
+                    continue;
+                }
+                try {
+                    HashAggregator partial = task.get();
+                    if (partial == null)
+                        abandoned = true;
+                    else if (result == null)
+                        result = partial;
+                    else
+                        result.merge(partial);
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception
+                            ? (Exception) e.getCause()
+                            : new DbException("could not aggregate: "
+                                    + e.getCause());
+                } catch (CancellationException e) {
+                    failure = new DbException("aggregation cancelled");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new DbException("interrupted while aggregating");
+                }
+                if (abandoned || failure != null)
+                    stop.set(true);
+            }
+        } catch (RuntimeException e) {
+            stop.set(true);
+            throw e;
+        } finally {
+            // workers that are still running stop at their next page
+            if (stop.get()) {
+                for (Future<HashAggregator> task : tasks)
+                    task.cancel(false);
+            }
+        }
+        if (failure instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) failure;
+        if (failure instanceof DbException)
+            throw (DbException) failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+        return abandoned ? null : result;
+    }
+
+    /** @return true if t passes the predicates of all the filters */
+    private boolean passes(Tuple t) {
+        for (Predicate p : predicates)
+            if (!p.filter(t))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,504 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A hash equi-join that spreads its work over all available cores.
+ * <p>
+ * Both inputs are hash-partitioned on their join field into the same number
+ * of partitions, so a probe tuple only ever has to look at the build table of
+ * its own partition. The build tables are constructed in parallel, one task
+ * per partition. The probe side is read by a feeder thread that collects
+ * tuples into per-partition batches and hands every full batch to the shared
+ * pool, where it is probed concurrently with the other batches. Feeder
+ * threads block on the consumer, so they come from a separate pool of their
+ * own, where they are reused across runs.
+ * <p>
+ * The matches of every probe batch are returned to the consumer through a
+ * bounded queue, and joined tuples are only created as the consumer reads
+ * them, so a slow consumer throttles the feeder rather than letting results
+ * pile up.
+ * <p>
+ * Probe tasks only read the (immutable) build tables and never block, so
+ * parallel joins can be nested in the same plan without starving the pool.
+ * <p>
+ * Once the build tables are complete, a {@link RuntimeFilter} over the build
+ * keys is pushed down into the probe side.
+ * <p>
+ * The build side (child1) is held in memory as long as it fits in the memory
+ * budget (see {@link #setMemoryBudget}); a larger one is joined by a
+ * {@link HashEquiJoin} instead, which reads it in chunks. The output order is
+ * not deterministic.
+ */
+public class ParallelHashEquiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of partitions, one per core. */
+    public static final int DEFAULT_PARTITIONS = Runtime.getRuntime()
+            .availableProcessors();
+    /** Number of probe tuples handed to a pool task at once. */
+    public static final int BATCH_SIZE = 1024;
+    /** Maximum number of probe batches in flight or waiting to be consumed. */
+    public static final int MAX_PENDING_BATCHES = 4 * DEFAULT_PARTITIONS;
+    /** Default memory budget of the build tables, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    /**
+     * Joins whose inputs are estimated to hold fewer tuples than this
+     * together are not worth the threads of a parallel join, and are
+     * executed by a {@link HashEquiJoin} (see
+     * {@link JoinOptimizer#instantiateJoin}). The build side of such joins
+     * always fits in one chunk of a HashEquiJoin.
+     */
+    public static final int PARALLEL_THRESHOLD = 10000;
+    /** Estimated bytes of hash table entries per build tuple */
+    static final int ENTRY_OVERHEAD = 48;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            DEFAULT_PARTITIONS);
+
+    private static final ExecutorService feeders = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "hash-join-feeder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final JoinPredicate pred;
+    private final int partitions;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    // per-partition build tables; never modified once open() returns
+    transient private List<Map<Field, List<Tuple>>> tables = null;
+    transient private ProbeRun run = null;
+    transient private Iterator<Match> batchIt = null;
+    // the match being returned, and the next of its build tuples
+    transient private Match match = null;
+    transient private int nextBuild = 0;
+    // joins a build side larger than the memory budget, or null
+    transient private HashEquiJoin fallback = null;
+
+    /**
+     * Constructor. Uses one partition per available core.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(build) relation to join
+     * @param child2
+     *            Iterator for the right(probe) relation to join
+     */
+    public ParallelHashEquiJoin(JoinPredicate p, OpIterator child1,
+            OpIterator child2) {
+        this(p, child1, child2, DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(build) relation to join
+     * @param child2
+     *            Iterator for the right(probe) relation to join
+     * @param partitions
+     *            The number of partitions to split both inputs into
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality or partitions < 1
+     */
+    public ParallelHashEquiJoin(JoinPredicate p, OpIterator child1,
+            OpIterator child2, int partitions) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash join requires an equality predicate");
+        if (partitions < 1)
+            throw new IllegalArgumentException("partitions must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.partitions = partitions;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Set the number of bytes the build tables may use in memory; a larger
+     * build side is joined by a {@link HashEquiJoin}. Takes effect the next
+     * time the operator is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * @return the estimated bytes of memory a build table takes per tuple of
+     *         the given schema
+     */
+    static long estimateBuildSize(TupleDesc td) {
+        return Tuple.estimateHeapSize(td) + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * @return true if the build side did not fit in the memory budget, and
+     *         is joined by a {@link HashEquiJoin}
+     */
+    boolean isFallback() {
+        return fallback != null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * Map a join value to its partition. The hash is mixed first since
+     * IntField hashes to its own value, and join keys are often sequential.
+     */
+    int partitionOf(Field f) {
+        int h = f.hashCode() * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), partitions);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        if (build()) {
+            run = new ProbeRun();
+            run.start();
+        } else {
+            child2.close();
+            child1.close();
+            fallback = new HashEquiJoin(pred, child1, child2);
+            fallback.open();
+        }
+        super.open();
+    }
+
+    /**
+     * Drain child1, split it into partitions and build the hash table of every
+     * partition in parallel.
+     *
+     * @return false, having built nothing, if child1 does not fit in the
+     *         memory budget
+     */
+    private boolean build() throws DbException, TransactionAbortedException {
+        final int f1 = pred.getField1();
+        final List<List<Tuple>> parts = new ArrayList<List<Tuple>>(partitions);
+        for (int i = 0; i < partitions; i++)
+            parts.add(new ArrayList<Tuple>());
+        long tupleSize = estimateBuildSize(child1.getTupleDesc());
+        long size = 0;
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            size += tupleSize;
+            if (size > memoryBudget)
+                return false;
+            parts.get(partitionOf(t.getField(f1))).add(t);
+        }
+
+        List<Callable<Map<Field, List<Tuple>>>> tasks =
+                new ArrayList<Callable<Map<Field, List<Tuple>>>>(partitions);
+        for (final List<Tuple> part : parts) {
+            tasks.add(new Callable<Map<Field, List<Tuple>>>() {
+                public Map<Field, List<Tuple>> call() {
+                    Map<Field, List<Tuple>> table = new HashMap<Field, List<Tuple>>();
+                    for (Tuple t : part) {
+                        Field key = t.getField(f1);
+                        List<Tuple> l = table.get(key);
+                        if (l == null) {
+                            l = new ArrayList<Tuple>();
+                            table.put(key, l);
+                        }
+                        l.add(t);
+                    }
+                    return table;
+                }
+            });
+        }
+
+        List<Map<Field, List<Tuple>>> built =
+                new ArrayList<Map<Field, List<Tuple>>>(partitions);
+        try {
+            for (Future<Map<Field, List<Tuple>>> f : pool.invokeAll(tasks))
+                built.add(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while building hash tables");
+        } catch (ExecutionException e) {
+            throw new DbException("failed to build hash tables: " + e.getCause());
+        }
+        tables = built;
+
+        // let the probe side skip tuples that cannot match any partition
+        int numKeys = 0;
+        for (Map<Field, List<Tuple>> table : built)
+            numKeys += table.size();
+        RuntimeFilter filter = new RuntimeFilter(numKeys);
+        for (Map<Field, List<Tuple>> table : built)
+            for (Field key : table.keySet())
+                filter.add(key);
+        RuntimeFilter.pushDown(child2, pred.getField2(), filter);
+        return true;
+    }
+
+    public void close() {
+        super.close();
+        stopRun();
+        batchIt = null;
+        match = null;
+        tables = null;
+        if (fallback != null) {
+            fallback.close();
+            fallback = null;
+            return;
+        }
+        RuntimeFilter.pushDown(child2, pred.getField2(), null);
+        child2.close();
+        child1.close();
+    }
+
+    /**
+     * Restart the probe side; the build tables are kept, so child1 is not
+     * read again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (fallback != null) {
+            fallback.close();
+            fallback.open();
+            return;
+        }
+        stopRun();
+        batchIt = null;
+        match = null;
+        child2.rewind();
+        run = new ProbeRun();
+        run.start();
+    }
+
+    private void stopRun() {
+        if (run != null) {
+            run.cancel();
+            run = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As in {@link HashEquiJoin}, the result is the concatenation
+     * of the matching tuples from child1 and child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (fallback != null)
+            return fallback.hasNext() ? fallback.next() : null;
+        while (match == null || nextBuild == match.builds.size()) {
+            while (batchIt == null || !batchIt.hasNext()) {
+                batchIt = null;
+                List<Match> batch = run.take();
+                if (batch == null)
+                    return null;
+                batchIt = batch.iterator();
+            }
+            match = batchIt.next();
+            nextBuild = 0;
+        }
+        return new JoinedTuple(comboTD, match.builds.get(nextBuild++),
+                match.probe);
+    }
+
+    /** A probe tuple and the build tuples it joins with. */
+    private static class Match {
+        final Tuple probe;
+        final List<Tuple> builds;
+
+        Match(Tuple probe, List<Tuple> builds) {
+            this.probe = probe;
+            this.builds = builds;
+        }
+    }
+
+    /** Marks the end of the output of a probe run. */
+    private static final List<Match> END = Collections.emptyList();
+
+    /**
+     * One pass over the probe side. Each rewind gets a fresh run, so stray
+     * tasks of a cancelled run can only ever touch that run's queue.
+     */
+    private class ProbeRun implements Runnable {
+        private final List<Map<Field, List<Tuple>>> tables =
+                ParallelHashEquiJoin.this.tables;
+        private final int f2 = pred.getField2();
+        private final OpIterator child2 = ParallelHashEquiJoin.this.child2;
+
+        // one permit per batch that is being probed or waiting in the queue,
+        // so the queue never holds more than the permits and the END marker
+        private final Semaphore pending = new Semaphore(MAX_PENDING_BATCHES);
+        private final BlockingQueue<List<Match>> out =
+                new ArrayBlockingQueue<List<Match>>(MAX_PENDING_BATCHES + 1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        // the feeder thread while it runs this run, guarded by this
+        private Thread feeder = null;
+        private volatile boolean cancelled = false;
+        private volatile Throwable error = null;
+
+        void start() {
+            feeders.execute(this);
+        }
+
+        /** Stop the feeder, and wait until it has finished. */
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (feeder != null)
+                    feeder.interrupt();
+            }
+            boolean interrupted = false;
+            while (done.getCount() > 0) {
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /**
+         * @return the next batch of matches, or null at the end of the probe
+         *         side
+         */
+        List<Match> take() throws DbException, TransactionAbortedException {
+            List<Match> batch;
+            try {
+                batch = out.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for join results");
+            }
+            if (batch == END) {
+                out.add(END);
+                if (error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) error;
+                if (error instanceof DbException)
+                    throw (DbException) error;
+                if (error instanceof Error)
+                    throw (Error) error;
+                if (error != null)
+                    throw new DbException("parallel hash join failed: " + error);
+                return null;
+            }
+            pending.release();
+            return batch;
+        }
+
+        public void run() {
+            synchronized (this) {
+                feeder = Thread.currentThread();
+            }
+            try {
+                List<List<Tuple>> batches = new ArrayList<List<Tuple>>(partitions);
+                for (int i = 0; i < partitions; i++)
+                    batches.add(new ArrayList<Tuple>(BATCH_SIZE));
+                while (!cancelled && child2.hasNext()) {
+                    Tuple t = child2.next();
+                    int part = partitionOf(t.getField(f2));
+                    List<Tuple> b = batches.get(part);
+                    b.add(t);
+                    if (b.size() == BATCH_SIZE) {
+                        submit(part, b);
+                        batches.set(part, new ArrayList<Tuple>(BATCH_SIZE));
+                    }
+                }
+                for (int i = 0; i < partitions; i++) {
+                    if (!batches.get(i).isEmpty())
+                        submit(i, batches.get(i));
+                }
+                // every batch has been consumed once all permits are back
+                pending.acquire(MAX_PENDING_BATCHES);
+            } catch (InterruptedException e) {
+                // cancelled
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    feeder = null;
+                    // do not leave a late cancel() to the next run of the thread
+                    Thread.interrupted();
+                }
+                out.add(END);
+                done.countDown();
+            }
+        }
+
+        private void submit(final int part, final List<Tuple> probe)
+                throws InterruptedException {
+            pending.acquire();
+            pool.execute(new Runnable() {
+                public void run() {
+                    boolean queued = false;
+                    try {
+                        List<Match> res = probe(tables.get(part), probe);
+                        if (!res.isEmpty() && !cancelled)
+                            queued = out.add(res);
+                    } catch (Throwable e) {
+                        error = e;
+                        cancelled = true;
+                    } finally {
+                        if (!queued)
+                            pending.release();
+                    }
+                }
+            });
+        }
+
+        private List<Match> probe(Map<Field, List<Tuple>> table,
+                List<Tuple> probe) {
+            List<Match> res = new ArrayList<Match>();
+            for (Tuple t2 : probe) {
+                List<Tuple> matches = table.get(t2.getField(f2));
+                if (matches != null)
+                    res.add(new Match(t2, matches));
+            }
+            return res;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -12,6 +12,13 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    // aggregates that Zql does not know of; COUNT(DISTINCT f) it parses as
+    // COUNT of "distinct f"
+    static {
+        ZUtils.addCustomFunction("approx_count_distinct", 1);
+        ZUtils.addCustomFunction("approx_percentile", 2);
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -182,23 +189,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -207,8 +210,9 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
+        Vector<Double> aggPercentiles = new Vector<Double>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +222,40 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
+                ZExpression agg = (ZExpression) si.getExpression();
+                String aggField = ((ZConstant) agg.getOperand(0)).getValue();
+                String aggFun = si.getAggregate();
+                double percentile = Accumulator.MEDIAN;
+                if (aggFun.equalsIgnoreCase("COUNT")
+                        && aggField.toLowerCase().startsWith("distinct ")) {
+                    aggFun = "COUNT_DISTINCT";
+                    aggField = aggField.substring("distinct ".length()).trim();
+                }
+                if (aggFun.equalsIgnoreCase("APPROX_PERCENTILE")) {
+                    ZExp fraction = agg.nbOperands() > 1 ? agg.getOperand(1)
+                            : null;
+                    if (!(fraction instanceof ZConstant)
+                            || ((ZConstant) fraction).getType() != ZConstant.NUMBER)
+                        throw new simpledb.ParsingException(
+                                "APPROX_PERCENTILE needs a constant fraction");
+                    try {
+                        percentile = Double.parseDouble(((ZConstant) fraction)
+                                .getValue());
+                    } catch (NumberFormatException e) {
+                        throw new simpledb.ParsingException(
+                                "APPROX_PERCENTILE needs a constant fraction");
+                    }
                 }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
-                        .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
-                lp.addProjectField(aggField, aggFun);
+                lp.addProjectField(aggField, aggFun, percentile);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
+                aggPercentiles.add(percentile);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,30 +265,31 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        if (!aggFuns.isEmpty()) {
+            for (String groupByField : groupByFields)
+                lp.addGroupBy(groupByField);
+            for (int i = 0; i < aggFuns.size(); i++)
+                lp.addAggregate(aggFuns.get(i), aggFields.get(i),
+                        aggPercentiles.get(i));
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,16 +298,31 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    private static final QueryPlanCache planCache = new QueryPlanCache();
+
+    /**
+     * @return the cache of optimized plans shared by all queries
+     */
+    public static QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
-        Query query = new Query(tId);
+        return handleQueryStatement(s, tId, LogicalPlan.NO_LIMIT);
+    }
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
-        OpIterator physicalPlan = lp.physicalPlan(tId,
-                TableStats.getStatsMap(), explain);
-        query.setPhysicalPlan(physicalPlan);
-        query.setLogicalPlan(lp);
+    /**
+     * Like {@link #handleQueryStatement(ZQuery, TransactionId)}, for a query
+     * with a LIMIT clause (see {@link #limitOf}).
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        Query query = planQuery(s, tId, QueryPlanCache.normalize(s), limit);
+        LogicalPlan lp = query.getLogicalPlan();
+        OpIterator physicalPlan = query.getPhysicalPlan();
 
         if (physicalPlan != null) {
             Class<?> c;
@@ -320,6 +360,49 @@ public class Parser {
         return query;
     }
 
+    /**
+     * Build the query for s, planned through the plan cache under the
+     * normalized text planKey (see {@link QueryPlanCache#normalize}).
+     */
+    Query planQuery(ZQuery s, TransactionId tId, String planKey, int limit)
+            throws IOException, simpledb.ParsingException, Zql.ParseException {
+        Query query = new Query(tId);
+
+        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit != LogicalPlan.NO_LIMIT)
+            lp.addLimit(limit);
+        OpIterator physicalPlan = planCache.physicalPlan(planKey, lp, tId,
+                TableStats.getStatsMap(), explain);
+        query.setPhysicalPlan(physicalPlan);
+        query.setLogicalPlan(lp);
+        return query;
+    }
+
+    /**
+     * Parse a SELECT, INSERT or DELETE statement whose constants may be the
+     * parameter marker "?", so that it can be executed many times with
+     * different values.
+     *
+     * @throws simpledb.ParsingException
+     *             if s is not a valid statement of one of these kinds
+     */
+    public PreparedStatement prepareStatement(String s)
+            throws simpledb.ParsingException {
+        try {
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(s).getBytes("UTF-8")));
+            return new PreparedStatement(this, p.readStatement(), limitOf(s));
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (Zql.TokenMgrError e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (UnsupportedEncodingException e) {
+            throw new simpledb.ParsingException(e);
+        }
+    }
+
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -463,14 +546,52 @@ public class Parser {
         }
     }
 
+    /**
+     * Matches a LIMIT clause at the end of a statement. Zql cannot parse
+     * LIMIT, so the clause is removed before the statement is handed to it.
+     */
+    private static final java.util.regex.Pattern LIMIT_CLAUSE = java.util.regex.Pattern
+            .compile("\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$",
+                    java.util.regex.Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @return the number in the LIMIT clause at the end of statement s, or
+     *         {@link LogicalPlan#NO_LIMIT} if it has none
+     * @throws simpledb.ParsingException
+     *             if the limit is too large
+     */
+    public static int limitOf(String s) throws simpledb.ParsingException {
+        java.util.regex.Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return LogicalPlan.NO_LIMIT;
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid LIMIT " + m.group(1));
+        }
+    }
+
+    /**
+     * @return statement s without the LIMIT clause at its end, if any
+     */
+    public static String stripLimit(String s) {
+        java.util.regex.Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        return s.substring(0, m.start()) + m.group(2);
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                int limit = limitOf(s);
+                if (limit != LogicalPlan.NO_LIMIT)
+                    lp.addLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -501,10 +622,36 @@ public class Parser {
         }
     }
 
+    /**
+     * Read the next statement from is: everything up to and including the
+     * first ';' outside a quoted string, or up to the end of the stream. The
+     * rest of the stream is left unread, so the LIMIT clause of the
+     * statement can be found at its end.
+     */
+    static String readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        boolean quoted = false;
+        for (int b; (b = is.read()) != -1;) {
+            text.write(b);
+            if (b == '\'')
+                quoted = !quoted;
+            else if (b == ';' && !quoted)
+                break;
+        }
+        return text.toString("UTF-8");
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String sql = readStatement(is);
+            int limit = limitOf(sql);
+
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stripLimit(
+                    sql).getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (limit != LogicalPlan.NO_LIMIT && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException(
+                        "LIMIT is only supported in queries.");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -525,7 +672,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -581,7 +728,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -599,15 +746,26 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        if (statsFile != null) {
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not write stats file " + statsFile
+                        + ": " + e);
+            }
+        }
         System.out.println("Bye");
     }
 
+    protected File statsFile = null;
+
     protected boolean interactive = true;
 
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        statsFile = TableStats.statsFileFor(argv[0]);
+        TableStats.loadOrComputeStatistics(statsFile);
 
         String queryFile = null;
 
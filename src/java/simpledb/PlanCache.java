@@ -4,11 +4,15 @@ import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins. For bushy plans it also records the
+ * two subplans joined by the last join of each plan, so the tree of a plan
+ * can be rebuilt from the cache. */
 public class PlanCache {
     HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
     HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
     HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
+    HashMap<Set<LogicalJoinNode>,Set<LogicalJoinNode>> bestOuters = new HashMap<Set<LogicalJoinNode>,Set<LogicalJoinNode>>();
+    HashMap<Set<LogicalJoinNode>,Set<LogicalJoinNode>> bestInners = new HashMap<Set<LogicalJoinNode>,Set<LogicalJoinNode>>();
     
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
@@ -22,6 +26,22 @@ public class PlanCache {
         bestOrders.put(s,order);                        
         bestCosts.put(s,cost);
         bestCardinalities.put(s,card);
+        bestOuters.remove(s);
+        bestInners.remove(s);
+    }
+
+    /** Add a new plan for a particular join set, like {@link #addPlan(Set, double, int, Vector)},
+        together with the join sets of the subplans its last join reads from.
+        @param outer the joins of the subplan producing the outer (left) input of the last join,
+          or an empty set if that input is a base table
+        @param inner the joins of the subplan producing the inner (right) input of the last join,
+          or an empty set if that input is a base table
+    */
+    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order,
+            Set<LogicalJoinNode> outer, Set<LogicalJoinNode> inner) {
+        addPlan(s, cost, card, order);
+        bestOuters.put(s, outer);
+        bestInners.put(s, inner);
     }
     
     /** Find the best join order in the cache for the specified plan 
@@ -47,4 +67,20 @@ public class PlanCache {
     int getCard(Set<LogicalJoinNode> s) {
         return bestCardinalities.get(s);
     }
+
+    /** Find the joins of the subplan producing the outer input of the last join of the best
+        plan for s
+        @return the joins, an empty set if the outer input is a base table, or null if unknown
+    */
+    Set<LogicalJoinNode> getOuter(Set<LogicalJoinNode> s) {
+        return bestOuters.get(s);
+    }
+
+    /** Find the joins of the subplan producing the inner input of the last join of the best
+        plan for s
+        @return the joins, an empty set if the inner input is a base table, or null if unknown
+    */
+    Set<LogicalJoinNode> getInner(Set<LogicalJoinNode> s) {
+        return bestInners.get(s);
+    }
 }
@@ -0,0 +1,180 @@
+package simpledb;
+
+import Zql.*;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A PreparedStatement is a SELECT, INSERT or DELETE statement that was
+ * parsed once by {@link Parser#prepareStatement} and can then be executed
+ * many times. Constants of the statement may be replaced by the parameter
+ * marker "?"; before every execution each parameter is bound to a value
+ * with {@link #setInt} or {@link #setString}. Parameters are numbered from
+ * 1 in the order they appear in the statement.
+ * <p>
+ * Executing a prepared query does not parse its text again, and as all
+ * executions have the same shape they share the plan kept by the
+ * {@link QueryPlanCache}, so the joins are only ordered once.
+ */
+public class PreparedStatement {
+
+    private final Parser parser;
+    private final ZStatement stmt;
+    private final String planKey;
+    private final int numParams;
+    private final ZConstant[] values;
+    private final int limit;
+
+    PreparedStatement(Parser parser, ZStatement stmt, int limit)
+            throws ParsingException {
+        if (limit != LogicalPlan.NO_LIMIT && !(stmt instanceof ZQuery))
+            throw new ParsingException("LIMIT is only supported in queries.");
+        this.parser = parser;
+        this.stmt = stmt;
+        this.limit = limit;
+        Binder counter = new Binder(null);
+        if (stmt instanceof ZQuery) {
+            counter.bind((ZQuery) stmt);
+            planKey = QueryPlanCache.normalize((ZQuery) stmt);
+        } else {
+            if (stmt instanceof ZInsert) {
+                ZInsert s = (ZInsert) stmt;
+                counter.bind(s.getValues() != null ? insertValues(s) : s.getQuery());
+            } else if (stmt instanceof ZDelete) {
+                counter.bind(((ZDelete) stmt).getWhere());
+            } else {
+                throw new ParsingException(
+                        "Only SELECT, INSERT and DELETE statements can be prepared.");
+            }
+            planKey = null;
+        }
+        numParams = counter.next;
+        values = new ZConstant[numParams];
+    }
+
+    /** @return the number of parameters of the statement */
+    public int getParameterCount() {
+        return numParams;
+    }
+
+    /**
+     * Bind parameter index (starting at 1) to an integer.
+     */
+    public void setInt(int index, int v) {
+        values[checkIndex(index)] = new ZConstant(Integer.toString(v),
+                ZConstant.NUMBER);
+    }
+
+    /**
+     * Bind parameter index (starting at 1) to a string.
+     */
+    public void setString(int index, String v) {
+        values[checkIndex(index)] = new ZConstant(v, ZConstant.STRING);
+    }
+
+    /**
+     * Unbind all parameters.
+     */
+    public void clearParameters() {
+        Arrays.fill(values, null);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 1 || index > numParams)
+            throw new IndexOutOfBoundsException("Parameter " + index
+                    + " out of range, the statement has " + numParams
+                    + " parameters");
+        return index - 1;
+    }
+
+    /**
+     * Build a query running the statement with the values currently bound
+     * to its parameters as part of transaction tid. Like the queries of
+     * {@link Parser#processNextStatement}, it is run with
+     * {@link Query#execute}, or with {@link Query#start} and
+     * {@link Query#next}.
+     *
+     * @throws ParsingException
+     *             if a parameter is not bound, or the statement is invalid
+     *             with the bound values
+     */
+    public Query execute(TransactionId tid) throws TransactionAbortedException,
+            DbException, IOException, ParsingException, Zql.ParseException {
+        for (int i = 0; i < numParams; i++) {
+            if (values[i] == null)
+                throw new ParsingException("Parameter " + (i + 1)
+                        + " is not bound");
+        }
+        Binder binder = new Binder(values);
+        if (stmt instanceof ZQuery)
+            return parser.planQuery(binder.bind((ZQuery) stmt), tid, planKey,
+                    limit);
+        if (stmt instanceof ZInsert) {
+            ZInsert s = (ZInsert) stmt;
+            ZInsert bound = new ZInsert(s.getTable());
+            bound.addColumns(s.getColumns());
+            bound.addValueSpec(s.getValues() != null ? binder
+                    .bind(insertValues(s)) : binder.bind(s.getQuery()));
+            return parser.handleInsertStatement(bound, tid);
+        }
+        ZDelete s = (ZDelete) stmt;
+        ZDelete bound = new ZDelete(s.getTable());
+        if (s.getWhere() != null)
+            bound.addWhere(binder.bind(s.getWhere()));
+        return parser.handleDeleteStatement(bound, tid);
+    }
+
+    private static ZExpression insertValues(ZInsert s) {
+        ZExpression e = new ZExpression(",");
+        e.setOperands(s.getValues());
+        return e;
+    }
+
+    /** Return true if e is the parameter marker "?". */
+    static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression
+                && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
+    /**
+     * Copies expressions, replacing the parameters they contain by their
+     * values in order, or only counts the parameters if there are no
+     * values.
+     */
+    private static class Binder {
+        final ZConstant[] values;
+        int next = 0;
+
+        Binder(ZConstant[] values) {
+            this.values = values;
+        }
+
+        ZExp bind(ZExp e) {
+            if (isParameter(e)) {
+                next++;
+                return values == null ? e : values[next - 1];
+            }
+            if (e instanceof ZQuery)
+                return bind((ZQuery) e);
+            if (!(e instanceof ZExpression))
+                return e;
+            ZExpression x = (ZExpression) e;
+            ZExpression b = new ZExpression(x.getOperator());
+            for (int i = 0; i < x.nbOperands(); i++)
+                b.addOperand(bind(x.getOperand(i)));
+            return b;
+        }
+
+        ZQuery bind(ZQuery q) {
+            ZQuery b = new ZQuery();
+            b.addSelect(q.getSelect());
+            b.addFrom(q.getFrom());
+            if (q.getWhere() != null)
+                b.addWhere(bind(q.getWhere()));
+            b.addGroupBy(q.getGroupBy());
+            b.addOrderBy(q.getOrderBy());
+            return b;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A KLL sketch estimates the quantiles of a stream of ints using a small,
+ * bounded amount of memory (about 3k values). With the default k of 200 the
+ * rank of an estimated quantile is typically within 1% of the requested
+ * one.
+ * <p>
+ * Values are kept in levels of compactors: a value at level h stands for
+ * 2^h values of the stream. When a level is full it is sorted, and every
+ * other value, starting at a random one of the first two, is promoted to
+ * the next level while the rest are dropped. Lower levels get
+ * geometrically smaller capacities, so most of the memory goes to the
+ * heaviest values. The minimum and maximum are kept exactly.
+ * <p>
+ * Sketches built over disjoint parts of the input can be merged; the merged
+ * sketch estimates the quantiles of the union.
+ */
+public class QuantileSketch implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_K = 200;
+
+    // capacity of the smallest levels
+    private static final int MIN_CAPACITY = 8;
+
+    private final int k;
+    // levels[h] holds sizes[h] values, each standing for 2^h values
+    private int[][] levels = new int[][] { new int[0] };
+    private int[] sizes = new int[1];
+    private long count = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private final Random random = new Random(0x5eed);
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k
+     *            the capacity of the top level, at least 8; the error of
+     *            the estimates is about proportional to 1/k
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_CAPACITY)
+            throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY);
+        this.k = k;
+    }
+
+    /**
+     * Add a value to the sketch.
+     */
+    public void add(int v) {
+        append(0, v);
+        count++;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+        if (sizes[0] >= capacity(0))
+            compress();
+    }
+
+    /**
+     * Add the values of another sketch with the same k to this one.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.k != k)
+            throw new IllegalArgumentException("sketches have different k");
+        for (int h = 0; h < other.levels.length; h++)
+            for (int i = 0; i < other.sizes[h]; i++)
+                append(h, other.levels[h][i]);
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        compress();
+    }
+
+    /** @return the number of values added */
+    public long size() {
+        return count;
+    }
+
+    /** @return the number of values kept by the sketch */
+    int retained() {
+        int n = 0;
+        for (int size : sizes)
+            n += size;
+        return n;
+    }
+
+    /**
+     * @param fraction
+     *            the rank of the quantile, between 0 (the minimum) and 1
+     *            (the maximum)
+     * @return the estimated value of the given rank
+     * @throws IllegalStateException
+     *             if no values were added
+     */
+    public int quantile(double fraction) {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException("fraction must be in [0, 1]");
+        if (count == 0)
+            throw new IllegalStateException("empty sketch");
+        if (fraction == 0)
+            return min;
+        if (fraction == 1)
+            return max;
+        // every value with its level in the low bits, in value order
+        long[] entries = new long[retained()];
+        long total = 0;
+        int n = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < sizes[h]; i++)
+                entries[n++] = ((long) levels[h][i] << 8) | h;
+            total += (long) sizes[h] << h;
+        }
+        Arrays.sort(entries);
+        double target = fraction * total;
+        long rank = 0;
+        for (long e : entries) {
+            rank += 1L << (e & 0xff);
+            if (rank >= target)
+                return (int) (e >> 8);
+        }
+        return (int) (entries[entries.length - 1] >> 8);
+    }
+
+    /** The number of values level h may hold before it is compacted */
+    private int capacity(int h) {
+        int depth = levels.length - 1 - h;
+        return Math.max(MIN_CAPACITY,
+                (int) Math.ceil(k * Math.pow(2.0 / 3, depth)));
+    }
+
+    private void append(int h, int v) {
+        if (h >= levels.length) {
+            levels = Arrays.copyOf(levels, h + 1);
+            sizes = Arrays.copyOf(sizes, h + 1);
+            for (int i = 0; i <= h; i++)
+                if (levels[i] == null)
+                    levels[i] = new int[0];
+        }
+        if (sizes[h] == levels[h].length)
+            levels[h] = Arrays.copyOf(levels[h], Math.max(16, 2 * sizes[h]));
+        levels[h][sizes[h]++] = v;
+    }
+
+    /** Compact every level that is full, from the bottom up. */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++)
+            if (sizes[h] >= capacity(h))
+                compact(h);
+    }
+
+    /**
+     * Promote every other value of level h to level h + 1, keeping the
+     * largest one at level h if their number is odd.
+     */
+    private void compact(int h) {
+        int n = sizes[h];
+        int[] level = levels[h];
+        Arrays.sort(level, 0, n);
+        int pairs = n & ~1;
+        for (int i = random.nextBoolean() ? 1 : 0; i < pairs; i += 2)
+            append(h + 1, level[i]);
+        // append may have replaced levels, but not this level's array
+        if ((n & 1) != 0)
+            levels[h][0] = level[n - 1];
+        sizes[h] = n & 1;
+    }
+}
@@ -0,0 +1,236 @@
+package simpledb;
+
+import Zql.*;
+import java.util.*;
+
+/**
+ * A QueryPlanCache remembers the decisions the optimizer made for recently
+ * executed queries, so that a query that differs from an earlier one only in
+ * its constants is planned without running the optimizer again.
+ * <p>
+ * Plans are keyed on the normalized text of a query (see
+ * {@link #normalize}), in which every constant of the WHERE clause is
+ * replaced by a parameter. An entry records the join order chosen by
+ * {@link JoinOptimizer#orderJoins} and the filters answered by index scans;
+ * {@link LogicalPlan#physicalPlan} replays them over the logical plan of a
+ * new query of the same shape, binding that query's constants. Operator
+ * trees are not shared, since they belong to a transaction and hold
+ * iterator state.
+ * <p>
+ * The best plan also depends on the constants, through the selectivities of
+ * the filters. An entry records the selectivity of every filter, and a query
+ * whose constants make a filter much more or less selective (see
+ * {@link #SELECTIVITY_FACTOR}) is optimized again, replacing the entry.
+ * <p>
+ * An entry is only used while the statistics it was planned with are still
+ * current. Small modifications are folded into the existing
+ * {@link TableStats} objects, which are replaced only when a table changed
+ * materially (see {@link TableStats#setRefreshThreshold}), so an entry is
+ * stale as soon as the statistics of one of its tables are no longer the
+ * same object. The cache holds at most a fixed number of entries and
+ * evicts the least recently used one.
+ */
+public class QueryPlanCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Filters whose selectivities differ by less than this factor are
+     * expected to lead to the same plan.
+     */
+    static final double SELECTIVITY_FACTOR = 10.0;
+
+    /**
+     * The optimizer's decisions for one query shape.
+     */
+    static class CachedPlan {
+        /** the joins in execution order */
+        final Vector<LogicalJoinNode> joins;
+        /** position in the filter list of the filter each alias answers by an index scan */
+        final HashMap<String, Integer> indexFilters;
+        /** the table each alias refers to */
+        final HashMap<String, Integer> tables;
+        /** the statistics the plan was chosen with, by base table name */
+        final HashMap<String, TableStats> stats;
+        /** the selectivity of every filter, or null if unknown */
+        final double[] selectivities;
+
+        CachedPlan(Vector<LogicalJoinNode> joins,
+                HashMap<String, Integer> indexFilters,
+                HashMap<String, Integer> tables,
+                HashMap<String, TableStats> stats, double[] selectivities) {
+            this.joins = new Vector<LogicalJoinNode>(joins);
+            this.indexFilters = new HashMap<String, Integer>(indexFilters);
+            this.tables = new HashMap<String, Integer>(tables);
+            this.stats = new HashMap<String, TableStats>(stats);
+            this.selectivities = selectivities;
+        }
+
+        /**
+         * Return true if the entry can be replayed over lp, given the
+         * current statistics: they are the ones it was planned with, and
+         * the filters of lp are about as selective as those it was planned
+         * for.
+         */
+        boolean isValid(LogicalPlan lp, Map<String, TableStats> current) {
+            if (!tables.equals(lp.getTableAliasToIdMapping()))
+                return false;
+            for (Map.Entry<String, TableStats> e : stats.entrySet()) {
+                if (current.get(e.getKey()) != e.getValue())
+                    return false;
+            }
+            double[] sels = lp.filterSelectivities(current);
+            if (selectivities == null || sels == null)
+                return false;
+            for (int i = 0; i < sels.length; i++) {
+                if (!similarSelectivity(selectivities[i], sels[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private final LinkedHashMap<String, CachedPlan> plans;
+    private int hits = 0;
+    private int misses = 0;
+
+    public QueryPlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            the maximum number of plans to keep
+     */
+    public QueryPlanCache(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        plans = new LinkedHashMap<String, CachedPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPlan> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return true if two selectivities differ by less than
+     * SELECTIVITY_FACTOR; those below one in a million count as that.
+     */
+    static boolean similarSelectivity(double a, double b) {
+        a = Math.max(a, 1e-6);
+        b = Math.max(b, 1e-6);
+        return a < b * SELECTIVITY_FACTOR && b < a * SELECTIVITY_FACTOR;
+    }
+
+    /**
+     * Return the text of q with every constant compared against in its
+     * WHERE clause replaced by the parameter marker "?", or null if q
+     * cannot be cached because it contains a subquery.
+     */
+    public static String normalize(ZQuery q) {
+        ZExp where = null;
+        if (q.getWhere() != null) {
+            where = normalize(q.getWhere());
+            if (where == null)
+                return null;
+        }
+        ZQuery n = new ZQuery();
+        n.addSelect(q.getSelect());
+        n.addFrom(q.getFrom());
+        n.addWhere(where);
+        n.addGroupBy(q.getGroupBy());
+        n.addOrderBy(q.getOrderBy());
+        return (q.isDistinct() ? "DISTINCT " : "") + n.toString();
+    }
+
+    private static ZExp normalize(ZExp e) {
+        if (e instanceof ZConstant) {
+            if (((ZConstant) e).getType() == ZConstant.COLUMNNAME)
+                return e;
+            return new ZConstant("?", ZConstant.UNKNOWN);
+        }
+        if (!(e instanceof ZExpression))
+            return null;
+        ZExpression x = (ZExpression) e;
+        ZExpression n = new ZExpression(x.getOperator());
+        for (int i = 0; i < x.nbOperands(); i++) {
+            ZExp op = normalize(x.getOperand(i));
+            if (op == null)
+                return null;
+            n.addOperand(op);
+        }
+        return n;
+    }
+
+    /**
+     * Return the physical plan of lp, the logical plan of a query whose
+     * normalized text is key. If a plan of the same shape was cached and
+     * its statistics are still current, its decisions are replayed;
+     * otherwise lp is optimized and its decisions are cached.
+     *
+     * @param key
+     *            the normalized query, or null to plan without the cache
+     * @see LogicalPlan#physicalPlan
+     */
+    public OpIterator physicalPlan(String key, LogicalPlan lp,
+            TransactionId tid, Map<String, TableStats> stats, boolean explain)
+            throws ParsingException {
+        if (key == null)
+            return lp.physicalPlan(tid, stats, explain);
+
+        CachedPlan e = get(key, lp, stats);
+        if (e != null) {
+            if (explain)
+                System.out.println("Reusing the cached plan for " + key);
+            return lp.physicalPlan(tid, stats, explain, e);
+        }
+        OpIterator plan = lp.physicalPlan(tid, stats, explain);
+        CachedPlan choices = lp.getPlanChoices();
+        if (choices != null) {
+            synchronized (this) {
+                plans.put(key, choices);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Return the entry cached for key if it can be replayed over lp, or
+     * null (dropping the entry if it is stale).
+     */
+    synchronized CachedPlan get(String key, LogicalPlan lp,
+            Map<String, TableStats> stats) {
+        CachedPlan e = plans.get(key);
+        if (e != null && !e.isValid(lp, stats)) {
+            plans.remove(key);
+            e = null;
+        }
+        if (e == null)
+            misses++;
+        else
+            hits++;
+        return e;
+    }
+
+    /** Remove all cached plans. */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /** @return the number of cached plans */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of lookups that found a usable plan */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that had to optimize the query */
+    public synchronized int misses() {
+        return misses;
+    }
+}
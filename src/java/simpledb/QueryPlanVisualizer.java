@@ -9,12 +9,15 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String LIMIT = "limit";
+    static final String MATERIALIZE = "materialize";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -26,7 +29,9 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin
+                || o instanceof ParallelHashEquiJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,10 +70,15 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else {
+                tableName = ((BTreeScan) queryPlan).getTableName();
+                alias = ((BTreeScan) queryPlan).getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
@@ -136,9 +146,12 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
+            } else if (plan instanceof HashEquiJoin
+                    || plan instanceof ParallelHashEquiJoin) {
+                Operator j = (Operator) plan;
+                JoinPredicate jp = plan instanceof HashEquiJoin
+                        ? ((HashEquiJoin) plan).getJoinPredicate()
+                        : ((ParallelHashEquiJoin) plan).getJoinPredicate();
                 TupleDesc td = j.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
@@ -165,6 +178,35 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof IndexNestedLoopJoin) {
+                IndexNestedLoopJoin j = (IndexNestedLoopJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                TupleDesc td = j.getTupleDesc();
+                String field1 = td.getFieldName(jp.getField1());
+                String field2 = td.getFieldName(jp.getField2()
+                        + children[0].getTupleDesc().numFields());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", INDEX_JOIN, field1
+                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (INDEX_JOIN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = INDEX_JOIN.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - INDEX_JOIN.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
+            }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
                 int upBarShift = parentUpperBarStartShift;
@@ -172,14 +214,21 @@ public class QueryPlanVisualizer {
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
 
+                int ngroups = a.groupFields().length;
+                String aggs = "";
+                for (int i = ngroups; i < td.numFields(); i++)
+                    aggs += (i > ngroups ? ", " : "") + td.getFieldName(i);
+
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groups = "";
+                    for (int i = 0; i < ngroups; i++)
+                        groups += (i > 0 ? ", " : "") + td.getFieldName(i);
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -222,8 +271,8 @@ public class QueryPlanVisualizer {
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
                         ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        sortFields(children[0].getTupleDesc(),
+                                o.getSortOrder()),o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -238,6 +287,40 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit
+                    || plan instanceof Materialize) {
+                String op;
+                if (plan instanceof TopN) {
+                    TopN t = (TopN) plan;
+                    op = ORDERBY;
+                    thisNode.text = String.format("%1$s(%2$s),limit:%3$d,card:%4$d",
+                            ORDERBY,
+                            sortFields(children[0].getTupleDesc(),
+                                    t.getSortOrder()), t.getLimit(),
+                            t.getEstimatedCardinality());
+                } else if (plan instanceof Limit) {
+                    op = LIMIT;
+                    thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                            ((Limit) plan).getLimit(), plan.getEstimatedCardinality());
+                } else {
+                    op = MATERIALIZE;
+                    thisNode.text = String.format("%1$s,card:%2$d", MATERIALIZE,
+                            plan.getEstimatedCardinality());
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (op.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = op.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - op.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -334,6 +417,19 @@ public class QueryPlanVisualizer {
         return thisNode;
     }
 
+    /** The fields of a sort order, with " desc" after descending ones */
+    private static String sortFields(TupleDesc td, SortOrder order) {
+        String fields = "";
+        for (int i = 0; i < order.numFields(); i++) {
+            if (i > 0)
+                fields += ",";
+            fields += td.getFieldName(order.getField(i));
+            if (!order.isAscending(i))
+                fields += " desc";
+        }
+        return fields;
+    }
+
     private void printTree(SubTreeDescriptor root, char[] buffer, int width) {
         if (root == null)
             return;
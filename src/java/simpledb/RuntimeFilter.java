@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A RuntimeFilter summarizes the join keys of a hash join's build side so that
+ * the probe side can drop tuples that cannot possibly match before they reach
+ * the join. It combines a min/max range (for integer keys) with a Bloom
+ * filter: {@link #mightContain} never returns false for a key that was added,
+ * but may return true for a key that was not.
+ * <p>
+ * The filter is pushed down into the probe side with {@link #pushDown}, which
+ * attaches it to the lowest SeqScan (or, failing that, Filter) that still
+ * produces the join field at the same position.
+ */
+public class RuntimeFilter {
+
+    /** Bloom filter bits per distinct key; gives roughly a 1-2% false positive rate. */
+    public static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 3;
+
+    private final long[] bits;
+    private final int numBits;
+    private int numKeys = 0;
+
+    // range of the keys, only maintained while every key is an IntField
+    private boolean intKeys = true;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * Create an empty filter sized for the given number of distinct keys.
+     * An empty filter rejects every key.
+     */
+    public RuntimeFilter(int expectedKeys) {
+        int n = Math.max(64, expectedKeys * BITS_PER_KEY);
+        bits = new long[(n + 63) / 64];
+        numBits = bits.length * 64;
+    }
+
+    /**
+     * Create a filter containing the given keys.
+     */
+    public RuntimeFilter(Collection<? extends Field> keys) {
+        this(keys.size());
+        for (Field f : keys)
+            add(f);
+    }
+
+    public void add(Field f) {
+        numKeys++;
+        if (f instanceof IntField) {
+            int v = ((IntField) f).getValue();
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        } else {
+            intKeys = false;
+        }
+        long h = mix(f);
+        int h1 = (int) (h >>> 32);
+        int h2 = (int) h | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if f was definitely not added to this filter
+     */
+    public boolean mightContain(Field f) {
+        if (numKeys == 0)
+            return false;
+        if (intKeys && f instanceof IntField) {
+            int v = ((IntField) f).getValue();
+            if (v < min || v > max)
+                return false;
+        }
+        long h = mix(f);
+        int h1 = (int) (h >>> 32);
+        int h2 = (int) h | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public int numKeys() {
+        return numKeys;
+    }
+
+    private static long mix(Field f) {
+        long h = f.hashCode() * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Attach a runtime filter to the probe side of a join. Filters are
+     * schema-preserving, so the filter is pushed through them down to the
+     * scan they read from.
+     *
+     * @param probe
+     *            the probe-side child of the join
+     * @param field
+     *            the index of the join field in probe's TupleDesc
+     * @param filter
+     *            the filter to attach, or null to remove a previously
+     *            attached filter
+     * @return true if the filter was attached to some operator below probe
+     */
+    public static boolean pushDown(OpIterator probe, int field,
+            RuntimeFilter filter) {
+        if (probe instanceof SeqScan) {
+            ((SeqScan) probe).setRuntimeFilter(field, filter);
+            return true;
+        }
+        if (probe instanceof Filter) {
+            Filter f = (Filter) probe;
+            if (pushDown(f.getChildren()[0], field, filter)) {
+                return true;
+            }
+            f.setRuntimeFilter(field, filter);
+            return true;
+        }
+        return false;
+    }
+}
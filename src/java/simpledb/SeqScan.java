@@ -16,8 +16,15 @@ public class SeqScan implements OpIterator {
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
+    // the table's TupleDesc with field names prefixed by tableAlias
+    private TupleDesc td;
     private HeapFile.ConcreteDbFileIterator dbFileIterator;
 
+    // runtime filter pushed down by a join, and the next tuple that passed it
+    private RuntimeFilter runtimeFilter = null;
+    private int runtimeFilterField;
+    private Tuple nextPassing = null;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -39,6 +46,7 @@ public class SeqScan implements OpIterator {
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.td = aliasedTupleDesc(tableid, tableAlias);
         dbFileIterator = (HeapFile.ConcreteDbFileIterator) Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
     }
 
@@ -61,6 +69,16 @@ public class SeqScan implements OpIterator {
         return tableAlias;
     }
 
+    /** @return the id of the table this operator scans */
+    int getTableId() {
+        return tableid;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -77,6 +95,7 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.td = aliasedTupleDesc(tableid, tableAlias);
         dbFileIterator = (HeapFile.ConcreteDbFileIterator) Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
     }
 
@@ -84,8 +103,29 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Only return tuples whose value of field might be contained in filter.
+     * Used by joins to drop probe tuples that cannot match the build side.
+     *
+     * @param field
+     *            the index of the field to test
+     * @param filter
+     *            the filter to apply, or null to remove the current one
+     * @see RuntimeFilter#pushDown
+     */
+    public void setRuntimeFilter(int field, RuntimeFilter filter) {
+        this.runtimeFilterField = field;
+        this.runtimeFilter = filter;
+    }
+
+    /** @return true if a runtime filter is set */
+    boolean hasRuntimeFilter() {
+        return runtimeFilter != null;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        nextPassing = null;
         dbFileIterator.open();
     }
 
@@ -101,28 +141,55 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return Database.getCatalog().getTupleDesc(tableid);
+        return td;
+    }
+
+    private static TupleDesc aliasedTupleDesc(int tableid, String tableAlias) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        String[] names = new String[td.numFields()];
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            names[i] = tableAlias + "." + td.getFieldName(i);
+            types[i] = td.getFieldType(i);
+        }
+        return new TupleDesc(types, names);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.hasNext();
+        if (runtimeFilter == null && nextPassing == null)
+            return dbFileIterator.hasNext();
+        while (nextPassing == null && dbFileIterator.hasNext()) {
+            Tuple t = dbFileIterator.next();
+            if (runtimeFilter == null
+                    || runtimeFilter.mightContain(t.getField(runtimeFilterField)))
+                nextPassing = t;
+        }
+        return nextPassing != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.next();
+        if (runtimeFilter == null && nextPassing == null)
+            return dbFileIterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextPassing;
+        nextPassing = null;
+        return t;
     }
 
     public void close() {
         // some code goes here
+        nextPassing = null;
         dbFileIterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        nextPassing = null;
         dbFileIterator.rewind();
     }
 }
@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * A SortOrder describes the order of an ORDER BY: a list of fields, each
+ * sorted ascending or descending, with later fields breaking ties of
+ * earlier ones.
+ * <p>
+ * Tuples can be compared field by field ({@link #comparator}), or encoded
+ * into normalized keys ({@link #encode}): byte strings whose unsigned
+ * lexicographic order is the sort order, so that sorting compares plain
+ * bytes instead of Field objects, and can even sort by radix.
+ * <ul>
+ * <li>An int is stored as 4 bytes, big-endian, with the sign bit flipped.</li>
+ * <li>A string is stored as its chars, 2 bytes each, big-endian, followed
+ * by the terminator 0x00 0x00; a 0x00 byte inside the chars is escaped as
+ * 0x00 0xFF. The terminator makes a string sort before its extensions, as
+ * String.compareTo does, and lets further fields follow it.</li>
+ * <li>The bytes of a descending field are inverted.</li>
+ * </ul>
+ */
+public class SortOrder implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    private final boolean[] asc;
+
+    /**
+     * @param fields
+     *            the fields to sort on, most significant first
+     * @param asc
+     *            for every field, true if it is sorted ascending
+     */
+    public SortOrder(int[] fields, boolean[] asc) {
+        if (fields.length != asc.length || fields.length == 0)
+            throw new IllegalArgumentException(
+                    "need one direction for each of at least one field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+    }
+
+    /** A sort on a single field */
+    public SortOrder(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    /** @return the number of fields sorted on */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /** @return the index in the tuples of the ith field sorted on */
+    public int getField(int i) {
+        return fields[i];
+    }
+
+    /** @return true if the ith field is sorted ascending */
+    public boolean isAscending(int i) {
+        return asc[i];
+    }
+
+    /**
+     * @return a comparator ordering tuples field by field
+     */
+    public Comparator<Tuple> comparator() {
+        return new TupleComparator(fields, asc);
+    }
+
+    /**
+     * @return the normalized key of t
+     */
+    public byte[] encode(Tuple t) {
+        int len = 0;
+        for (int f : fields) {
+            Field v = t.getField(f);
+            if (v.getType() == Type.INT_TYPE)
+                len += 4;
+            else
+                len += 4 * ((StringField) v).getValue().length() + 2;
+        }
+        byte[] buf = new byte[len];
+        int pos = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = pos;
+            Field v = t.getField(fields[i]);
+            if (v.getType() == Type.INT_TYPE) {
+                int x = ((IntField) v).getValue() ^ Integer.MIN_VALUE;
+                buf[pos++] = (byte) (x >>> 24);
+                buf[pos++] = (byte) (x >>> 16);
+                buf[pos++] = (byte) (x >>> 8);
+                buf[pos++] = (byte) x;
+            } else {
+                String s = ((StringField) v).getValue();
+                for (int j = 0; j < s.length(); j++) {
+                    char c = s.charAt(j);
+                    pos = putByte(buf, pos, (byte) (c >>> 8));
+                    pos = putByte(buf, pos, (byte) c);
+                }
+                buf[pos++] = 0;
+                buf[pos++] = 0;
+            }
+            if (!asc[i]) {
+                for (int j = start; j < pos; j++)
+                    buf[j] = (byte) ~buf[j];
+            }
+        }
+        return pos == len ? buf : java.util.Arrays.copyOf(buf, pos);
+    }
+
+    private static int putByte(byte[] buf, int pos, byte b) {
+        buf[pos++] = b;
+        if (b == 0)
+            buf[pos++] = (byte) 0xFF;
+        return pos;
+    }
+
+    /**
+     * Compare two normalized keys as unsigned byte strings, starting at
+     * offset from (the keys must be equal before it).
+     */
+    public static int compareKeys(byte[] a, byte[] b, int from) {
+        int n = Math.min(a.length, b.length);
+        for (int i = from; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @return the first 8 bytes of key as a long (padded with zeros), whose
+     *         unsigned order is that of the keys' first 8 bytes
+     */
+    public static long prefix(byte[] key) {
+        long p = 0;
+        for (int i = 0; i < 8; i++)
+            p = (p << 8) | (i < key.length ? key[i] & 0xFF : 0);
+        return p;
+    }
+
+    /** Orders tuples by comparing their fields one by one. */
+    private static class TupleComparator implements Comparator<Tuple> {
+        private final int[] fields;
+        private final boolean[] asc;
+
+        TupleComparator(int[] fields, boolean[] asc) {
+            this.fields = fields;
+            this.asc = asc;
+        }
+
+        public int compare(Tuple o1, Tuple o2) {
+            for (int i = 0; i < fields.length; i++) {
+                Field t1 = o1.getField(fields[i]);
+                Field t2 = o2.getField(fields[i]);
+                if (t1.compare(Predicate.Op.EQUALS, t2))
+                    continue;
+                if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                    return asc[i] ? 1 : -1;
+                else
+                    return asc[i] ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An Aggregator whose groups may not all fit in memory (hybrid hash
+ * aggregation).
+ * <p>
+ * Groups are aggregated in memory by a {@link HashAggregator} until their
+ * estimated size reaches the memory budget. From then on, tuples of the
+ * groups already in memory are still aggregated there, while tuples of new
+ * groups are hash-partitioned on their group key into temporary files,
+ * keeping only the group-by and aggregated fields. Every group thus lives
+ * either in memory or in exactly one partition.
+ * <p>
+ * The iterator returns the groups held in memory first, then aggregates
+ * the partitions one at a time, each by a new SpillableAggregator, so only
+ * the groups of one partition are held at once. A partition that is still
+ * too large spills again, partitioned on the next bits of the group
+ * hashes.
+ */
+public class SpillableAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of an aggregation, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    /**
+     * Estimated bytes of hash table entry, key and group number per group,
+     * besides the group-by values and accumulators
+     */
+    static final int GROUP_OVERHEAD = 128;
+
+    private static final int PARTITION_BITS = 4;
+    /** Number of partitions that groups are spilled into */
+    static final int PARTITIONS = 1 << PARTITION_BITS;
+    // every level of spilling uses the next bits of the hash; the last
+    // level keeps all its groups in memory
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
+    private final int[] gbfields;
+    private final Type[] gbtypes;
+    private final int[] afields;
+    private final Type[] atypes;
+    private final Op[] ops;
+    private final double[] percentiles;
+    private final long memoryBudget;
+    private final int level;
+    private final long maxGroups;
+
+    private final HashAggregator groups;
+    // the spilled partitions, or null if nothing was spilled
+    private transient File[] partitions = null;
+    private transient DataOutputStream[] writers = null;
+    private transient long[] spilled = null;
+
+    /**
+     * Aggregate constructor for a single aggregate
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param afieldtype
+     *            the type of the aggregate field
+     * @param what
+     *            the aggregation operator
+     * @param memoryBudget
+     *            the number of bytes the groups held in memory may use
+     */
+    public SpillableAggregator(int gbfield, Type gbfieldtype, int afield,
+            Type afieldtype, Op what, long memoryBudget) {
+        this(gbfield == NO_GROUPING ? new int[0] : new int[] { gbfield },
+                gbfield == NO_GROUPING ? new Type[0] : new Type[] { gbfieldtype },
+                new int[] { afield }, new Type[] { afieldtype },
+                new Op[] { what }, memoryBudget);
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuples,
+     *            empty if there is no grouping
+     * @param gbtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuples
+     * @param atypes
+     *            the types of the aggregated fields
+     * @param ops
+     *            the aggregation operator of every aggregated field
+     * @param memoryBudget
+     *            the number of bytes the groups held in memory may use
+     * @throws IllegalArgumentException
+     *             if an operator is not supported on its field
+     */
+    public SpillableAggregator(int[] gbfields, Type[] gbtypes, int[] afields,
+            Type[] atypes, Op[] ops, long memoryBudget) {
+        this(gbfields, gbtypes, afields, atypes, ops, null, memoryBudget, 0);
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuples,
+     *            empty if there is no grouping
+     * @param gbtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuples
+     * @param atypes
+     *            the types of the aggregated fields
+     * @param ops
+     *            the aggregation operator of every aggregated field
+     * @param percentiles
+     *            the fraction in [0, 1] of every APPROX_PERCENTILE
+     *            aggregate, ignored for other operators; null estimates
+     *            medians
+     * @param memoryBudget
+     *            the number of bytes the groups held in memory may use
+     * @throws IllegalArgumentException
+     *             if an operator is not supported on its field
+     */
+    public SpillableAggregator(int[] gbfields, Type[] gbtypes, int[] afields,
+            Type[] atypes, Op[] ops, double[] percentiles, long memoryBudget) {
+        this(gbfields, gbtypes, afields, atypes, ops, percentiles,
+                memoryBudget, 0);
+    }
+
+    private SpillableAggregator(int[] gbfields, Type[] gbtypes, int[] afields,
+            Type[] atypes, Op[] ops, double[] percentiles, long memoryBudget,
+            int level) {
+        this.groups = new HashAggregator(gbfields, gbtypes, afields, atypes,
+                ops, percentiles);
+        this.gbfields = gbfields.clone();
+        this.gbtypes = gbtypes.clone();
+        this.afields = afields.clone();
+        this.atypes = atypes.clone();
+        this.ops = ops.clone();
+        this.percentiles = percentiles == null ? null : percentiles.clone();
+        this.memoryBudget = memoryBudget;
+        this.level = level;
+        long groupSize = GROUP_OVERHEAD + 8 * groups.numSlots();
+        for (Type t : gbtypes)
+            groupSize += t.getLen();
+        this.maxGroups = Math.max(1, memoryBudget / groupSize);
+    }
+
+    /** @return the number of groups that fit in the memory budget */
+    long maxGroups() {
+        return maxGroups;
+    }
+
+    /**
+     * @return the number of partitions written to disk, 0 if all groups
+     *         fit in memory
+     */
+    public int numSpilledPartitions() {
+        if (spilled == null)
+            return 0;
+        int n = 0;
+        for (long s : spilled)
+            if (s > 0)
+                n++;
+        return n;
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Object key = groups.keyOf(tup);
+        if ((partitions == null && (groups.numGroups() < maxGroups
+                || level >= MAX_LEVEL)) || groups.hasGroup(key)) {
+            groups.mergeTupleIntoGroup(key, tup);
+            return;
+        }
+        if (partitions == null)
+            startSpilling();
+        int p = partitionOf(key);
+        try {
+            for (int f : gbfields)
+                tup.getField(f).serialize(writers[p]);
+            for (int f : afields)
+                tup.getField(f).serialize(writers[p]);
+        } catch (IOException e) {
+            throw new RuntimeException("could not spill aggregate groups", e);
+        }
+        spilled[p]++;
+    }
+
+    /** The partition of a group key at this level of spilling */
+    private int partitionOf(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h >>> (level * PARTITION_BITS)) & (PARTITIONS - 1);
+    }
+
+    private void startSpilling() {
+        partitions = new File[PARTITIONS];
+        writers = new DataOutputStream[PARTITIONS];
+        spilled = new long[PARTITIONS];
+        try {
+            for (int p = 0; p < PARTITIONS; p++) {
+                partitions[p] = File.createTempFile("agg", ".part");
+                partitions[p].deleteOnExit();
+                writers[p] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(partitions[p]),
+                        BufferPool.getPageSize()));
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("could not spill aggregate groups", e);
+        }
+    }
+
+    /** Flush the partitions, so they can be read back. */
+    private void finishSpilling() {
+        if (writers == null)
+            return;
+        try {
+            for (DataOutputStream w : writers)
+                w.close();
+        } catch (IOException e) {
+            throw new RuntimeException("could not spill aggregate groups", e);
+        }
+        writers = null;
+    }
+
+    /**
+     * Release the temporary files of the spilled partitions.
+     */
+    public void close() {
+        if (writers != null) {
+            for (DataOutputStream w : writers) {
+                try {
+                    if (w != null)
+                        w.close();
+                } catch (IOException e) {
+                }
+            }
+            writers = null;
+        }
+        if (partitions != null) {
+            for (File f : partitions)
+                if (f != null)
+                    f.delete();
+        }
+        partitions = null;
+        spilled = null;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
+     *         if using group, or a single (aggregateVal) if no grouping.
+     */
+    public OpIterator iterator() {
+        if (partitions == null)
+            return groups.iterator();
+        finishSpilling();
+        return new SpilledIterator();
+    }
+
+    /**
+     * Returns the groups held in memory, then those of every partition.
+     */
+    private class SpilledIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td = groups.iterator().getTupleDesc();
+        // the partition whose groups are being returned, -1 for the groups
+        // in memory
+        private int partition = -1;
+        private OpIterator current = null;
+        private SpillableAggregator sub = null;
+        private boolean open = false;
+
+        public void open() throws DbException, TransactionAbortedException {
+            open = true;
+            partition = -1;
+            current = groups.iterator();
+            current.open();
+        }
+
+        public boolean hasNext() throws DbException,
+                TransactionAbortedException {
+            if (!open)
+                throw new IllegalStateException("iterator not open");
+            while (!current.hasNext()) {
+                if (!nextPartition())
+                    return false;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        /** Aggregate the next non-empty partition, if there is one. */
+        private boolean nextPartition() throws DbException,
+                TransactionAbortedException {
+            do {
+                partition++;
+                if (partition >= PARTITIONS)
+                    return false;
+            } while (spilled[partition] == 0);
+            closeCurrent();
+            // the partition holds the group-by fields, then the aggregated
+            // fields
+            int ng = gbfields.length;
+            int[] subGroups = new int[ng];
+            int[] subFields = new int[afields.length];
+            Type[] types = new Type[ng + afields.length];
+            for (int i = 0; i < ng; i++) {
+                subGroups[i] = i;
+                types[i] = gbtypes[i];
+            }
+            for (int i = 0; i < afields.length; i++) {
+                subFields[i] = ng + i;
+                types[ng + i] = atypes[i];
+            }
+            sub = new SpillableAggregator(subGroups, gbtypes, subFields,
+                    atypes, ops, percentiles, memoryBudget, level + 1);
+            TupleDesc spillTd = new TupleDesc(types);
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(
+                                partitions[partition]),
+                                BufferPool.getPageSize()));
+                try {
+                    for (long i = 0; i < spilled[partition]; i++) {
+                        Tuple t = new Tuple(spillTd);
+                        for (int f = 0; f < types.length; f++)
+                            t.setField(f, types[f].parse(in));
+                        sub.mergeTupleIntoGroup(t);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spilled groups: " + e);
+            } catch (java.text.ParseException e) {
+                throw new DbException("corrupt spilled groups");
+            }
+            current = sub.iterator();
+            current.open();
+            return true;
+        }
+
+        private void closeCurrent() {
+            if (current != null)
+                current.close();
+            current = null;
+            if (sub != null)
+                sub.close();
+            sub = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            closeCurrent();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            closeCurrent();
+            open = false;
+        }
+    }
+}
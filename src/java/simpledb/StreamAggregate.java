@@ -0,0 +1,182 @@
+package simpledb;
+
+/**
+ * An Aggregate over a child whose tuples of every group are adjacent, e.g.
+ * because it is ordered on the group-by fields. Rather than holding all
+ * groups until its input is exhausted, it aggregates one group at a time
+ * and returns it as soon as a tuple of another group is read, so it
+ * pipelines with constant memory. COUNT_DISTINCT is not supported, as it
+ * would additionally need the values of every group in sorted order.
+ * <p>
+ * The planner uses it in place of an {@link Aggregate} when
+ * {@link #isOrderedOn} shows the input order, e.g. for
+ * <tt>SELECT t.key, COUNT(t.x) FROM t GROUP BY t.key</tt> where t is a
+ * BTreeFile keyed on key, which the planner always reads with a
+ * {@link BTreeScan}.
+ */
+public class StreamAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gfields;
+    private final int[] afields;
+    private final Accumulator[] accumulators;
+    private final TupleDesc td;
+
+    // the first tuple of the next group, read ahead, or null
+    private Tuple lookahead;
+    private boolean returnedAny;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples, with the tuples of
+     *            every group adjacent.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of every column in afields
+     * @param gfields
+     *            The columns over which we are grouping the result, empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, an operator is
+     *             COUNT_DISTINCT or is not supported on its column
+     */
+    public StreamAggregate(OpIterator child, int[] afields,
+            Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, null, gfields);
+    }
+
+    /**
+     * Constructor for aggregates including percentiles.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples, with the tuples of
+     *            every group adjacent.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of every column in afields
+     * @param percentiles
+     *            The fraction in [0, 1] of every APPROX_PERCENTILE in aops,
+     *            ignored for other operators; null estimates medians
+     * @param gfields
+     *            The columns over which we are grouping the result, empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if afields, aops and percentiles differ in length, an
+     *             operator is COUNT_DISTINCT or is not supported on its column
+     */
+    public StreamAggregate(OpIterator child, int[] afields,
+            Aggregator.Op[] aops, double[] percentiles, int[] gfields) {
+        super(child, afields, aops, percentiles, gfields);
+        for (Aggregator.Op op : aops) {
+            if (op == Aggregator.Op.COUNT_DISTINCT)
+                throw new IllegalArgumentException(
+                        "COUNT_DISTINCT cannot be aggregated one group at a time");
+        }
+        this.gfields = gfields.clone();
+        this.afields = afields.clone();
+        accumulators = new Accumulator[aops.length];
+        for (int i = 0; i < aops.length; i++)
+            accumulators[i] = percentiles == null ? Accumulator.of(aops[i])
+                    : Accumulator.of(aops[i], percentiles[i]);
+        td = getTupleDesc();
+    }
+
+    /**
+     * @return true if plan returns its tuples ordered on fields, in any
+     *         order of the fields, so that the tuples of every group on
+     *         fields are adjacent: it is an OrderBy or TopN sorting first on
+     *         fields, or a BTreeScan (with or without an index predicate) of
+     *         a BTreeFile keyed on the only field, under zero or more Filters.
+     *         The planner only ever passes scans, since it aggregates before
+     *         sorting.
+     */
+    public static boolean isOrderedOn(OpIterator plan, int[] fields) {
+        if (fields.length == 0)
+            return false;
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (plan instanceof BTreeScan)
+            return fields.length == 1
+                    && ((BTreeScan) plan).getBTreeFile().keyField() == fields[0];
+        SortOrder order;
+        if (plan instanceof OrderBy)
+            order = ((OrderBy) plan).getSortOrder();
+        else if (plan instanceof TopN)
+            order = ((TopN) plan).getSortOrder();
+        else
+            return false;
+        if (order.numFields() < fields.length)
+            return false;
+        for (int f : fields) {
+            boolean found = false;
+            for (int i = 0; i < fields.length && !found; i++)
+                found = order.getField(i) == f;
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    /** Nothing is read ahead: groups are aggregated by fetchNext. */
+    protected void aggregateChild() {
+        lookahead = null;
+        returnedAny = false;
+    }
+
+    /**
+     * Returns the next group: its group by fields, if any, followed by the
+     * result of every aggregate. Reads the child up to the first tuple of
+     * the following group.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        OpIterator child = getChildren()[0];
+        if (lookahead == null) {
+            if (!child.hasNext()) {
+                // without grouping, an empty input still has an aggregate
+                if (gfields.length > 0 || returnedAny)
+                    return null;
+                returnedAny = true;
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < accumulators.length; i++)
+                    t.setField(i, new IntField(0));
+                return t;
+            }
+            lookahead = child.next();
+        }
+        Tuple first = lookahead;
+        for (Accumulator a : accumulators)
+            a.addGroup(0);
+        do {
+            for (int i = 0; i < accumulators.length; i++)
+                accumulators[i].merge(0, lookahead.getField(afields[i]));
+            lookahead = child.hasNext() ? child.next() : null;
+        } while (lookahead != null && sameGroup(first, lookahead));
+
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < gfields.length; i++)
+            t.setField(i, first.getField(gfields[i]));
+        for (int i = 0; i < accumulators.length; i++)
+            t.setField(gfields.length + i,
+                    new IntField(accumulators[i].result(0)));
+        returnedAny = true;
+        return t;
+    }
+
+    private boolean sameGroup(Tuple a, Tuple b) {
+        for (int f : gfields)
+            if (!a.getField(f).equals(b.getField(f)))
+                return false;
+        return true;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        getChildren()[0].rewind();
+        aggregateChild();
+    }
+}
@@ -2,27 +2,25 @@ package simpledb;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
 public class StringAggregator implements Aggregator {
 
-    // TODO:   note: only support count
-
     private static final long serialVersionUID = 1L;
     private int groupByFieldIndex;
     private Type groupByType;
     private int fieldIndex;
     private Op op;
 
-    // grouping
-    private HashMap<Field, Integer> aggrResult;
+    // the number of every group, and the group-by value of every number;
+    // without grouping, group 0 is the only group
+    private HashMap<Field, Integer> groupIds;
+    private ArrayList<Field> groups;
+    private Accumulator count;
 
-    // no grouping
     private boolean no_grouping;
-    private int aggrResult2;
 
     /**
      * Aggregate constructor
@@ -34,7 +32,6 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
         if (gbfield == Aggregator.NO_GROUPING) {
             no_grouping = true;
         }
@@ -42,8 +39,10 @@ public class StringAggregator implements Aggregator {
         groupByType = gbfieldtype;
         fieldIndex = afield;
         op = what;
-        aggrResult = new HashMap<>();
-        aggrResult2 = 0;
+        groupIds = new HashMap<>();
+        groups = new ArrayList<>();
+        // only COUNT is supported, whatever the operator
+        count = Accumulator.of(Op.COUNT);
     }
 
     /**
@@ -51,22 +50,27 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
-        // TODO note: only support count
+        int g;
         if (no_grouping) {
-            aggrResult2++;
-
+            g = 0;
+            if (groups.isEmpty()) {
+                groups.add(null);
+                count.addGroup(0);
+            }
         } else {
             Field groupByField = tup.getField(groupByFieldIndex);
-
-            // need to create a new group
-            if (!aggrResult.containsKey(groupByField)) {
-                aggrResult.put(groupByField, 1);
+            Integer id = groupIds.get(groupByField);
+            if (id == null) {
+                // need to create a new group
+                g = groups.size();
+                groupIds.put(groupByField, g);
+                groups.add(groupByField);
+                count.addGroup(g);
             } else {
-                int count = aggrResult.get(groupByField);
-                aggrResult.replace(groupByField, count+1);
+                g = id;
             }
         }
+        count.merge(g, tup.getField(fieldIndex));
     }
 
     /**
@@ -78,8 +82,6 @@ public class StringAggregator implements Aggregator {
      *   aggregate specified in the constructor.
      */
     public OpIterator iterator() {
-        // some code goes here
-
         if (no_grouping) {
             Type[] types = new Type[1];
             types[0] = Type.INT_TYPE;
@@ -87,17 +89,9 @@ public class StringAggregator implements Aggregator {
 
             ArrayList<Tuple> list = new ArrayList<>();
             Tuple t = new Tuple(td);
-            IntField field = new IntField(aggrResult2);
-            t.setField(0, field);
+            t.setField(0, new IntField(groups.isEmpty() ? 0 : count.result(0)));
             list.add(t);
-
-            Iterable<Tuple> iterable = new Iterable<Tuple>() {
-                @Override
-                public Iterator<Tuple> iterator() {
-                    return list.iterator();
-                }
-            };
-            return new TupleIterator(td, iterable);
+            return new TupleIterator(td, list);
 
         } else {
             Type[] types = new Type[2];
@@ -105,28 +99,15 @@ public class StringAggregator implements Aggregator {
             types[1] = Type.INT_TYPE;
             TupleDesc td = new TupleDesc(types);
 
-            // add tuples to list
-            ArrayList<Tuple> list = new ArrayList();
-            for (Field key: aggrResult.keySet()) {
-                int val = aggrResult.get(key);
-                IntField value = new IntField(val);
-
+            // add tuples to list, in the order the groups were seen
+            ArrayList<Tuple> list = new ArrayList<>();
+            for (int g = 0; g < groups.size(); g++) {
                 Tuple t = new Tuple(td);
-                t.setField(0, key);
-                t.setField(1, value);
+                t.setField(0, groups.get(g));
+                t.setField(1, new IntField(count.result(g)));
                 list.add(t);
             }
-
-            // new a iterable
-            Iterable<Tuple> iterable = new Iterable<Tuple>() {
-                @Override
-                public Iterator<Tuple> iterator() {
-                    return list.iterator();
-                }
-            };
-
-            // return a TupleIterator
-            return new TupleIterator(td, iterable);
+            return new TupleIterator(td, list);
         }
     }
 
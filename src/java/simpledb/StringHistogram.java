@@ -5,7 +5,10 @@ package simpledb;
  * field.
  * use IntHistogram to do histogram
  */
-public class StringHistogram {
+public class StringHistogram implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
     final IntHistogram hist;
 
     /**
@@ -25,7 +28,7 @@ public class StringHistogram {
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
      */
-    private int stringToInt(String s) {
+    static int stringToInt(String s) {
         int i;
         int v = 0;
         for (i = 3; i >= 0; i--) {
@@ -51,12 +54,12 @@ public class StringHistogram {
     }
 
     /** @return the maximum value indexed by the histogram */
-    int maxVal() {
+    static int maxVal() {
         return stringToInt("zzzz");
     }
 
     /** @return the minimum value indexed by the histogram */
-    int minVal() {
+    static int minVal() {
         return stringToInt("");
     }
 
@@ -66,6 +69,22 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /**
+     * Adjust the count of a value after a tuple was inserted (delta > 0) or
+     * deleted (delta < 0).
+     */
+    void adjustValue(String s, int delta) {
+        hist.adjustValue(stringToInt(s), delta);
+    }
+
+    /**
+     * Add the values of another StringHistogram with the same number of
+     * buckets to this one.
+     */
+    void merge(StringHistogram other) {
+        hist.merge(other.hist);
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
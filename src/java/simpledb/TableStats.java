@@ -1,18 +1,45 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
  * 
  * This class is not needed in implementing lab1 and lab2.
+ * <p>
+ * Statistics can be saved to and loaded from a stats file, so that they need
+ * not be recomputed every time the database starts. Once registered with
+ * {@link #setTableStats}, they are kept up to date as transactions insert
+ * and delete tuples: the BufferPool reports every modification, which is
+ * summed into per-column value counts of the transaction, and these are
+ * applied to the row count and histograms when it commits. When the
+ * modifications since the statistics were computed exceed a fraction of the
+ * table (see {@link #setRefreshThreshold}), the statistics are recomputed from
+ * scratch in the background.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
@@ -48,18 +75,341 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Compute statistics for every table in the catalog. The tables are
+     * analyzed concurrently, and every table is itself scanned in parallel.
+     */
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        computeStatistics(Database.getCatalog().tableIdIterator());
+    }
 
+    private static void computeStatistics(Iterator<Integer> tableIt) {
         System.out.println("Computing table stats.");
+        ArrayList<ForkJoinTask<TableStats>> tasks = new ArrayList<ForkJoinTask<TableStats>>();
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            final int tableid = tableIt.next();
+            tasks.add(ForkJoinPool.commonPool().submit(new Callable<TableStats>() {
+                public TableStats call() {
+                    return new TableStats(tableid, IOCOSTPERPAGE);
+                }
+            }));
+        }
+        for (ForkJoinTask<TableStats> task : tasks) {
+            TableStats s = task.join();
+            setTableStats(Database.getCatalog().getTableName(s.tableid), s);
         }
         System.out.println("Done.");
     }
 
+    /**
+     * @return the stats file kept alongside the given catalog file
+     */
+    public static File statsFileFor(String catalogFile) {
+        return new File(catalogFile + ".stats");
+    }
+
+    /**
+     * Write the statistics of all tables to a file.
+     */
+    public static void saveStatistics(File f) throws IOException {
+        HashMap<String, TableStats> copy = new HashMap<String, TableStats>();
+        for (Map.Entry<String, TableStats> e : statsMap.entrySet()) {
+            TableStats s = e.getValue();
+            synchronized (s) {
+                File disk = fileOf(s.dbFile);
+                if (disk != null) {
+                    s.savedLength = disk.length();
+                    s.savedModified = disk.lastModified();
+                }
+                copy.put(e.getKey(), s);
+            }
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(f));
+        try {
+            out.writeObject(copy);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load the statistics saved by {@link #saveStatistics}. Statistics of
+     * tables that are no longer in the catalog, or whose file changed size or
+     * modification time since the statistics were saved, are ignored.
+     *
+     * @return the names of the tables whose statistics were loaded
+     */
+    @SuppressWarnings("unchecked")
+    public static ArrayList<String> loadStatistics(File f) throws IOException {
+        HashMap<String, TableStats> saved;
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(f));
+        try {
+            saved = (HashMap<String, TableStats>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("malformed stats file " + f, e);
+        } finally {
+            in.close();
+        }
+
+        ArrayList<String> loaded = new ArrayList<String>();
+        for (Map.Entry<String, TableStats> e : saved.entrySet()) {
+            TableStats s = e.getValue();
+            DbFile file;
+            try {
+                if (Database.getCatalog().getTableId(e.getKey()) != s.tableid)
+                    continue;
+                file = Database.getCatalog().getDatabaseFile(s.tableid);
+            } catch (NoSuchElementException ex) {
+                continue;
+            }
+            if (file.numPages() != s.numPages || !s.matchesSavedFile(file))
+                continue;
+            s.dbFile = file;
+            setTableStats(e.getKey(), s);
+            loaded.add(e.getKey());
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the file holding the pages of a table, or null if unknown
+     */
+    private static File fileOf(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).getFile();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).getFile();
+        return null;
+    }
+
+    /**
+     * @return true if the file of the table has the length and modification
+     *         time it had when these statistics were saved
+     */
+    private boolean matchesSavedFile(DbFile file) {
+        File disk = fileOf(file);
+        return disk == null || (disk.length() == savedLength
+                && disk.lastModified() == savedModified);
+    }
+
+    /**
+     * Load the statistics of the tables in the catalog from a stats file if
+     * it exists, compute those that are missing or out of date, and save
+     * them all back to the file.
+     */
+    public static void loadOrComputeStatistics(File f) {
+        ArrayList<String> loaded = new ArrayList<String>();
+        if (f.exists()) {
+            try {
+                loaded = loadStatistics(f);
+                System.out.println("Loaded stats of " + loaded.size()
+                        + " tables from " + f);
+            } catch (IOException e) {
+                System.out.println("Could not read stats file " + f + ": " + e);
+            }
+        }
+
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            if (!loaded.contains(Database.getCatalog().getTableName(tableid)))
+                missing.add(tableid);
+        }
+        if (!missing.isEmpty()) {
+            computeStatistics(missing.iterator());
+            try {
+                saveStatistics(f);
+            } catch (IOException e) {
+                System.out.println("Could not write stats file " + f + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Default for {@link #setRefreshThreshold}: statistics are recomputed
+     * once a fifth of the table has been modified...
+     */
+    public static final double DEFAULT_REFRESH_FRACTION = 0.2;
+    /** ...and at least 1000 tuples were inserted or deleted. */
+    public static final int DEFAULT_REFRESH_MIN_TUPLES = 1000;
+
+    private static volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+    private static volatile int refreshMinTuples = DEFAULT_REFRESH_MIN_TUPLES;
+
+    /**
+     * Set when the statistics of a table are recomputed: once the number of
+     * tuples inserted and deleted since they were computed exceeds both
+     * fraction times the number of tuples the table had then, and minTuples.
+     *
+     * @param fraction
+     *            the fraction of the table, or a negative number to never
+     *            recompute statistics automatically
+     * @param minTuples
+     *            the minimum number of modified tuples
+     */
+    public static void setRefreshThreshold(double fraction, int minTuples) {
+        refreshFraction = fraction;
+        refreshMinTuples = minTuples;
+    }
+
+    /**
+     * The net changes a transaction that has not completed yet made to a
+     * table: the number of tuples inserted minus deleted, the number of
+     * tuples modified, and for every column, the net number of times each
+     * value was inserted. Once the transaction modified so many tuples that
+     * committing it will recompute the statistics anyway, the value counts
+     * are dropped.
+     */
+    private static class Delta {
+        final TableStats stats;
+        final HashMap<Field, Integer>[] values;
+        int tuples = 0;
+        int modified = 0;
+        boolean overflow = false;
+
+        @SuppressWarnings("unchecked")
+        Delta(TableStats stats) {
+            this.stats = stats;
+            values = new HashMap[stats.numFields];
+            for (int i = 0; i < values.length; i++)
+                values[i] = new HashMap<Field, Integer>();
+        }
+
+        void add(Tuple t, int delta) {
+            tuples += delta;
+            modified++;
+            if (overflow)
+                return;
+            if (stats.isStale(stats.modifiedTuples() + modified)) {
+                overflow = true;
+                for (HashMap<Field, Integer> v : values)
+                    v.clear();
+                return;
+            }
+            for (int i = 0; i < values.length; i++) {
+                Field f = t.getField(i);
+                Integer n = values[i].get(f);
+                int c = (n == null ? 0 : n) + delta;
+                if (c == 0)
+                    values[i].remove(f);
+                else
+                    values[i].put(f, c);
+            }
+        }
+    }
+
+    // the deltas of every running transaction, by table id
+    private static final ConcurrentHashMap<TransactionId, HashMap<Integer, Delta>> pending = new ConcurrentHashMap<TransactionId, HashMap<Integer, Delta>>();
+    // the statistics being recomputed, by table name
+    private static final ConcurrentHashMap<String, Future<?>> refreshing = new ConcurrentHashMap<String, Future<?>>();
+
+    /**
+     * Called by the BufferPool when a transaction inserts a tuple.
+     */
+    static void recordInsert(TransactionId tid, int tableid, Tuple t) {
+        record(tid, tableid, t, 1);
+    }
+
+    /**
+     * Called by the BufferPool when a transaction deletes a tuple.
+     */
+    static void recordDelete(TransactionId tid, int tableid, Tuple t) {
+        record(tid, tableid, t, -1);
+    }
+
+    private static void record(TransactionId tid, int tableid, Tuple t,
+            int delta) {
+        if (statsMap.isEmpty())
+            return;
+        HashMap<Integer, Delta> deltas = pending.get(tid);
+        if (deltas == null) {
+            pending.putIfAbsent(tid, new HashMap<Integer, Delta>());
+            deltas = pending.get(tid);
+        }
+        synchronized (deltas) {
+            Delta d = deltas.get(tableid);
+            if (d == null) {
+                TableStats s;
+                try {
+                    s = statsMap.get(Database.getCatalog().getTableName(
+                            tableid));
+                } catch (NoSuchElementException e) {
+                    return;
+                }
+                if (s == null || s.tableid != tableid)
+                    return;
+                d = new Delta(s);
+                deltas.put(tableid, d);
+            }
+            d.add(t, delta);
+        }
+    }
+
+    /**
+     * Called by the BufferPool when a transaction completes, after its locks
+     * were released. The deltas of a committed transaction are applied to the
+     * statistics of the tables it changed, and the statistics of tables that
+     * changed too much are recomputed in the background (see
+     * {@link #awaitRefresh}); those of an aborted transaction are dropped.
+     */
+    static void transactionComplete(TransactionId tid, boolean commit) {
+        HashMap<Integer, Delta> deltas = pending.remove(tid);
+        if (deltas == null || !commit)
+            return;
+
+        for (Delta d : deltas.values()) {
+            TableStats s = d.stats;
+            s.apply(d);
+            if (s.isStale())
+                refresh(s);
+        }
+    }
+
+    /**
+     * Recompute the statistics of s on the common pool, unless they are
+     * already being recomputed, and replace s with them if it was not
+     * replaced in the meantime.
+     */
+    private static void refresh(final TableStats s) {
+        final String name;
+        try {
+            name = Database.getCatalog().getTableName(s.tableid);
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        synchronized (refreshing) {
+            if (refreshing.containsKey(name) || statsMap.get(name) != s)
+                return;
+            refreshing.put(name, ForkJoinPool.commonPool().submit(
+                    new Runnable() {
+                        public void run() {
+                            try {
+                                TableStats fresh = new TableStats(s.tableid,
+                                        s.ioCostPerPage);
+                                statsMap.replace(name, s, fresh);
+                            } finally {
+                                refreshing.remove(name);
+                            }
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * Wait until the statistics that are being recomputed in the background
+     * have been replaced.
+     */
+    static void awaitRefresh() {
+        for (Future<?> f : refreshing.values()) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                // the old statistics are kept
+            }
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -67,13 +417,57 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100; // num of pillars
     private int ioCostPerPage;
-    private DbFile dbFile;
+    private transient DbFile dbFile;
     private int tableid;
     private int numFields;
     private int numTuples;
     private int numPages;
-    private HashMap<Integer, IntHistogram> intHistogramHashMap;
-    private HashMap<Integer, StringHistogram> stringHistogramHashMap;
+    // the shape of the B+ tree of a BTreeFile; for other files, the shape
+    // an index over the table would have (see the accessors)
+    private int indexHeight;
+    private int leafPages;
+    private double clusteringFactor;
+    // every field is described by its most common values, and an equi-depth
+    // histogram over the other values (strings are mapped to integers with
+    // StringHistogram.stringToInt)
+    private MostCommonValues[] mostCommonValues;
+    private EquiDepthHistogram[] histograms;
+    private HyperLogLog[] sketches;
+    private int[] distinctValues;
+    private int sampledPages;
+    // number of tuples when the statistics were computed, and number of
+    // tuples inserted or deleted since
+    private int computedTuples;
+    private int modifiedTuples = 0;
+    // length and modification time of the table's file when the statistics
+    // were last saved
+    private long savedLength = -1;
+    private long savedModified = -1;
+
+    /**
+     * Default for {@link #setSamplePages}: tables larger than 1024 pages
+     * (4MB with the default page size) are sampled.
+     */
+    public static final int DEFAULT_SAMPLE_PAGES = 1024;
+
+    private static volatile int samplePages = DEFAULT_SAMPLE_PAGES;
+
+    /**
+     * Set the maximum number of pages read to compute the statistics of a
+     * table. Larger tables are summarized from a random sample of this many
+     * pages, so the cost of computing statistics is bounded regardless of the
+     * size of the table.
+     *
+     * @param pages
+     *            the sample size in pages, or 0 to always read every page
+     */
+    public static void setSamplePages(int pages) {
+        samplePages = pages;
+    }
+
+    public static int getSamplePages() {
+        return samplePages;
+    }
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -86,6 +480,23 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, samplePages);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the pages of a table.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO. This doesn't differentiate between
+     *            sequential-scan IO and disk seeks.
+     * @param maxPages
+     *            The maximum number of pages to read; if the table has more,
+     *            a uniformly random subset of maxPages pages is read and the
+     *            statistics are extrapolated from it. 0 reads every page.
+     */
+    public TableStats(int tableid, int ioCostPerPage, int maxPages) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -94,72 +505,288 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
-        numTuples = 0;
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        intHistogramHashMap = new HashMap<>();
-        stringHistogramHashMap = new HashMap<>();
 
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        numPages = ((HeapFile)dbFile).numPages();
+        numPages = dbFile.numPages();
         TupleDesc td = dbFile.getTupleDesc();
 
         numFields = td.numFields();
         Type types[] = getTypes(td);
 
-        int[] mins = new int[numFields];
-        int[] maxs = new int[numFields];
-
+        // one pass over the (sampled) pages holding tuples computes the
+        // ranges and distributions of all fields at once
         TransactionId tid = new TransactionId();
-        SeqScan scan = new SeqScan(tid, tableid, "");
+        Summary summary;
         try {
-            scan.open();
-            for (int i = 0; i < numFields; i++) {
-                if (types[i] == Type.STRING_TYPE)
-                    continue;
-
-                // init min & max
-                int min = Integer.MAX_VALUE;
-                int max = Integer.MIN_VALUE;
-
-                // update min & max
-                while (scan.hasNext()) {
-                    if (i == 0)
-                        numTuples++;
-                    Tuple tuple = scan.next();
-                    IntField field = (IntField) tuple.getField(i);
-                    int val = field.getValue();
-                    if (val > max)
-                        max = val;
-                    if (val < min)
-                        min = val;
-                }
-
-                scan.rewind();
-                // store min & max
-                mins[i] = min;
-                maxs[i] = max;
+            PageId[] dataPages = dataPages(tid);
+            int[] chosen = choosePages(dataPages.length, maxPages, new Random());
+            PageId[] pages = new PageId[chosen.length];
+            for (int i = 0; i < chosen.length; i++)
+                pages[i] = dataPages[chosen[i]];
+            sampledPages = pages.length;
+            if (dataPages.length == 0 && numPages > 0) {
+                // a file we cannot read page by page; scan all of it
+                summary = scanAll(tid, types);
+                sampledPages = leafPages;
+            } else {
+                summary = ForkJoinPool.commonPool().invoke(
+                        new ScanTask(tid, types, pages, 0, pages.length));
             }
-            scan.close();
         } catch (Exception e) {
             e.printStackTrace();
+            summary = new Summary(types);
+        }
+
+        // the value counts are scaled to the whole table, in the same units
+        // as the deltas applied on commit
+        double scale = sampledPages == 0 ? 1.0 : (double) leafPages / sampledPages;
+        numTuples = (int) Math.round(summary.numTuples * scale);
+        if (!(dbFile instanceof BTreeFile))
+            indexHeight = treeHeight(numPages, numTuples);
+        computedTuples = numTuples;
+        sketches = summary.distinct;
+        distinctValues = new int[numFields];
+        mostCommonValues = new MostCommonValues[numFields];
+        histograms = new EquiDepthHistogram[numFields];
+        for (int i = 0; i < numFields; i++) {
+            distinctValues[i] = extrapolateDistinct(
+                    summary.distinct[i].estimate(), summary.numTuples,
+                    numTuples);
+            MostCommonValues mcv = summary.frequent[i].build(distinctValues[i]);
+            int[] keys = new int[mcv.size()];
+            int[] counts = new int[mcv.size()];
+            Iterator<Field> it = mcv.values();
+            for (int k = 0; it.hasNext(); k++) {
+                Field v = it.next();
+                keys[k] = histogramKey(v);
+                counts[k] = mcv.count(v);
+            }
+            mostCommonValues[i] = mcv;
+            histograms[i] = summary.values[i].buildEquiDepth(NUM_HIST_BINS,
+                    keys, counts, Math.max(0, distinctValues[i] - mcv.size()));
+            if (scale != 1.0) {
+                mcv.scale(scale);
+                histograms[i].scale(scale);
+            }
         }
+    }
 
+    /**
+     * List the pages of the table that hold tuples, and record the shape of
+     * its index: for a BTreeFile, the internal pages are walked one level at
+     * a time from the root, which yields the leaf pages in key order; the
+     * pages of a HeapFile all hold tuples.
+     * 
+     * @return the pages holding tuples, or no pages if the file is of a kind
+     *         that can only be read through its iterator
+     */
+    private PageId[] dataPages(TransactionId tid) throws DbException,
+            TransactionAbortedException {
+        if (dbFile instanceof HeapFile) {
+            PageId[] pages = new PageId[numPages];
+            for (int i = 0; i < numPages; i++)
+                pages[i] = new HeapPageId(tableid, i);
+            leafPages = numPages;
+            return pages;
+        }
+        if (!(dbFile instanceof BTreeFile) || numPages == 0) {
+            leafPages = numPages;
+            indexHeight = 1;
+            return new PageId[0];
+        }
+
+        BufferPool bp = Database.getBufferPool();
+        PageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        BTreePageId root = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId,
+                Permissions.READ_ONLY)).getRootId();
+        bp.releasePage(tid, rootPtrId);
+
+        ArrayList<BTreePageId> level = new ArrayList<BTreePageId>();
+        if (root != null)
+            level.add(root);
+        indexHeight = 1;
+        while (!level.isEmpty() && level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+            ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+            for (BTreePageId pid : level) {
+                BTreeInternalPage page = (BTreeInternalPage) bp.getPage(tid,
+                        pid, Permissions.READ_ONLY);
+                Iterator<BTreeEntry> it = page.iterator();
+                boolean first = true;
+                while (it.hasNext()) {
+                    BTreeEntry e = it.next();
+                    if (first)
+                        children.add(e.getLeftChild());
+                    children.add(e.getRightChild());
+                    first = false;
+                }
+                bp.releasePage(tid, pid);
+            }
+            level = children;
+            indexHeight++;
+        }
+
+        leafPages = level.size();
+        int jumps = 0;
+        for (int i = 1; i < level.size(); i++) {
+            if (level.get(i).getPageNumber() != level.get(i - 1).getPageNumber() + 1)
+                jumps++;
+        }
+        clusteringFactor = level.size() < 2 ? 0.0
+                : (double) jumps / (level.size() - 1);
+        return level.toArray(new PageId[level.size()]);
+    }
 
+    /**
+     * Summarize every tuple of the table through its iterator.
+     */
+    private Summary scanAll(TransactionId tid, Type[] types)
+            throws DbException, TransactionAbortedException {
+        Summary summary = new Summary(types);
+        DbFileIterator it = dbFile.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            summary.add(it.next());
+        it.close();
+        return summary;
+    }
+
+    /**
+     * @return the integer a field value is counted under in a histogram
+     */
+    static int histogramKey(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return ((IntField) f).getValue();
+        return StringHistogram.stringToInt(((StringField) f).getValue());
+    }
+
+    /**
+     * Apply the committed changes of a transaction to the row count, most
+     * common values and histograms, and bring the distinct value counts in
+     * line. Inserted values are also added to the distinct value sketches;
+     * deleted ones cannot be removed from them. A delta that has dropped its
+     * value counts only changes the row count, as the statistics are about to
+     * be recomputed.
+     */
+    private synchronized void apply(Delta d) {
+        numTuples = Math.max(0, numTuples + d.tuples);
+        modifiedTuples += d.modified;
         for (int i = 0; i < numFields; i++) {
-            Type type = types[i];
-            if (type == Type.INT_TYPE) {
-                IntHistogram intHistogram = new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
-                intHistogramHashMap.put(i, intHistogram);
-            } else {
-                StringHistogram stringHistogram = new StringHistogram(NUM_HIST_BINS);
-                stringHistogramHashMap.put(i, stringHistogram);
+            for (Map.Entry<Field, Integer> e : d.values[i].entrySet()) {
+                Field f = e.getKey();
+                int delta = e.getValue();
+                if (!mostCommonValues[i].adjustValue(f, delta))
+                    histograms[i].adjustValue(histogramKey(f), delta);
+                if (delta > 0)
+                    sketches[i].add(f);
             }
         }
+        updateDistinctValues();
+    }
+
+    /**
+     * Bring the distinct value counts in line with the sketches and the row
+     * count after modifications.
+     */
+    synchronized void updateDistinctValues() {
+        boolean sampled = sampledPages < leafPages;
+        for (int i = 0; i < numFields; i++) {
+            // the sketches of a sampled table only cover the sample, so
+            // their counts are not comparable to the extrapolated ones
+            if (!sampled)
+                distinctValues[i] = (int) Math.min(numTuples,
+                        sketches[i].estimate());
+            else
+                distinctValues[i] = Math.min(numTuples, distinctValues[i]);
+        }
+    }
 
-        addValuesToHist();
+    /**
+     * @return true if so many tuples were modified since the statistics were
+     *         computed that they should be recomputed
+     */
+    synchronized boolean isStale() {
+        return isStale(modifiedTuples);
     }
 
+    /**
+     * @return true if the statistics should be recomputed once the given
+     *         number of tuples were modified since they were computed
+     */
+    private boolean isStale(int modified) {
+        return refreshFraction >= 0 && modified >= refreshMinTuples
+                && modified > refreshFraction * computedTuples;
+    }
+
+    /**
+     * @return the number of tuples inserted or deleted since the statistics
+     *         were computed
+     */
+    public int modifiedTuples() {
+        return modifiedTuples;
+    }
+
+    /**
+     * Pick the pages to read: all of them if there are at most maxPages,
+     * otherwise a uniform random sample of maxPages pages chosen by
+     * reservoir sampling.
+     *
+     * @return the chosen page numbers in increasing order
+     */
+    static int[] choosePages(int numPages, int maxPages, Random r) {
+        int k = maxPages <= 0 ? numPages : Math.min(numPages, maxPages);
+        int[] pages = new int[k];
+        for (int i = 0; i < k; i++)
+            pages[i] = i;
+        for (int i = k; i < numPages; i++) {
+            int j = r.nextInt(i + 1);
+            if (j < k)
+                pages[j] = i;
+        }
+        Arrays.sort(pages);
+        return pages;
+    }
+
+    /**
+     * Extrapolate the number of distinct values of a table from that of a
+     * sample, assuming the values are uniformly distributed: a table with D
+     * distinct values is expected to show D * (1 - (1 - 1/D)^n) of them in a
+     * sample of n tuples, and we solve this for D. A field whose sampled
+     * values are (nearly) all different is thus assumed to keep growing with
+     * the table, while one whose sampled values repeat a lot is assumed to
+     * have shown all its values already.
+     *
+     * @param sampleDistinct
+     *            the number of distinct values in the sample
+     * @param sampleTuples
+     *            the number of tuples in the sample
+     * @param tableTuples
+     *            the (estimated) number of tuples in the table
+     */
+    static int extrapolateDistinct(long sampleDistinct, int sampleTuples,
+            int tableTuples) {
+        if (sampleTuples == 0)
+            return 0;
+        double d = Math.min(sampleDistinct, sampleTuples);
+        if (sampleTuples >= tableTuples || d == 0)
+            return (int) Math.max(d, 0);
+        if (d >= sampleTuples || expectedDistinct(tableTuples, sampleTuples) <= d)
+            return tableTuples;
+        double lo = d, hi = tableTuples;
+        for (int i = 0; i < 64 && hi - lo > 0.5; i++) {
+            double mid = (lo + hi) / 2;
+            if (expectedDistinct(mid, sampleTuples) < d)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return (int) Math.max(1, Math.round((lo + hi) / 2));
+    }
+
+    private static double expectedDistinct(double values, int draws) {
+        return values * -Math.expm1(draws * Math.log1p(-1 / values));
+    }
 
     private Type[] getTypes(TupleDesc td) {
         int numFields = td.numFields();
@@ -172,31 +799,101 @@ public class TableStats {
         return types;
     }
 
-    private void addValuesToHist() {
+    /**
+     * The tuple count and per-field distributions of some range of pages.
+     */
+    private static class Summary {
+        int numTuples = 0;
+        final IntHistogramBuilder[] values;
+        final MostCommonValues.Collector[] frequent;
+        final HyperLogLog[] distinct;
+
+        Summary(Type[] types) {
+            values = new IntHistogramBuilder[types.length];
+            frequent = new MostCommonValues.Collector[types.length];
+            distinct = new HyperLogLog[types.length];
+            for (int i = 0; i < types.length; i++) {
+                values[i] = new IntHistogramBuilder();
+                frequent[i] = new MostCommonValues.Collector();
+                distinct[i] = new HyperLogLog();
+            }
+        }
 
-        TransactionId tid = new TransactionId();
-        SeqScan scan = new SeqScan(tid, tableid, "");
-        try {
-            scan.open();
+        void add(Tuple tuple) {
+            numTuples++;
+            for (int i = 0; i < values.length; i++) {
+                Field field = tuple.getField(i);
+                values[i].addValue(histogramKey(field));
+                frequent[i].add(field);
+                distinct[i].add(field);
+            }
+        }
+
+        void merge(Summary other) {
+            numTuples += other.numTuples;
+            for (int i = 0; i < values.length; i++) {
+                values[i].merge(other.values[i]);
+                frequent[i].merge(other.frequent[i]);
+                distinct[i].merge(other.distinct[i]);
+            }
+        }
+    }
 
-            while (scan.hasNext()) {
-                Tuple tuple = scan.next();
+    /**
+     * Summarizes the pages pages[from], ..., pages[to - 1] (heap pages or
+     * B+ tree leaf pages), splitting the range in half until it is at most
+     * PAGES_PER_TASK pages long.
+     */
+    private static class ScanTask extends RecursiveTask<Summary> {
+        private static final long serialVersionUID = 1L;
+        private static final int PAGES_PER_TASK = 16;
 
-                for (int i = 0; i < numFields; i++) {
-                    Field field = tuple.getField(i);
+        private final TransactionId tid;
+        private final Type[] types;
+        private final PageId[] pages;
+        private final int from, to;
+
+        ScanTask(TransactionId tid, Type[] types, PageId[] pages, int from,
+                int to) {
+            this.tid = tid;
+            this.types = types;
+            this.pages = pages;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Summary compute() {
+            if (to - from > PAGES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                ScanTask left = new ScanTask(tid, types, pages, from, mid);
+                left.fork();
+                Summary summary = new ScanTask(tid, types, pages, mid, to)
+                        .compute();
+                summary.merge(left.join());
+                return summary;
+            }
 
-                    if (field.getType() == Type.INT_TYPE) {
-                        int val = ((IntField)field).getValue();
-                        intHistogramHashMap.get(i).addValue(val);
-                    } else {
-                        String val = ((StringField)field).getValue();
-                        stringHistogramHashMap.get(i).addValue(val);
-                    }
+            Summary summary = new Summary(types);
+            try {
+                for (int i = from; i < to; i++) {
+                    PageId pid = pages[i];
+                    Page page = Database.getBufferPool().getPage(tid, pid,
+                            Permissions.READ_ONLY);
+                    Iterator<Tuple> it = page instanceof HeapPage
+                            ? ((HeapPage) page).iterator()
+                            : ((BTreeLeafPage) page).iterator();
+                    while (it.hasNext())
+                        summary.add(it.next());
+                    // statistics need no isolation, so don't hold on to the
+                    // locks of every page of the table
+                    Database.getBufferPool().releasePage(tid, pid);
                 }
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
             }
-            scan.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return summary;
         }
     }
 
@@ -214,8 +911,68 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        HeapFile heapFile = (HeapFile)dbFile;
-        return heapFile.numPages() * ioCostPerPage;
+        // a BTreeFile is scanned by descending to its first leaf and then
+        // following the leaves
+        if (dbFile instanceof BTreeFile)
+            return (indexHeight - 1 + leafPages) * ioCostPerPage;
+        return dbFile.numPages() * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a range scan of the table's BTree index that
+     * returns the given fraction of its tuples. The scan descends from the
+     * root to the first match and then reads the leaf pages holding the
+     * matches in order; since a BTreeFile stores its tuples in the leaves,
+     * sorted on the key, the matches fill about selectivity * leafPages
+     * pages.
+     * 
+     * @param selectivity
+     *            the fraction of the tuples of the table the scan returns
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        int pages = Math.max(1, leafPages);
+        double matchPages = Math.min(pages,
+                Math.max(1.0, Math.ceil(selectivity * pages)));
+        return (Math.max(1, indexHeight) - 1 + matchPages) * ioCostPerPage;
+    }
+
+    /**
+     * @return the number of levels of the B+ tree of a BTreeFile, counting
+     *         the leaves; for other files, the estimated height of an index
+     *         over the table
+     */
+    public int indexHeight() {
+        return indexHeight;
+    }
+
+    /**
+     * @return the number of pages holding tuples: the leaf pages of a
+     *         BTreeFile, all pages of other files
+     */
+    public int leafPages() {
+        return leafPages;
+    }
+
+    /**
+     * @return the fraction of the steps from one leaf page of a BTreeFile to
+     *         the next (in key order) that do not go to the physically next
+     *         page of the file. A freshly loaded tree has a clustering factor
+     *         of 0, so its range scans read the file sequentially; page
+     *         splits move it towards 1. Always 0 for other files.
+     */
+    public double clusteringFactor() {
+        return clusteringFactor;
+    }
+
+    /**
+     * A rough estimate of the number of levels of a B+ tree over numPages
+     * pages, assuming internal pages are about as wide as leaf pages.
+     */
+    static int treeHeight(int numPages, int numTuples) {
+        numPages = Math.max(1, numPages);
+        double fanout = Math.max(2.0, (double) numTuples / numPages);
+        return 1 + (int) Math.ceil(Math.log(numPages) / Math.log(fanout));
     }
 
     /**
@@ -245,7 +1002,34 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        int ndv = numDistinctValues(field);
+        if (ndv == 0)
+            return 1.0;
+        switch (op) {
+        case EQUALS:
+            return 1.0 / ndv;
+        case NOT_EQUALS:
+            return 1.0 - 1.0 / ndv;
+        default:
+            return 1.0;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values of the field, from a
+     *         HyperLogLog sketch (extrapolated if the table was sampled)
+     */
+    public int numDistinctValues(int field) {
+        return distinctValues[field];
+    }
+
+    /**
+     * @return the number of pages that were read to compute these
+     *         statistics; less than the number of pages of the table if it
+     *         was sampled
+     */
+    public int sampledPages() {
+        return sampledPages;
     }
 
     /**
@@ -263,15 +1047,153 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        double selectivity;
-        if (constant.getType() == Type.INT_TYPE) {
-            IntField intField = (IntField)constant;
-            selectivity = intHistogramHashMap.get(field).estimateSelectivity(op, intField.getValue());
-        } else {
-            StringField stringField = (StringField)constant;
-            selectivity = stringHistogramHashMap.get(field).estimateSelectivity(op, stringField.getValue());
-        }
-        return selectivity;
+        // the most common values are counted exactly, the others estimated
+        // from the histogram
+        MostCommonValues mcv = mostCommonValues[field];
+        EquiDepthHistogram hist = histograms[field];
+        double total = mcv.total() + hist.total();
+        if (total <= 0)
+            return 0.0;
+        double count = mcv.count(op, constant);
+        if (!mcv.contains(constant))
+            count += hist.estimateCount(op, histogramKey(constant));
+        else if (op == Predicate.Op.NOT_EQUALS)
+            count += hist.total();
+        else if (op != Predicate.Op.EQUALS)
+            count += hist.estimateCount(op, histogramKey(constant));
+        return Math.max(0.0, Math.min(1.0, count / total));
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate
+     * <tt>field op other.otherField</tt> over the cross product of this table
+     * and another, i.e. the fraction of pairs of tuples that join.
+     * <p>
+     * Equality joins are estimated by joining the value distributions: the
+     * most common values of either side are matched exactly against the
+     * other side, and the overlapping parts of the histogram buckets are
+     * joined assuming the values within a bucket are spread uniformly, and
+     * that the side with fewer distinct values in an overlap only holds
+     * values of the other side. Other comparisons are estimated by
+     * evaluating the predicate on the other side for every common value and
+     * bucket (at its midpoint) of this side.
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op,
+            TableStats other, int otherField) {
+        MostCommonValues mcv1 = mostCommonValues[field];
+        EquiDepthHistogram h1 = histograms[field];
+        MostCommonValues mcv2 = other.mostCommonValues[otherField];
+        EquiDepthHistogram h2 = other.histograms[otherField];
+        double total1 = mcv1.total() + h1.total();
+        double total2 = mcv2.total() + h2.total();
+        if (total1 <= 0 || total2 <= 0)
+            return 0.0;
+
+        double matches;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            matches = equiJoinMatches(mcv1, h1, mcv2, h2);
+            break;
+        case NOT_EQUALS:
+            matches = total1 * total2 - equiJoinMatches(mcv1, h1, mcv2, h2);
+            break;
+        default:
+            // v op w for v on this side <=> w flipped(op) v on the other
+            Predicate.Op flipped = flip(op);
+            matches = 0;
+            Iterator<Field> it = mcv1.values();
+            while (it.hasNext()) {
+                Field v = it.next();
+                matches += mcv1.count(v)
+                        * other.countByKey(otherField, flipped, histogramKey(v));
+            }
+            for (int b = 0; b < h1.numBuckets(); b++) {
+                int mid = (int) (((long) h1.bucketLo(b) + h1.bucketHi(b)) / 2);
+                matches += h1.bucketCount(b)
+                        * other.countByKey(otherField, flipped, mid);
+            }
+        }
+        return Math.max(0.0, Math.min(1.0, matches / (total1 * total2)));
+    }
+
+    /**
+     * @return the estimated number of pairs of equal values of two value
+     *         distributions
+     */
+    private static double equiJoinMatches(MostCommonValues mcv1,
+            EquiDepthHistogram h1, MostCommonValues mcv2, EquiDepthHistogram h2) {
+        double matches = 0;
+        Iterator<Field> it = mcv1.values();
+        while (it.hasNext()) {
+            Field v = it.next();
+            double n = mcv2.contains(v) ? mcv2.count(v)
+                    : h2.estimateCount(Predicate.Op.EQUALS, histogramKey(v));
+            matches += mcv1.count(v) * n;
+        }
+        it = mcv2.values();
+        while (it.hasNext()) {
+            Field v = it.next();
+            if (!mcv1.contains(v))
+                matches += mcv2.count(v)
+                        * h1.estimateCount(Predicate.Op.EQUALS, histogramKey(v));
+        }
+
+        // the buckets of both histograms are sorted and disjoint, so the
+        // overlapping pairs are found by merging them
+        int a = 0, b = 0;
+        while (a < h1.numBuckets() && b < h2.numBuckets()) {
+            long lo = Math.max(h1.bucketLo(a), h2.bucketLo(b));
+            long hi = Math.min(h1.bucketHi(a), h2.bucketHi(b));
+            if (lo <= hi) {
+                double fa = (hi - lo + 1.0)
+                        / ((long) h1.bucketHi(a) - h1.bucketLo(a) + 1);
+                double fb = (hi - lo + 1.0)
+                        / ((long) h2.bucketHi(b) - h2.bucketLo(b) + 1);
+                double distinct = Math.max(1.0, Math.max(
+                        h1.bucketDistinct(a) * fa, h2.bucketDistinct(b) * fb));
+                matches += h1.bucketCount(a) * fa * h2.bucketCount(b) * fb
+                        / distinct;
+            }
+            if (h1.bucketHi(a) < h2.bucketHi(b))
+                a++;
+            else
+                b++;
+        }
+        return matches;
+    }
+
+    /**
+     * @return the estimated number of values v of the field (counted like
+     *         the most common values and histogram, i.e. in the table) with
+     *         <tt>key(v) op key</tt>
+     */
+    private double countByKey(int field, Predicate.Op op, int key) {
+        double n = 0;
+        MostCommonValues mcv = mostCommonValues[field];
+        Iterator<Field> it = mcv.values();
+        IntField k = new IntField(key);
+        while (it.hasNext()) {
+            Field v = it.next();
+            if (new IntField(histogramKey(v)).compare(op, k))
+                n += mcv.count(v);
+        }
+        return n + histograms[field].estimateCount(op, key);
+    }
+
+    private static Predicate.Op flip(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
     }
 
     /**
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT n: it returns the first n tuples of
+ * its child in sorted order. Rather than sorting the whole input, it keeps
+ * the n best tuples seen so far in a heap whose root is the worst of them,
+ * so the input is read in O(log n) time per tuple and O(n) memory.
+ * Tuples that compare equal are returned in input order, as by
+ * {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private SortOrder order;
+    private int limit;
+    private Tuple[] result;
+    private int pos;
+
+    /**
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(new SortOrder(orderbyField, asc), limit, child);
+    }
+
+    /**
+     * @param order
+     *            the fields to sort on, and their directions.
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(SortOrder order, int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.order = order;
+        this.limit = limit;
+    }
+
+    public SortOrder getSortOrder() {
+        return this.order;
+    }
+
+    public boolean isASC() {
+        return order.isAscending(0);
+    }
+
+    public int getOrderByField() {
+        return order.getField(0);
+    }
+
+    /** @return the maximum number of tuples returned */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A tuple with its position in the input, to keep the sort stable. */
+    private static class Ranked {
+        final Tuple t;
+        final long seq;
+
+        Ranked(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> cmp = order.comparator();
+        // orders the worst tuple first
+        Comparator<Ranked> worstFirst = new Comparator<Ranked>() {
+            public int compare(Ranked a, Ranked b) {
+                int c = cmp.compare(b.t, a.t);
+                return c != 0 ? c : Long.compare(b.seq, a.seq);
+            }
+        };
+        PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(
+                Math.max(1, Math.min(limit, 1 << 16)), worstFirst);
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Ranked(t.materialize(), seq));
+            } else if (limit > 0 && cmp.compare(t, heap.peek().t) < 0) {
+                // equal tuples seen later rank after those in the heap
+                heap.poll();
+                heap.add(new Ranked(t.materialize(), seq));
+            }
+            seq++;
+        }
+
+        result = new Tuple[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--)
+            result[i] = heap.poll().t;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (result != null && pos < result.length)
+            return result[pos++];
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -13,6 +13,12 @@ import java.util.Iterator;
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
+
+    // estimated heap bytes of a Tuple with its list of fields, and of each
+    // Field object and the reference to it, see estimateHeapSize
+    private static final int TUPLE_OVERHEAD = 64;
+    private static final int FIELD_OVERHEAD = 24;
+
     private TupleDesc tupleDesc;
     private ArrayList<Field> fields;
     private RecordId rid;
@@ -36,6 +42,39 @@ public class Tuple implements Serializable {
         }
     }
 
+    /**
+     * Create a tuple with the specified schema that takes ownership of the
+     * given list of fields. Subclasses that compute their fields on demand
+     * pass null.
+     */
+    Tuple(TupleDesc td, ArrayList<Field> fields) {
+        this.tupleDesc = td;
+        this.fields = fields;
+    }
+
+    /**
+     * Estimate the bytes of heap a tuple of the given schema takes: the
+     * bytes of its values, plus the Tuple, its list of fields and one Field
+     * object per value. Operators that hold tuples in memory up to a budget
+     * count them with this rather than with {@link TupleDesc#getSize}, which
+     * only counts the values.
+     */
+    static long estimateHeapSize(TupleDesc td) {
+        return td.getSize() + TUPLE_OVERHEAD + (long) FIELD_OVERHEAD * td.numFields();
+    }
+
+    /**
+     * Return a tuple that stores its own fields. Operators that keep tuples
+     * around for a long time (e.g. to sort them) or write them out call this
+     * so that they do not hold on to tuple views.
+     *
+     * @return this tuple, or a copy of it if it is a view over other tuples
+     * @see JoinedTuple
+     */
+    public Tuple materialize() {
+        return this;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -0,0 +1,246 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ApproxAggregateTest extends SimpleDbTestBase {
+
+    /** Rows (g, v) with 10 groups g and up to 3000 distinct v */
+    private static final int[] MIN = { 0, -1000 };
+    private static final int[] RANGE = { 10, 3000 };
+
+    /** The distinct values of v, by group g */
+    private static List<HashSet<Integer>> distinct(int[] data) {
+        List<HashSet<Integer>> sets = new ArrayList<HashSet<Integer>>();
+        for (int g = 0; g < 10; g++)
+            sets.add(new HashSet<Integer>());
+        for (int i = 0; i < data.length; i += 2)
+            sets.get(data[i]).add(data[i + 1]);
+        return sets;
+    }
+
+    /** The values of v in group g, sorted */
+    private static ArrayList<Integer> values(int[] data, int g) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < data.length; i += 2)
+            if (data[i] == g)
+                values.add(data[i + 1]);
+        Collections.sort(values);
+        return values;
+    }
+
+    private static int intOf(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
+    /**
+     * COUNT_DISTINCT is exact, alongside other aggregates, and when the
+     * sort and the groups spill to disk
+     */
+    @Test public void countDistinct() throws Exception {
+        int[] data = TestUtil.randomData(20000, 1, MIN, RANGE);
+        List<HashSet<Integer>> expected = distinct(data);
+        // the small budget holds 5 groups, and sorted runs of a few tuples
+        for (long budget : new long[] { SpillableAggregator.DEFAULT_MEMORY_BUDGET,
+                5 * (SpillableAggregator.GROUP_OVERHEAD + 28) }) {
+            Aggregate op = new Aggregate(TestUtil.createTupleList(2, data),
+                    new int[] { 1, 1 }, new Aggregator.Op[] {
+                            Aggregator.Op.COUNT_DISTINCT, Aggregator.Op.COUNT },
+                    new int[] { 0 });
+            op.setMemoryBudget(budget);
+            ArrayList<Tuple> result = TestUtil.readAll(op);
+            assertEquals(10, result.size());
+            for (Tuple t : result) {
+                int g = intOf(t, 0);
+                assertEquals(expected.get(g).size(), intOf(t, 1));
+                assertEquals(values(data, g).size(), intOf(t, 2));
+            }
+        }
+
+        HashSet<Integer> all = new HashSet<Integer>();
+        for (HashSet<Integer> s : expected)
+            all.addAll(s);
+        ArrayList<Tuple> result = TestUtil.readAll(new Aggregate(
+                TestUtil.createTupleList(2, data), 1, Aggregator.NO_GROUPING,
+                Aggregator.Op.COUNT_DISTINCT));
+        assertEquals(all.size(), intOf(result.get(0), 0));
+    }
+
+    /**
+     * Distinct counts are defined on strings
+     */
+    @Test public void countDistinctStrings() throws Exception {
+        Object[] data = new Object[2 * 2000];
+        Random r = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            data[2 * i] = i % 2;
+            data[2 * i + 1] = "s" + r.nextInt(300);
+        }
+        HashSet<String> even = new HashSet<String>();
+        for (int i = 0; i < 2000; i += 2)
+            even.add((String) data[2 * i + 1]);
+        Aggregate op = new Aggregate(TestUtil.createTupleList(2, data),
+                new int[] { 1, 1 }, new Aggregator.Op[] {
+                        Aggregator.Op.COUNT_DISTINCT,
+                        Aggregator.Op.APPROX_COUNT_DISTINCT }, new int[] { 0 });
+        for (Tuple t : TestUtil.readAll(op)) {
+            if (intOf(t, 0) == 0) {
+                assertEquals(even.size(), intOf(t, 1));
+                assertEquals(even.size(), intOf(t, 2), even.size() * 0.05);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countDistinctOfTwoFields() {
+        new Aggregate(TestUtil.createTupleList(2, new int[] { 1, 2 }),
+                new int[] { 0, 1 }, new Aggregator.Op[] {
+                        Aggregator.Op.COUNT_DISTINCT,
+                        Aggregator.Op.COUNT_DISTINCT }, new int[0]);
+    }
+
+    /**
+     * Approximate distinct counts and percentiles are close to the exact
+     * ones, and percentiles are sketched per aggregate
+     */
+    @Test public void approximate() throws Exception {
+        int[] data = TestUtil.randomData(30000, 3, MIN, RANGE);
+        List<HashSet<Integer>> expected = distinct(data);
+        Aggregate op = new Aggregate(TestUtil.createTupleList(2, data),
+                new int[] { 1, 1, 1 }, new Aggregator.Op[] {
+                        Aggregator.Op.APPROX_COUNT_DISTINCT,
+                        Aggregator.Op.APPROX_PERCENTILE,
+                        Aggregator.Op.APPROX_PERCENTILE },
+                new double[] { 0, 0.9, 0.1 }, new int[] { 0 });
+        assertEquals("approx_percentile(null)",
+                op.getTupleDesc().getFieldName(2));
+        for (Tuple t : TestUtil.readAll(op)) {
+            int g = intOf(t, 0);
+            int n = expected.get(g).size();
+            assertEquals(n, intOf(t, 1), n * 0.05);
+            ArrayList<Integer> values = values(data, g);
+            int p90 = values.get((int) (0.9 * values.size()));
+            int p10 = values.get((int) (0.1 * values.size()));
+            // 3000 values in 3000 buckets: 2% of ranks is about 60
+            assertEquals(p90, intOf(t, 2), 80);
+            assertEquals(p10, intOf(t, 3), 80);
+        }
+    }
+
+    /**
+     * Sketches of parallel partial aggregates merge into the estimates of
+     * the whole table
+     */
+    @Test public void parallel() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 40000, 5000, null,
+                tuples);
+        TransactionId tid = new TransactionId();
+        assertTrue(ParallelAggregation.of(new SeqScan(tid, f.getId(), "t"))
+                .workers(4) == 4);
+        HashSet<Integer> distinctValues = new HashSet<Integer>();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            distinctValues.add(t.get(1));
+            values.add(t.get(2));
+        }
+        Collections.sort(values);
+
+        ArrayList<Tuple> serial = null;
+        for (int parallelism : new int[] { 1, 4 }) {
+            Aggregate op = new Aggregate(new SeqScan(tid, f.getId(), "t"),
+                    new int[] { 1, 2, 1 }, new Aggregator.Op[] {
+                            Aggregator.Op.APPROX_COUNT_DISTINCT,
+                            Aggregator.Op.APPROX_PERCENTILE,
+                            Aggregator.Op.COUNT_DISTINCT },
+                    new double[] { 0, 0.5, 0 }, new int[0]);
+            op.setParallelism(parallelism);
+            ArrayList<Tuple> result = TestUtil.readAll(op);
+            Tuple t = result.get(0);
+            assertEquals(distinctValues.size(), intOf(t, 0),
+                    distinctValues.size() * 0.05);
+            assertEquals(values.get(values.size() / 2), intOf(t, 1), 150);
+            assertEquals(distinctValues.size(), intOf(t, 2));
+            if (serial == null)
+                serial = result;
+        }
+
+        // without COUNT_DISTINCT, the table is scanned in parallel, and
+        // HyperLogLog merges are exact
+        for (int parallelism : new int[] { 1, 4 }) {
+            Aggregate op = new Aggregate(new SeqScan(tid, f.getId(), "t"),
+                    new int[] { 1 }, new Aggregator.Op[] {
+                            Aggregator.Op.APPROX_COUNT_DISTINCT }, new int[0]);
+            op.setParallelism(parallelism);
+            assertEquals(intOf(serial.get(0), 0),
+                    intOf(TestUtil.readAll(op).get(0), 0));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * COUNT(DISTINCT f), APPROX_COUNT_DISTINCT(f) and
+     * APPROX_PERCENTILE(f, fraction) are parsed into a single Aggregate
+     */
+    @Test public void parse() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null,
+                tuples, "c");
+        Database.getCatalog().addTable(f, "aa");
+        TableStats.setTableStats("aa", new TableStats(f.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT APPROX_PERCENTILE(aa.c2, 0.9), COUNT(DISTINCT aa.c1), "
+                        + "APPROX_COUNT_DISTINCT(aa.c1), APPROX_PERCENTILE(aa.c2, 0.1) "
+                        + "FROM aa;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+        assertEquals(4, agg.aggregateOps().length);
+
+        HashSet<Integer> distinctValues = new HashSet<Integer>();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            distinctValues.add(t.get(1));
+            values.add(t.get(2));
+        }
+        Collections.sort(values);
+        Tuple t = TestUtil.readAll(plan).get(0);
+        assertEquals(values.get(2700), intOf(t, 0), 5);
+        assertEquals(distinctValues.size(), intOf(t, 1));
+        assertEquals(distinctValues.size(), intOf(t, 2), 10);
+        assertEquals(values.get(300), intOf(t, 3), 5);
+
+        String[] invalid = { "SELECT APPROX_PERCENTILE(aa.c2, 2) FROM aa;",
+                "SELECT APPROX_PERCENTILE(aa.c2, aa.c1) FROM aa;",
+                "SELECT APPROX_PERCENTILE(aa.c2, 'x') FROM aa;" };
+        for (String sql : invalid) {
+            try {
+                new Parser().generateLogicalPlan(tid, sql);
+                assertTrue(sql, false);
+            } catch (ParsingException e) {
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ApproxAggregateTest.class);
+    }
+}
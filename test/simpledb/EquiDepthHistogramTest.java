@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EquiDepthHistogramTest extends SimpleDbTestBase {
+
+    /**
+     * Every bucket holds about the same number of values, however skewed
+     * the distribution is
+     */
+    @Test public void equalDepth() {
+        IntHistogramBuilder b = new IntHistogramBuilder();
+        Random r = new Random(1);
+        int[] values = new int[20000];
+        for (int i = 0; i < values.length; i++) {
+            // exponentially distributed: dense near 0, sparse far from it
+            values[i] = (int) (-1000 * Math.log(1 - r.nextDouble()));
+            b.addValue(values[i]);
+        }
+        EquiDepthHistogram h = b.buildEquiDepth(20, new int[0], new int[0], 5000);
+        assertEquals(20, h.numBuckets());
+        assertEquals(values.length, h.total(), 0.0);
+
+        // the exact fraction of values below v; the error is bounded by the
+        // depth of a bucket
+        for (int v = 0; v < 8000; v += 250) {
+            int below = 0;
+            for (int x : values)
+                if (x < v)
+                    below++;
+            assertEquals((double) below / values.length,
+                    h.estimateSelectivity(Predicate.Op.LESS_THAN, v), 1.0 / 20);
+        }
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, -1), 0.0);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, b.max()), 1e-9);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, b.max()), 1e-9);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, b.max() + 1), 0.0);
+    }
+
+    /**
+     * Excluded values are removed from the counts, and values in gaps
+     * between buckets are estimated to not occur
+     */
+    @Test public void excludedValues() {
+        IntHistogramBuilder b = new IntHistogramBuilder();
+        for (int i = 0; i < 1000; i++)
+            b.addValue(7);
+        for (int v = 100; v < 200; v++)
+            b.addValue(v);
+        for (int v = 1000; v < 1100; v++)
+            b.addValue(v);
+        EquiDepthHistogram h = b.buildEquiDepth(10, new int[] { 7 },
+                new int[] { 1000 }, 200);
+        assertEquals(200, h.total(), 0.0);
+        assertEquals(0.0, h.estimateCount(Predicate.Op.EQUALS, 7), 0.0);
+        assertEquals(1.0, h.estimateCount(Predicate.Op.EQUALS, 150), 0.01);
+        assertEquals(0.0, h.estimateCount(Predicate.Op.EQUALS, 500), 0.0);
+        assertEquals(100.0, h.estimateCount(Predicate.Op.LESS_THAN, 500), 0.0);
+        assertEquals(150.0, h.estimateCount(Predicate.Op.LESS_THAN, 1050), 0.5);
+        assertEquals(0.005, h.avgSelectivity(), 0.001);
+    }
+
+    /**
+     * Inserted and deleted values adjust the counts, widening the buckets
+     * as needed
+     */
+    @Test public void adjustValue() {
+        IntHistogramBuilder b = new IntHistogramBuilder();
+        for (int v = 0; v < 100; v++)
+            b.addValue(v);
+        EquiDepthHistogram h = b.buildEquiDepth(4, new int[0], new int[0], 100);
+        for (int i = 0; i < 100; i++)
+            h.adjustValue(500, 1);
+        assertEquals(200, h.total(), 0.0);
+        // the new values widened the last bucket, the others are unchanged
+        assertEquals(0.375, h.estimateSelectivity(Predicate.Op.LESS_THAN, 75), 1e-9);
+        assertEquals(0.625, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 75), 1e-9);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 500), 1e-9);
+        h.adjustValue(50, -1000);
+        assertEquals(175, h.total(), 0.0);
+
+        EquiDepthHistogram empty = new IntHistogramBuilder().buildEquiDepth(4,
+                new int[0], new int[0], 0);
+        assertEquals(0, empty.numBuckets());
+        assertEquals(0.0, empty.estimateSelectivity(Predicate.Op.EQUALS, 3), 0.0);
+        empty.adjustValue(3, 1);
+        assertEquals(1.0, empty.estimateSelectivity(Predicate.Op.EQUALS, 3), 0.0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EquiDepthHistogramTest.class);
+    }
+}
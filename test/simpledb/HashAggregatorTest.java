@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.SUM,
+            Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.MIN,
+            Aggregator.Op.AVG };
+
+    /** Rows (a, b, x, y) with few distinct a and b */
+    private static final int[] MIN = { 0, -2, -300, 0 };
+    private static final int[] RANGE = { 7, 5, 1000, 100 };
+
+    /**
+     * SELECT a, b, SUM(x), COUNT(x), MAX(y), MIN(x), AVG(y) GROUP BY a, b,
+     * computed directly
+     */
+    private static ArrayList<String> expected(int[] data) {
+        Map<List<Integer>, List<Integer>> groups = new HashMap<List<Integer>, List<Integer>>();
+        for (int i = 0; i < data.length; i += 4) {
+            List<Integer> key = new ArrayList<Integer>();
+            key.add(data[i]);
+            key.add(data[i + 1]);
+            List<Integer> acc = groups.get(key);
+            if (acc == null) {
+                acc = new ArrayList<Integer>();
+                // sum x, count, max y, min x, sum y
+                acc.add(0);
+                acc.add(0);
+                acc.add(Integer.MIN_VALUE);
+                acc.add(Integer.MAX_VALUE);
+                acc.add(0);
+                groups.put(key, acc);
+            }
+            acc.set(0, acc.get(0) + data[i + 2]);
+            acc.set(1, acc.get(1) + 1);
+            acc.set(2, Math.max(acc.get(2), data[i + 3]));
+            acc.set(3, Math.min(acc.get(3), data[i + 2]));
+            acc.set(4, acc.get(4) + data[i + 3]);
+        }
+        ArrayList<String> result = new ArrayList<String>();
+        for (Map.Entry<List<Integer>, List<Integer>> e : groups.entrySet()) {
+            List<Integer> k = e.getKey();
+            List<Integer> a = e.getValue();
+            result.add(k.get(0) + "\t" + k.get(1) + "\t" + a.get(0) + "\t"
+                    + a.get(1) + "\t" + a.get(2) + "\t" + a.get(3) + "\t"
+                    + (a.get(4) / a.get(1)));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * All aggregates of all groups are computed in one pass
+     */
+    @Test public void groupByTwoFields() throws Exception {
+        int[] data = TestUtil.randomData(2000, 1, MIN, RANGE);
+        HashAggregator agg = new HashAggregator(new int[] { 0, 1 },
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new int[] { 2, 2, 3, 2, 3 }, Utility.getTypes(5), OPS);
+        OpIterator in = TestUtil.createTupleList(4, data);
+        in.open();
+        while (in.hasNext())
+            agg.mergeTupleIntoGroup(in.next());
+        assertEquals(expected(data), TestUtil.sortedResults(agg.iterator()));
+    }
+
+    /**
+     * The Aggregate operator names its output fields, and gives the same
+     * results when its groups are spilled
+     */
+    @Test public void aggregateOperator() throws Exception {
+        int[] data = TestUtil.randomData(3000, 2, MIN, RANGE);
+        Aggregate op = new Aggregate(TestUtil.createTupleList(4, data),
+                new int[] { 2, 2, 3, 2, 3 }, OPS, new int[] { 0, 1 });
+        TupleDesc td = op.getTupleDesc();
+        assertEquals(7, td.numFields());
+        assertEquals("sum(null)", td.getFieldName(2));
+        assertEquals(expected(data), TestUtil.sortedResults(op));
+
+        op = new Aggregate(TestUtil.createTupleList(4, data),
+                new int[] { 2, 2, 3, 2, 3 }, OPS, new int[] { 0, 1 });
+        op.setMemoryBudget(1);
+        assertEquals(expected(data), TestUtil.sortedResults(op));
+    }
+
+    /**
+     * Queries with several aggregates and GROUP BY columns are planned as a
+     * single Aggregate, and their select list can be in any order
+     */
+    @Test public void parseMultipleAggregates() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(4, 1000, 4, null, tuples, "c");
+        Database.getCatalog().addTable(f, "ha");
+        TableStats.setTableStats("ha", new TableStats(f.getId(), 1000));
+        int[] data = new int[4 * tuples.size()];
+        for (int i = 0; i < tuples.size(); i++)
+            for (int j = 0; j < 4; j++)
+                data[4 * i + j] = tuples.get(i).get(j);
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT ha.c0, ha.c1, SUM(ha.c2), COUNT(*), MAX(ha.c3), MIN(ha.c2), AVG(ha.c3) "
+                        + "FROM ha GROUP BY ha.c0, ha.c1;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+        assertEquals(2, agg.groupFields().length);
+        assertEquals(5, agg.aggregateOps().length);
+        assertEquals(expected(data), TestUtil.sortedResults(plan));
+
+        // aggregates before group fields, without grouping
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(*), ha.c1, SUM(ha.c2) FROM ha GROUP BY ha.c1;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        int rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int c1 = ((IntField) t.getField(1)).getValue();
+            int count = 0, sum = 0;
+            for (ArrayList<Integer> row : tuples) {
+                if (row.get(1) == c1) {
+                    count++;
+                    sum += row.get(2);
+                }
+            }
+            assertEquals(count, ((IntField) t.getField(0)).getValue());
+            assertEquals(sum, ((IntField) t.getField(2)).getValue());
+            rows += count;
+        }
+        plan.close();
+        assertEquals(1000, rows);
+
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(*), MAX(ha.c0) FROM ha;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        Tuple t = plan.next();
+        assertEquals(1000, ((IntField) t.getField(0)).getValue());
+        assertEquals(3, ((IntField) t.getField(1)).getValue());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashAggregatorTest.class);
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+    /**
+     * Small cardinalities are counted (almost) exactly, and duplicates do not
+     * change the estimate
+     */
+    @Test public void smallCounts() {
+        HyperLogLog hll = new HyperLogLog();
+        assertEquals(0, hll.estimate());
+        for (int rep = 0; rep < 3; rep++)
+            for (int i = 0; i < 100; i++)
+                hll.add(new IntField(i));
+        assertEquals(100, hll.estimate(), 2);
+
+        HyperLogLog strings = new HyperLogLog();
+        for (int i = 0; i < 50; i++)
+            strings.add(new StringField("value " + (i % 10), 32));
+        assertEquals(10, strings.estimate());
+    }
+
+    /**
+     * Large cardinalities are estimated within a few standard errors
+     */
+    @Test public void largeCounts() {
+        for (int n : new int[] { 10000, 100000, 1000000 }) {
+            HyperLogLog hll = new HyperLogLog();
+            for (int i = 0; i < n; i++)
+                hll.add(new IntField(i * 7 - n));
+            assertEquals(n, hll.estimate(), n * 0.05);
+        }
+    }
+
+    /**
+     * Merging sketches of overlapping inputs estimates the union
+     */
+    @Test public void merge() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        for (int i = 0; i < 60000; i++)
+            a.add(new IntField(i));
+        for (int i = 40000; i < 100000; i++)
+            b.add(new IntField(i));
+        a.merge(b);
+        assertEquals(100000, a.estimate(), 5000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDifferentPrecision() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HyperLogLogTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private BTreeFile inner;
+  private TransactionId tid;
+  private OpIterator outer;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() throws Exception {
+    // small key domain so that duplicate keys span several leaf pages
+    inner = BTreeUtility.createRandomBTreeFile(2, 3000, 200, null, null, 0);
+    Database.getCatalog().addTable(inner, "inner");
+    tid = new TransactionId();
+    this.outer = TestUtil.createTupleList(2,
+        new int[] { 7, 1,
+                    3, 2,
+                    150, 3,
+                    151, 4,
+                    152, 5,
+                    -5, 6,
+                    7, 7 });
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Runs the same join as a plain nested loops Join over a full scan of the
+   * index and returns the result as sorted lists of values.
+   */
+  private List<String> expected(Predicate.Op op) throws Exception {
+    Join j = new Join(new JoinPredicate(0, op, 0), outer,
+        new BTreeScan(tid, inner.getId(), "inner", null));
+    return collect(j);
+  }
+
+  private static List<String> collect(OpIterator it) throws Exception {
+    ArrayList<String> res = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      res.add(it.next().toString());
+    it.close();
+    Collections.sort(res);
+    return res;
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer,
+        new BTreeScan(tid, inner.getId(), "inner", null));
+    assertEquals(Utility.getTupleDesc(4), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    List<String> exp = expected(Predicate.Op.EQUALS);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer,
+        new BTreeScan(tid, inner.getId(), "inner", null));
+    assertTrue(exp.size() > 0);
+    assertEquals(exp, collect(op));
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using range predicates
+   */
+  @Test public void rangeJoin() throws Exception {
+    for (Predicate.Op p : new Predicate.Op[] { Predicate.Op.LESS_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ }) {
+      List<String> exp = expected(p);
+      IndexNestedLoopJoin op = new IndexNestedLoopJoin(
+          new JoinPredicate(0, p, 0), outer,
+          new BTreeScan(tid, inner.getId(), "inner", null));
+      assertEquals(exp, collect(op));
+    }
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer,
+        new BTreeScan(tid, inner.getId(), "inner", null));
+    op.open();
+    int first = 0;
+    while (op.hasNext()) {
+      op.next();
+      first++;
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    int second = 0;
+    while (op.hasNext()) {
+      op.next();
+      second++;
+    }
+    op.close();
+    assertEquals(first, second);
+  }
+
+  /**
+   * NOT_EQUALS cannot be answered by an index probe
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void notEqualsRejected() {
+    new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+        outer, new BTreeScan(tid, inner.getId(), "inner", null));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHistogramBuilderTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    /**
+     * With fewer distinct values than bins, the built histogram is identical
+     * to one filled directly
+     */
+    @Test public void exactForSmallRange() {
+        Random r = new Random(1);
+        IntHistogramBuilder b = new IntHistogramBuilder();
+        int[] values = new int[5000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = r.nextInt(1000) - 500;
+            b.addValue(values[i]);
+        }
+        IntHistogram expected = new IntHistogram(100, b.min(), b.max());
+        for (int v : values)
+            expected.addValue(v);
+        IntHistogram actual = b.build(100);
+        for (Predicate.Op op : OPS)
+            for (int v = -510; v <= 510; v += 7)
+                assertEquals(expected.estimateSelectivity(op, v),
+                        actual.estimateSelectivity(op, v), 1e-9);
+    }
+
+    /**
+     * Values spread over a wide range force the bins to widen; the
+     * selectivities must stay close to those of an exact histogram
+     */
+    @Test public void wideRange() {
+        Random r = new Random(2);
+        IntHistogramBuilder b = new IntHistogramBuilder();
+        int[] values = new int[20000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = r.nextInt(1 << 30) - (1 << 29);
+            b.addValue(values[i]);
+        }
+        assertEquals(values.length, b.count());
+        IntHistogram expected = new IntHistogram(100, b.min(), b.max());
+        for (int v : values)
+            expected.addValue(v);
+        IntHistogram actual = b.build(100);
+        for (int k = -10; k <= 10; k++) {
+            int v = k * ((1 << 29) / 10);
+            assertEquals(expected.estimateSelectivity(Predicate.Op.LESS_THAN, v),
+                    actual.estimateSelectivity(Predicate.Op.LESS_THAN, v), 0.01);
+        }
+    }
+
+    /**
+     * A descending input, and builders merged from disjoint halves, give the
+     * same histogram as adding every value to one builder
+     */
+    @Test public void mergeAndDescending() {
+        IntHistogramBuilder all = new IntHistogramBuilder();
+        IntHistogramBuilder low = new IntHistogramBuilder();
+        IntHistogramBuilder high = new IntHistogramBuilder();
+        for (int v = 100000; v >= -100000; v -= 3) {
+            all.addValue(v);
+            if (v < 0)
+                low.addValue(v);
+            else
+                high.addValue(v);
+        }
+        low.merge(high);
+        low.merge(new IntHistogramBuilder());
+        assertEquals(all.count(), low.count());
+        assertEquals(all.min(), low.min());
+        assertEquals(all.max(), low.max());
+
+        IntHistogram a = all.build(100);
+        IntHistogram m = low.build(100);
+        for (Predicate.Op op : OPS)
+            for (int v = -100000; v <= 100000; v += 9973)
+                assertEquals(a.estimateSelectivity(op, v),
+                        m.estimateSelectivity(op, v), 0.001);
+        assertEquals(0.5, a.estimateSelectivity(Predicate.Op.LESS_THAN, 0),
+                0.01);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHistogramBuilderTest.class);
+    }
+}
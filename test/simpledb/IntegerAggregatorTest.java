@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.util.NoSuchElementException;
 
@@ -126,6 +127,62 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  private static int aggregate(Aggregator.Op op, int gbfield, int[] values)
+      throws Exception {
+    int[] data = new int[2 * values.length];
+    for (int i = 0; i < values.length; i++)
+      data[2 * i + 1] = values[i];
+    OpIterator in = TestUtil.createTupleList(2, data);
+    IntegerAggregator agg = new IntegerAggregator(gbfield,
+        gbfield == Aggregator.NO_GROUPING ? null : Type.INT_TYPE, 1, op);
+    in.open();
+    while (in.hasNext())
+      agg.mergeTupleIntoGroup(in.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    Tuple t = it.next();
+    return ((IntField) t.getField(t.getTupleDesc().numFields() - 1)).getValue();
+  }
+
+  /**
+   * SUM and AVG are exact, even when intermediate sums do not fit in an int
+   */
+  @Test public void exactSumAndAvg() throws Exception {
+    int big = Integer.MAX_VALUE;
+    for (int gbfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+      assertEquals(big, aggregate(Aggregator.Op.SUM, gbfield,
+          new int[] { big, big, -big }));
+      assertEquals(big, aggregate(Aggregator.Op.AVG, gbfield,
+          new int[] { big, big, big }));
+      assertEquals(-big, aggregate(Aggregator.Op.AVG, gbfield,
+          new int[] { -big, -big, -big, -big }));
+      // a running average in doubles ends at 7.999999999999999
+      assertEquals(8, aggregate(Aggregator.Op.AVG, gbfield,
+          new int[] { 10, 10, 7, 6, 8, 10, 10, 3 }));
+      assertEquals(3, aggregate(Aggregator.Op.MIN, gbfield,
+          new int[] { 5, 3, 9 }));
+      assertEquals(9, aggregate(Aggregator.Op.MAX, gbfield,
+          new int[] { 5, 3, 9 }));
+    }
+  }
+
+  /**
+   * A SUM that does not fit in an int is an error, not a wrapped value
+   */
+  @Test public void sumOverflow() throws Exception {
+    for (int gbfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+      try {
+        aggregate(Aggregator.Op.SUM, gbfield,
+            new int[] { Integer.MAX_VALUE, 1 });
+        fail("expected IllegalStateException");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      assertEquals(Integer.MIN_VALUE, aggregate(Aggregator.Op.SUM, gbfield,
+          new int[] { Integer.MIN_VALUE + 1, -1 }));
+    }
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
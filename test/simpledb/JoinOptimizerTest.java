@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -263,6 +266,15 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
                         .getStatsMap());
 
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
+
+        // Off a primary key, every value of t1.c3 matches about 1/20 of the
+        // values of t2.c4, which are uniform over [0, 20)
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c" + Integer.toString(3), "c" + Integer.toString(4),
+                Predicate.Op.EQUALS), stats1.estimateTableCardinality(0.8),
+                stats2.estimateTableCardinality(0.2), false, false, TableStats
+                        .getStatsMap());
+        Assert.assertEquals(800 * 2000 / 20, cardinality, 800 * 2000 / 20 * 0.1);
     }
 
     /**
@@ -520,6 +532,197 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(result.get(result.size() - 1).t2Alias, "bigTable");
     }
 
+    /**
+     * Plan a 20-way chain join, which is ordered greedily, and a 10-way chain
+     * join by dynamic programming (with and without bushy plans) and
+     * greedily; every plan must join all tables without cross products, and
+     * be left-deep unless bushy plans are allowed
+     */
+    @Test(timeout = 20000)
+    public void greedyOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        final int TABLES = 20;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile first = SystemTestUtil.createRandomHeapFile(2, 100, 1000,
+                null, tuples, "c");
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        for (int i = 0; i < TABLES; i++) {
+            String name = "g" + i;
+            HeapFile f = i == 0 ? first : createDuplicateHeapFile(tuples, 2,
+                    "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), IO_COST));
+            filterSelectivities.put(name, 1.0);
+            from.append(i == 0 ? "" : ", ").append(name);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("g" + (i - 1), name, "c"
+                        + (i % 2), "c" + (i % 2), Predicate.Op.EQUALS));
+                where.append(i == 1 ? "" : " AND ").append("g" + (i - 1))
+                        .append(".c" + (i % 2)).append(" = ").append(name)
+                        .append(".c" + (i % 2));
+            }
+        }
+        Collections.shuffle(nodes);
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM " + from
+                + " WHERE " + where + ";");
+
+        JoinOptimizer j = new JoinOptimizer(lp, nodes);
+        checkLeftDeep(nodes, j.orderJoins(stats, filterSelectivities, false));
+
+        Vector<LogicalJoinNode> small = new Vector<LogicalJoinNode>();
+        for (LogicalJoinNode n : nodes) {
+            if (Integer.parseInt(n.t2Alias.substring(1)) < 10)
+                small.add(n);
+        }
+        j = new JoinOptimizer(lp, small);
+        checkPlan(small, j.orderJoins(stats, filterSelectivities, false));
+        j.setBushyThreshold(0);
+        checkLeftDeep(small, j.orderJoins(stats, filterSelectivities, false));
+        j.setGreedyThreshold(0);
+        checkLeftDeep(small, j.orderJoins(stats, filterSelectivities, false));
+    }
+
+    private static void checkLeftDeep(Vector<LogicalJoinNode> nodes,
+            Vector<LogicalJoinNode> result) {
+        Assert.assertEquals(nodes.size(), result.size());
+        HashSet<String> joined = new HashSet<String>();
+        for (LogicalJoinNode n : result) {
+            Assert.assertTrue(nodes.contains(n));
+            Assert.assertTrue(joined.isEmpty() || joined.contains(n.t1Alias)
+                    || joined.contains(n.t2Alias));
+            joined.add(n.t1Alias);
+            joined.add(n.t2Alias);
+        }
+    }
+
+    /**
+     * Check that result orders the joins of nodes into one (possibly bushy)
+     * tree: every join starts a new group of tables, extends one, or joins
+     * two groups.
+     * 
+     * @return the number of joins that join two groups
+     */
+    private static int checkPlan(Vector<LogicalJoinNode> nodes,
+            Vector<LogicalJoinNode> result) {
+        Assert.assertEquals(nodes.size(), result.size());
+        HashMap<String, Integer> group = new HashMap<String, Integer>();
+        int bushyJoins = 0;
+        for (int i = 0; i < result.size(); i++) {
+            LogicalJoinNode n = result.get(i);
+            Assert.assertTrue(nodes.contains(n));
+            Integer g1 = group.get(n.t1Alias);
+            Integer g2 = group.get(n.t2Alias);
+            Assert.assertTrue(g1 == null || !g1.equals(g2));
+            if (g1 != null && g2 != null)
+                bushyJoins++;
+            for (Map.Entry<String, Integer> e : group.entrySet()) {
+                if (e.getValue().equals(g1) || e.getValue().equals(g2))
+                    e.setValue(i);
+            }
+            group.put(n.t1Alias, i);
+            group.put(n.t2Alias, i);
+        }
+        Assert.assertEquals(1, new HashSet<Integer>(group.values()).size());
+        return bushyJoins;
+    }
+
+    /**
+     * Plan a snowflake query, where a fact table joins two chains of
+     * dimension tables that end in a selective filter. Joining each chain on
+     * its own and then the two results is cheaper than any left-deep plan;
+     * check that the optimizer finds such a bushy plan, and that it executes
+     * correctly.
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws Exception {
+        final int IO_COST = 100;
+        // fact(c0, c1): 2000 rows referencing d1.c0 and d2.c0
+        // d1(c0, c1), d2(c0, c1): 500 rows referencing e1.c0 and e2.c0
+        // e1(c0, c1), e2(c0, c1): 100 rows, filtered on c1 = 0
+        String[] names = { "fact", "d1", "d2", "e1", "e2" };
+        int[] sizes = { 2000, 500, 500, 100, 100 };
+        Random r = new Random(11);
+        HashMap<String, ArrayList<ArrayList<Integer>>> data = new HashMap<String, ArrayList<ArrayList<Integer>>>();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        for (int t = 0; t < names.length; t++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < sizes[t]; i++) {
+                ArrayList<Integer> tuple = new ArrayList<Integer>();
+                if (t == 0) {
+                    tuple.add(r.nextInt(500));
+                    tuple.add(r.nextInt(500));
+                } else if (t < 3) {
+                    tuple.add(i);
+                    tuple.add(r.nextInt(100));
+                } else {
+                    tuple.add(i);
+                    tuple.add(i % 10);
+                }
+                tuples.add(tuple);
+            }
+            HeapFile f = createDuplicateHeapFile(tuples, 2, "c");
+            Database.getCatalog().addTable(f, names[t]);
+            stats.put(names[t], new TableStats(f.getId(), IO_COST));
+            data.put(names[t], tuples);
+        }
+
+        TransactionId tid = new TransactionId();
+        String query = "SELECT * FROM fact, d1, d2, e1, e2 WHERE fact.c0 = d1.c0"
+                + " AND fact.c1 = d2.c0 AND d1.c1 = e1.c0 AND d2.c1 = e2.c0"
+                + " AND e1.c1 = 0 AND e2.c1 = 0;";
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("fact", "d1", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("fact", "d2", "c1", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("d1", "e1", "c1", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("d2", "e2", "c1", "c0", Predicate.Op.EQUALS));
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        for (String name : names)
+            filterSelectivities.put(name, name.startsWith("e") ? 0.1 : 1.0);
+
+        JoinOptimizer j = new JoinOptimizer(lp, nodes);
+        Vector<LogicalJoinNode> bushy = j.orderJoins(stats, filterSelectivities, false);
+        double bushyCost = j.estimatePlanCost(bushy, stats, filterSelectivities);
+        j.setBushyThreshold(0);
+        Vector<LogicalJoinNode> leftDeep = j.orderJoins(stats, filterSelectivities, false);
+        checkLeftDeep(nodes, leftDeep);
+        Assert.assertTrue(checkPlan(nodes, bushy) > 0);
+        Assert.assertTrue(bushyCost < j.estimatePlanCost(leftDeep, stats,
+                filterSelectivities));
+
+        // every fact row whose two dimension rows reference a row with c1 = 0
+        int expected = 0;
+        for (ArrayList<Integer> t : data.get("fact")) {
+            int e1 = data.get("d1").get(t.get(0)).get(1);
+            int e2 = data.get("d2").get(t.get(1)).get(1);
+            if (e1 % 10 == 0 && e2 % 10 == 0)
+                expected++;
+        }
+        Assert.assertTrue(expected > 0);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        int e1 = plan.getTupleDesc().fieldNameToIndex("e1.c1");
+        int e2 = plan.getTupleDesc().fieldNameToIndex("e2.c1");
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            Assert.assertEquals(new IntField(0), t.getField(e1));
+            Assert.assertEquals(new IntField(0), t.getField(e2));
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+    }
+
     /**
      * Test a join ordering with an inequality, to make sure the inequality gets
      * put as the outermost join
@@ -621,4 +824,213 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Verify that a join of few outer tuples into a BTreeFile keyed on the
+     * join field is costed as an index probe and instantiated as an
+     * IndexNestedLoopJoin, and that a large outer side, or a filtered or
+     * non-key inner side, falls back to a hash join.
+     */
+    @Test
+    public void indexNestedLoopJoinTest() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null,
+                null, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(bf, "TI", "c0");
+
+        Parser p = new Parser();
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, TI t2 WHERE t1.c1 = t2.c0;");
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+
+        double cost1 = stats1.estimateScanCost();
+        double cost2 = 19.0 * bf.numPages();
+        double hash = cost1 + cost2 + 2 * 10 + 10000;
+
+        LogicalJoinNode onKey = new LogicalJoinNode("t1", "t2", "c1", "c0",
+                Predicate.Op.EQUALS);
+        Assert.assertTrue(jo.estimateJoinCost(onKey, 10, 10000, cost1, cost2) < hash);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.INDEX, jo.chooseJoinMethod(
+                onKey, 10, 10000, cost1, cost2, true));
+        // probing once per outer tuple costs more than reading the inner side
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH, jo.chooseJoinMethod(
+                onKey, 1000, 10000, cost1, cost2, true));
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH, jo.chooseJoinMethod(
+                onKey, 10, 10000, cost1, cost2, false));
+
+        LogicalJoinNode notOnKey = new LogicalJoinNode("t1", "t2", "c1", "c1",
+                Predicate.Op.EQUALS);
+        Assert.assertEquals(hash,
+                jo.estimateJoinCost(notOnKey, 10, 10000, cost1, cost2), 0.001);
+
+        LogicalJoinNode range = new LogicalJoinNode("t1", "t2", "c1", "c1",
+                Predicate.Op.LESS_THAN);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.NESTED_LOOPS,
+                jo.chooseJoinMethod(range, 10, 10000, cost1, cost2, true));
+        Assert.assertEquals(cost1 + 10 * cost2 + 10 * 10000,
+                jo.estimateJoinCost(range, 10, 10000, cost1, cost2), 0.001);
+
+        lp.addFilter("t2.c1", Predicate.Op.GREATER_THAN, "5");
+        Assert.assertEquals(hash,
+                jo.estimateJoinCost(onKey, 10, 10000, cost1, cost2), 0.001);
+
+        TupleDesc outerTd = new TupleDesc(new Type[] { Type.INT_TYPE,
+                Type.INT_TYPE }, new String[] { "t1.c0", "t1.c1" });
+        OpIterator outer = new TupleIterator(outerTd, new ArrayList<Tuple>());
+        // the index is only probed if the optimizer found it cheapest
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(onKey, outer,
+                new BTreeScan(tid, bf.getId(), "t2", null)) instanceof HashEquiJoin);
+        onKey.method = JoinOptimizer.JoinMethod.INDEX;
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(onKey, outer,
+                new BTreeScan(tid, bf.getId(), "t2", null)) instanceof IndexNestedLoopJoin);
+        // hash joins run in parallel only when their inputs are large
+        notOnKey.method = JoinOptimizer.JoinMethod.HASH;
+        notOnKey.card1 = 10;
+        notOnKey.card2 = 1000;
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(notOnKey, outer,
+                new BTreeScan(tid, bf.getId(), "t2", null)) instanceof HashEquiJoin);
+        notOnKey.card2 = ParallelHashEquiJoin.PARALLEL_THRESHOLD;
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(notOnKey, outer,
+                new BTreeScan(tid, bf.getId(), "t2", null)) instanceof ParallelHashEquiJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, outer,
+                new BTreeScan(tid, bf.getId(), "t2", null)) instanceof Join);
+    }
+
+    /**
+     * Verify that a probe of an index on a non-key field is expected to match
+     * as many tuples as each distinct value of the field appears in, so a
+     * few outer tuples probe an index whose values repeat 100 times rather
+     * than hashing the whole table.
+     */
+    @Test
+    public void nonKeyIndexJoinTest() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, 100, null,
+                null, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(bf, "TI", "c1");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put("TI", new TableStats(bf.getId(), 19));
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM " + tableName1 + " t1, TI t2 WHERE t1.c1 = t2.c0;");
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c0",
+                Predicate.Op.EQUALS));
+        HashMap<String, Double> selectivities = new HashMap<String, Double>();
+        selectivities.put("t1", 0.01);
+        selectivities.put("t2", 1.0);
+
+        // without statistics every outer tuple is assumed to match 1000
+        double cost2 = 19.0 * bf.numPages();
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH, new JoinOptimizer(
+                lp, nodes).chooseJoinMethod(nodes.get(0), 10, 10000,
+                stats1.estimateScanCost(), cost2, true));
+        Vector<LogicalJoinNode> plan = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, selectivities, false);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.INDEX, plan.get(0).method);
+    }
+
+    /**
+     * Verify that a plan is costed with the join algorithms chosen for it:
+     * an index join chosen for a selective filter costs more than the best
+     * plan once the filter turns out to keep every row.
+     */
+    @Test
+    public void planCostKeepsJoinMethods() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null,
+                null, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(bf, "TI", "c0");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put("TI", new TableStats(bf.getId(), 19));
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM " + tableName1 + " t1, TI t2 WHERE t1.c1 = t2.c0;");
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c0",
+                Predicate.Op.EQUALS));
+        JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+        HashMap<String, Double> selective = new HashMap<String, Double>();
+        selective.put("t1", 0.001);
+        selective.put("t2", 1.0);
+        HashMap<String, Double> all = new HashMap<String, Double>();
+        all.put("t1", 1.0);
+        all.put("t2", 1.0);
+
+        Vector<LogicalJoinNode> indexPlan = jo.orderJoins(stats, selective, false);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.INDEX, indexPlan.get(0).method);
+        Vector<LogicalJoinNode> best = jo.orderJoins(stats, all, false);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH, best.get(0).method);
+        Assert.assertEquals(1000, best.get(0).card1);
+        Assert.assertEquals(10000, best.get(0).card2);
+        Assert.assertTrue(jo.estimatePlanCost(best, stats, all)
+                < jo.estimatePlanCost(indexPlan, stats, all));
+    }
+
+    /**
+     * Verify that a selective filter on the key of a BTreeFile is answered by
+     * an index range scan, in the physical plan and in the cost the optimizer
+     * charges for the table, while an unselective one keeps the full scan.
+     */
+    @Test
+    public void indexAccessPathTest() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, 1000000,
+                null, tuples, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(bf, "TI", "c0");
+        TableStats s = new TableStats(bf.getId(), 19);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("TI", s);
+
+        int key = tuples.get(42).get(0);
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) == key)
+                expected++;
+
+        Parser p = new Parser();
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM TI t WHERE t.c1 > 5 AND t.c0 = " + key + ";");
+        Assert.assertTrue(lp.estimateAccessCost("t", s) < s.estimateScanCost() / 4);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        OpIterator scan = plan;
+        int filters = 0;
+        while (scan instanceof Operator) {
+            if (scan instanceof Filter)
+                filters++;
+            scan = ((Operator) scan).getChildren()[0];
+        }
+        Assert.assertTrue(scan instanceof BTreeScan);
+        Assert.assertEquals(Predicate.Op.EQUALS,
+                ((BTreeScan) scan).getIndexPredicate().getOp());
+        Assert.assertEquals(1, filters);
+
+        int matches = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            Assert.assertEquals(new IntField(key), t.getField(0));
+            if (((IntField) t.getField(1)).getValue() > 5)
+                matches++;
+        }
+        plan.close();
+        int expectedMatches = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) == key && t.get(1) > 5)
+                expectedMatches++;
+        Assert.assertTrue(expected > 0);
+        Assert.assertEquals(expectedMatches, matches);
+
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM TI t WHERE t.c0 >= 0;");
+        Assert.assertEquals(s.estimateScanCost(),
+                lp.estimateAccessCost("t", s), 0.001);
+        Assert.assertNull(lp.chooseIndexFilter("t", s));
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM TI t WHERE t.c1 = 7;");
+        Assert.assertNull(lp.chooseIndexFilter("t", s));
+    }
 }
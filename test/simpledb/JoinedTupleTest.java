@@ -0,0 +1,81 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class JoinedTupleTest extends SimpleDbTestBase {
+
+    private Tuple left;
+    private Tuple right;
+    private TupleDesc td;
+
+    @Before public void setUp() {
+        left = Utility.getHeapTuple(new int[] { 1, 2 });
+        right = Utility.getHeapTuple(new int[] { 3, 4, 5 });
+        td = TupleDesc.merge(left.getTupleDesc(), right.getTupleDesc());
+    }
+
+    /**
+     * Unit test for JoinedTuple.getField()
+     */
+    @Test public void getField() {
+        JoinedTuple t = new JoinedTuple(td, left, right);
+        assertEquals(td, t.getTupleDesc());
+        for (int i = 0; i < 5; i++)
+            assertEquals(new IntField(i + 1), t.getField(i));
+        assertSame(right.getField(0), t.getField(2));
+
+        Iterator<Field> it = t.fields();
+        for (int i = 0; i < 5; i++)
+            assertEquals(new IntField(i + 1), it.next());
+        assertFalse(it.hasNext());
+        assertEquals(Utility.getHeapTuple(new int[] { 1, 2, 3, 4, 5 })
+                .toString(), t.toString());
+    }
+
+    /**
+     * Writing to a view must not modify the tuples it was built from
+     */
+    @Test public void setField() {
+        JoinedTuple t = new JoinedTuple(td, left, right);
+        t.setField(3, new IntField(40));
+        assertEquals(new IntField(40), t.getField(3));
+        assertEquals(new IntField(4), right.getField(1));
+        assertEquals(new IntField(1), t.getField(0));
+    }
+
+    /**
+     * Unit test for JoinedTuple.materialize()
+     */
+    @Test public void materialize() {
+        JoinedTuple t = new JoinedTuple(td, left, right);
+        Tuple m = t.materialize();
+        assertFalse(m instanceof JoinedTuple);
+        assertEquals(td, m.getTupleDesc());
+        assertEquals(t.toString(), m.toString());
+        assertSame(left, left.materialize());
+
+        // nested views flatten out as well
+        JoinedTuple nested = new JoinedTuple(TupleDesc.merge(td, td), t, t);
+        assertEquals(new IntField(5), nested.getField(9));
+        assertTrue(nested.materialize().toString().startsWith(t.toString()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JoinedTupleTest.class);
+    }
+}
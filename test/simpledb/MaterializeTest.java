@@ -0,0 +1,67 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MaterializeTest extends SimpleDbTestBase {
+
+    private static final int[] MIN = { 0, 0 };
+    private static final int[] RANGE = { 100, 0 };
+
+    /**
+     * Input that fits in the budget is held in memory and returned again,
+     * in order, after a rewind
+     */
+    @Test public void inMemory() throws Exception {
+        int[] data = TestUtil.randomData(1000, 1, MIN, RANGE);
+        ArrayList<String> expected = TestUtil.results(
+                TestUtil.createTupleList(2, data));
+        Materialize m = new Materialize(TestUtil.createTupleList(2, data));
+        m.open();
+        assertFalse(m.isSpilled());
+        assertEquals(expected, TestUtil.toStrings(TestUtil.drain(m)));
+        m.rewind();
+        assertEquals(expected, TestUtil.toStrings(TestUtil.drain(m)));
+        m.close();
+    }
+
+    /**
+     * Tuples past the budget are written to a temporary file and read back
+     * after the ones in memory, on every pass
+     */
+    @Test public void spilled() throws Exception {
+        int[] data = TestUtil.randomData(5000, 2, MIN, RANGE);
+        ArrayList<String> expected = TestUtil.results(
+                TestUtil.createTupleList(2, data));
+        Materialize m = new Materialize(TestUtil.createTupleList(2, data));
+        m.setMemoryBudget(100 * Tuple.estimateHeapSize(m.getTupleDesc()));
+        m.open();
+        assertTrue(m.isSpilled());
+        assertEquals(expected, TestUtil.toStrings(TestUtil.drain(m)));
+        m.rewind();
+        m.next();
+        m.rewind();
+        assertEquals(expected, TestUtil.toStrings(TestUtil.drain(m)));
+        m.close();
+        assertFalse(m.isSpilled());
+
+        // reopening reads the child again
+        assertEquals(expected, TestUtil.results(m));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MaterializeTest.class);
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MostCommonValuesTest extends SimpleDbTestBase {
+
+    /**
+     * With few distinct values, all of them are kept with exact counts
+     */
+    @Test public void fewValues() {
+        MostCommonValues.Collector c = new MostCommonValues.Collector();
+        for (int i = 0; i < 1000; i++)
+            c.add(new StringField(i % 3 == 0 ? "open" : "closed", 10));
+        MostCommonValues mcv = c.build(2);
+        assertEquals(2, mcv.size());
+        assertEquals(334, mcv.count(new StringField("open", 10)));
+        assertEquals(666, mcv.count(new StringField("closed", 10)));
+        assertEquals(0, mcv.count(new StringField("other", 10)));
+        assertEquals(1000, mcv.total());
+        assertEquals(334, mcv.count(Predicate.Op.GREATER_THAN,
+                new StringField("d", 10)));
+    }
+
+    /**
+     * Hot values of a skewed field are found, and the long tail is not kept
+     */
+    @Test public void skewedValues() {
+        Random r = new Random(4);
+        MostCommonValues.Collector a = new MostCommonValues.Collector();
+        MostCommonValues.Collector b = new MostCommonValues.Collector();
+        int hot = 0;
+        for (int i = 0; i < 100000; i++) {
+            int v;
+            if (r.nextInt(2) == 0) {
+                // half of the values are one of 5 hot values
+                v = r.nextInt(5);
+                hot++;
+            } else {
+                v = 1000 + r.nextInt(50000);
+            }
+            (i % 2 == 0 ? a : b).add(new IntField(v));
+        }
+        a.merge(b);
+        assertEquals(100000, a.count());
+        MostCommonValues mcv = a.build(50005);
+        assertEquals(5, mcv.size());
+        for (int v = 0; v < 5; v++)
+            assertTrue(mcv.contains(new IntField(v)));
+        assertFalse(mcv.contains(new IntField(1000)));
+        assertEquals(hot, mcv.total(), hot * 0.01);
+
+        assertTrue(mcv.adjustValue(new IntField(3), 10));
+        assertFalse(mcv.adjustValue(new IntField(1000), 10));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MostCommonValuesTest.class);
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    /**
+     * Tuples (v, i) for i = 0..n-1 and v random in [0, range)
+     */
+    private static OpIterator randomInput(int n, int range, long seed) {
+        return TestUtil.createTupleList(2, TestUtil.randomData(n, seed,
+                new int[] { 0, 0 }, new int[] { range, 0 }));
+    }
+
+    /**
+     * Check that tuples are sorted on field 0 and, for equal values, keep
+     * the input order given by field 1
+     */
+    private static void checkSorted(ArrayList<Tuple> tuples, boolean asc) {
+        for (int i = 1; i < tuples.size(); i++) {
+            int prev = ((IntField) tuples.get(i - 1).getField(0)).getValue();
+            int cur = ((IntField) tuples.get(i).getField(0)).getValue();
+            assertTrue(asc ? prev <= cur : prev >= cur);
+            if (prev == cur)
+                assertTrue(((IntField) tuples.get(i - 1).getField(1)).getValue()
+                        < ((IntField) tuples.get(i).getField(1)).getValue());
+        }
+    }
+
+    /**
+     * An input that fits in memory is sorted without writing runs
+     */
+    @Test public void inMemory() throws Exception {
+        OrderBy ob = new OrderBy(0, false, randomInput(2000, 50, 1));
+        ob.open();
+        ArrayList<Tuple> result = TestUtil.drain(ob);
+        assertEquals(2000, result.size());
+        checkSorted(result, false);
+        ob.close();
+    }
+
+    /**
+     * With a small budget the input is sorted in many runs, which take
+     * several merge passes
+     */
+    @Test public void external() throws Exception {
+        OrderBy ob = new OrderBy(0, true, randomInput(5000, 300, 2));
+        // about 100 tuples per run, merged four at a time
+        ob.setMemoryBudget(18000);
+        ob.open();
+        ArrayList<Tuple> result = TestUtil.drain(ob);
+        assertEquals(5000, result.size());
+        checkSorted(result, true);
+
+        ob.rewind();
+        assertEquals(result.toString(), TestUtil.drain(ob).toString());
+        ob.close();
+
+        // reopening sorts the input again rather than adding to it
+        ob.open();
+        assertEquals(result.toString(), TestUtil.drain(ob).toString());
+        ob.close();
+    }
+
+    /**
+     * String fields survive being written to and read from runs
+     */
+    @Test public void externalStrings() throws Exception {
+        Object[] data = new Object[2 * 500];
+        Random r = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            data[2 * i] = "s" + r.nextInt(1000);
+            data[2 * i + 1] = i;
+        }
+        ExternalSort sort = new ExternalSort(
+                TestUtil.createTupleList(2, data).getTupleDesc(),
+                new SortOrder(0, true), 3 * Type.STRING_TYPE.getLen());
+        OpIterator in = TestUtil.createTupleList(2, data);
+        while (in.hasNext())
+            sort.add(in.next());
+        sort.finish();
+        assertTrue(sort.numRuns() > 1);
+        String prev = "";
+        int count = 0;
+        while (sort.hasNext()) {
+            String s = ((StringField) sort.next().getField(0)).getValue();
+            assertTrue(prev.compareTo(s) <= 0);
+            prev = s;
+            count++;
+        }
+        assertEquals(500, count);
+        sort.close();
+    }
+
+    /**
+     * Sorting on several fields in mixed directions gives the same order as
+     * a stable sort with the field comparator, in memory and in runs
+     */
+    @Test public void multipleFields() throws Exception {
+        Object[] data = new Object[3 * 3000];
+        Random r = new Random(4);
+        for (int i = 0; i < 3000; i++) {
+            data[3 * i] = r.nextInt(20) - 10;
+            data[3 * i + 1] = "k" + r.nextInt(30);
+            data[3 * i + 2] = i;
+        }
+        SortOrder order = new SortOrder(new int[] { 1, 0 },
+                new boolean[] { false, true });
+        ArrayList<Tuple> expected = TestUtil.drain(
+                TestUtil.createTupleList(3, data));
+        Collections.sort(expected, order.comparator());
+
+        for (long budget : new long[] { ExternalSort.DEFAULT_MEMORY_BUDGET, 4000 }) {
+            OrderBy ob = new OrderBy(order, TestUtil.createTupleList(3, data));
+            ob.setMemoryBudget(budget);
+            ob.open();
+            assertEquals(expected.toString(), TestUtil.drain(ob).toString());
+            ob.close();
+        }
+    }
+
+    /**
+     * Parallel sorts return the same order as sequential ones, both for
+     * large in-memory sorts and for merge passes over many runs
+     */
+    @Test public void parallel() throws Exception {
+        int n = 4 * ExternalSort.PARALLEL_THRESHOLD;
+        Object[] data = new Object[3 * n];
+        Random r = new Random(5);
+        for (int i = 0; i < n; i++) {
+            data[3 * i] = r.nextInt(1000) - 500;
+            data[3 * i + 1] = "v" + r.nextInt(50);
+            data[3 * i + 2] = i;
+        }
+        SortOrder order = new SortOrder(new int[] { 1, 0 },
+                new boolean[] { true, false });
+        OrderBy ob = new OrderBy(order, TestUtil.createTupleList(3, data));
+        ob.setParallelism(1);
+        ob.open();
+        String expected = TestUtil.drain(ob).toString();
+        ob.close();
+
+        // the budget gives a fan-in of 8, so the parallel merge passes
+        // merge groups of 2
+        long[] budgets = { ExternalSort.DEFAULT_MEMORY_BUDGET,
+                8 * BufferPool.getPageSize() };
+        for (long budget : budgets) {
+            ob = new OrderBy(order, TestUtil.createTupleList(3, data));
+            ob.setParallelism(4);
+            ob.setMemoryBudget(budget);
+            ob.open();
+            assertEquals(expected, TestUtil.drain(ob).toString());
+            ob.close();
+        }
+    }
+
+    /**
+     * ORDER BY lists with several fields are planned as a single sort
+     */
+    @Test public void parseMultipleFields() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 5, null, tuples, "c");
+        Database.getCatalog().addTable(f, "ob");
+        TableStats.setTableStats("ob", new TableStats(f.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT ob.c0, ob.c1 FROM ob ORDER BY ob.c0 DESC, ob.c1;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OrderBy ob = (OrderBy) ((Operator) plan).getChildren()[0];
+        assertEquals(2, ob.getSortOrder().numFields());
+
+        int count = 0;
+        int prev0 = Integer.MAX_VALUE, prev1 = Integer.MIN_VALUE;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int v0 = ((IntField) t.getField(0)).getValue();
+            int v1 = ((IntField) t.getField(1)).getValue();
+            assertTrue(v0 < prev0 || (v0 == prev0 && v1 >= prev1));
+            prev0 = v0;
+            prev1 = v1;
+            count++;
+        }
+        plan.close();
+        assertEquals(500, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
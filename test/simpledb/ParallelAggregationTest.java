@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelAggregationTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.SUM,
+            Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.MIN,
+            Aggregator.Op.AVG };
+
+    private HeapFile table;
+    private TransactionId tid;
+
+    /**
+     * A table (g, x, y) of enough pages for 4 workers, with 50 distinct g
+     */
+    @Before public void createTable() throws Exception {
+        table = SystemTestUtil.createRandomHeapFile(3, 40000, 50, null,
+                new ArrayList<ArrayList<Integer>>());
+        tid = new TransactionId();
+        assertTrue(table.numPages() >= 4 * ParallelAggregation.MIN_PAGES_PER_WORKER);
+    }
+
+    private OpIterator scan() {
+        return new SeqScan(tid, table.getId(), "t");
+    }
+
+    private static ArrayList<String> results(Aggregate op, int parallelism)
+            throws Exception {
+        op.setParallelism(parallelism);
+        ArrayList<String> result = new ArrayList<String>();
+        op.open();
+        while (op.hasNext())
+            result.add(op.next().toString());
+        op.close();
+        return result;
+    }
+
+    /**
+     * Partial aggregates of page ranges merge into the groups, in the
+     * order, of a sequential aggregation
+     */
+    @Test public void matchesSequential() throws Exception {
+        int[] afields = { 1, 2, 1, 2, 1 };
+        ArrayList<String> expected = results(new Aggregate(scan(), afields,
+                OPS, new int[] { 0 }), 1);
+        assertEquals(50, expected.size());
+        assertEquals(expected, results(new Aggregate(scan(), afields, OPS,
+                new int[] { 0 }), 4));
+
+        expected = results(new Aggregate(scan(), afields, OPS, new int[0]), 1);
+        assertEquals(expected, results(new Aggregate(scan(), afields, OPS,
+                new int[0]), 4));
+    }
+
+    /**
+     * The predicates of filters over the scan are applied by the workers
+     */
+    @Test public void filtered() throws Exception {
+        Predicate p1 = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(20));
+        Predicate p2 = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10));
+        Aggregate serial = new Aggregate(new Filter(p2, new Filter(p1, scan())),
+                new int[] { 2, 2 }, new Aggregator.Op[] { Aggregator.Op.COUNT,
+                        Aggregator.Op.SUM }, new int[] { 0 });
+        Aggregate parallel = new Aggregate(new Filter(p2, new Filter(p1, scan())),
+                new int[] { 2, 2 }, new Aggregator.Op[] { Aggregator.Op.COUNT,
+                        Aggregator.Op.SUM }, new int[] { 0 });
+        ArrayList<String> expected = results(serial, 1);
+        assertEquals(39, expected.size());
+        assertEquals(expected, results(parallel, 4));
+    }
+
+    /**
+     * Workers holding more groups than fit in the memory budget give up,
+     * and the operator aggregates sequentially instead
+     */
+    @Test public void tooManyGroups() throws Exception {
+        ParallelAggregation parallel = ParallelAggregation.of(scan());
+        assertEquals(4, parallel.workers(4));
+        assertNull(parallel.aggregate(new int[] { 0 },
+                new Type[] { Type.INT_TYPE }, new int[] { 1 },
+                new Type[] { Type.INT_TYPE },
+                new Aggregator.Op[] { Aggregator.Op.SUM }, null, 4, 60));
+
+        ArrayList<String> expected = results(new Aggregate(scan(), 1, 0,
+                Aggregator.Op.SUM), 1);
+        Aggregate op = new Aggregate(scan(), 1, 0, Aggregator.Op.SUM);
+        op.setMemoryBudget(60 * (SpillableAggregator.GROUP_OVERHEAD + 12));
+        assertEquals(expected, results(op, 4));
+    }
+
+    /**
+     * Tables whose statistics estimate more groups than the workers may
+     * hold are not aggregated in parallel
+     */
+    @Test public void estimatedGroups() throws Exception {
+        ParallelAggregation parallel = ParallelAggregation.of(scan());
+        assertEquals(-1, parallel.estimateGroups(new int[] { 0 }));
+        String name = Database.getCatalog().getTableName(table.getId());
+        TableStats.setTableStats(name, new TableStats(table.getId(), 1000));
+        try {
+            long groups = parallel.estimateGroups(new int[] { 0 });
+            assertTrue(groups > 40 && groups < 60);
+            assertEquals(1, parallel.estimateGroups(new int[0]));
+            assertTrue(parallel.estimateGroups(new int[] { 0, 1 }) <= 40000);
+
+            Aggregator.Op[] ops = { Aggregator.Op.SUM };
+            Type[] types = { Type.INT_TYPE };
+            assertNull(parallel.aggregate(new int[] { 0 }, types,
+                    new int[] { 1 }, types, ops, null, 4, 30));
+            HashAggregator merged = parallel.aggregate(new int[] { 0 },
+                    types, new int[] { 1 }, types, ops, null, 4, 1000);
+            assertEquals(50, merged.numGroups());
+        } finally {
+            TableStats.getStatsMap().remove(name);
+        }
+    }
+
+    /**
+     * Distinct counts cannot be combined from partial aggregates, so they
+     * are not aggregated in parallel and cannot be merged
+     */
+    @Test public void notCombinable() throws Exception {
+        Aggregator.Op[] ops = { Aggregator.Op.COUNT_DISTINCT };
+        Type[] types = { Type.INT_TYPE };
+        assertNull(ParallelAggregation.of(scan()).aggregate(new int[] { 0 },
+                types, new int[] { 1 }, types, ops, null, 4, 1000));
+
+        HashAggregator a = new HashAggregator(new int[] { 0 }, types,
+                new int[] { 1 }, types, ops);
+        assertFalse(a.combinable());
+        try {
+            a.merge(new HashAggregator(new int[] { 0 }, types,
+                    new int[] { 1 }, types, ops));
+            fail("merged distinct counts");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    /**
+     * Only scans of HeapFiles are aggregated in parallel
+     */
+    @Test public void otherChildren() throws Exception {
+        assertNull(ParallelAggregation.of(TestUtil.createTupleList(2,
+                new int[] { 1, 2, 3, 4 })));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelAggregationTest.class);
+    }
+}
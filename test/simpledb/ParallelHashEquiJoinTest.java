@@ -0,0 +1,180 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ParallelHashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+  }
+
+  private static List<String> collect(OpIterator it) throws Exception {
+    ArrayList<String> res = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      res.add(it.next().toString());
+    it.close();
+    Collections.sort(res);
+    return res;
+  }
+
+  private static OpIterator randomTupleList(Random r, int width, int rows,
+      int maxValue) {
+    int[] data = new int[width * rows];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(maxValue);
+    return TestUtil.createTupleList(width, data);
+  }
+
+  /**
+   * Unit test for ParallelHashEquiJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ParallelHashEquiJoin op = new ParallelHashEquiJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    assertEquals(expected, op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for ParallelHashEquiJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ParallelHashEquiJoin op = new ParallelHashEquiJoin(pred, scan1, scan2, 3);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.close();
+    assertEquals(collect(eqJoin), collect(op));
+  }
+
+  /**
+   * Unit test for ParallelHashEquiJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ParallelHashEquiJoin op = new ParallelHashEquiJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.close();
+  }
+
+  /**
+   * Compare against HashEquiJoin on inputs large enough to need several
+   * probe batches per partition, for several partition counts
+   */
+  @Test public void largeJoin() throws Exception {
+    Random r = new Random(42);
+    OpIterator left = randomTupleList(r, width1, 5000, 2000);
+    OpIterator right = randomTupleList(r, width2, 20000, 2000);
+    JoinPredicate pred = new JoinPredicate(1, Predicate.Op.EQUALS, 2);
+    List<String> expected = collect(new HashEquiJoin(pred, left, right));
+    assertTrue(expected.size() > 0);
+    for (int partitions : new int[] { 1, 4, 16 }) {
+      assertEquals(expected, collect(new ParallelHashEquiJoin(pred, left,
+          right, partitions)));
+    }
+  }
+
+  /**
+   * Closing a join that has not been fully consumed must stop its feeder
+   */
+  @Test public void closeEarly() throws Exception {
+    Random r = new Random(7);
+    OpIterator left = randomTupleList(r, width1, 100, 10);
+    OpIterator right = randomTupleList(r, width2, 50000, 10);
+    ParallelHashEquiJoin op = new ParallelHashEquiJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    op.open();
+    for (int i = 0; i < 10; i++)
+      assertNotNull(op.next());
+    op.close();
+  }
+
+  /**
+   * A build side that does not fit in the memory budget is joined in chunks
+   * by a HashEquiJoin, which must give the same result, also after a rewind
+   */
+  @Test public void overBudget() throws Exception {
+    Random r = new Random(3);
+    OpIterator left = randomTupleList(r, width1, 1000, 200);
+    OpIterator right = randomTupleList(r, width2, 3000, 200);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    List<String> expected = collect(new ParallelHashEquiJoin(pred, left,
+        right));
+
+    ParallelHashEquiJoin op = new ParallelHashEquiJoin(pred, left, right);
+    op.setMemoryBudget(100 * ParallelHashEquiJoin.estimateBuildSize(
+        left.getTupleDesc()));
+    assertEquals(expected, collect(op));
+    op.open();
+    assertTrue(op.isFallback());
+    while (op.hasNext())
+      op.next();
+    op.rewind();
+    List<String> rewound = new ArrayList<String>();
+    while (op.hasNext())
+      rewound.add(op.next().toString());
+    op.close();
+    Collections.sort(rewound);
+    assertEquals(expected, rewound);
+  }
+
+  /**
+   * Only equality predicates can be answered by a hash join
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void nonEqualityRejected() {
+    new ParallelHashEquiJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+        scan1, scan2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelHashEquiJoinTest.class);
+  }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> aTuples;
+    private ArrayList<ArrayList<Integer>> bTuples;
+    private Parser parser;
+
+    @Before public void setUp() throws Exception {
+        aTuples = new ArrayList<ArrayList<Integer>>();
+        bTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 300, 20, null, aTuples, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 100, 20, null, bTuples, "c");
+        Database.getCatalog().addTable(a, "pa");
+        Database.getCatalog().addTable(b, "pb");
+        TableStats.setTableStats("pa", new TableStats(a.getId(), 1000));
+        TableStats.setTableStats("pb", new TableStats(b.getId(), 1000));
+        parser = new Parser();
+    }
+
+    private static ArrayList<Tuple> run(Query q) throws Exception {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        q.start();
+        while (q.hasNext())
+            result.add(q.next());
+        q.close();
+        Database.getBufferPool().transactionComplete(q.getTransactionId());
+        return result;
+    }
+
+    private int count(ArrayList<ArrayList<Integer>> tuples, int column, int v) {
+        int count = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(column) == v)
+                count++;
+        return count;
+    }
+
+    /**
+     * A prepared query returns the right tuples for every binding, and its
+     * executions share one cached plan
+     */
+    @Test public void query() throws Exception {
+        PreparedStatement ps = parser.prepareStatement(
+                "SELECT pa.c0, pb.c1 FROM pa, pb WHERE pa.c1 = pb.c0 AND pa.c0 = ? AND pb.c1 >= ?;");
+        assertEquals(2, ps.getParameterCount());
+        int hits = Parser.getPlanCache().hits();
+        for (int v = 0; v < 10; v++) {
+            ps.setInt(1, v);
+            ps.setInt(2, v);
+            int expected = 0;
+            for (ArrayList<Integer> ta : aTuples)
+                for (ArrayList<Integer> tb : bTuples)
+                    if (ta.get(0) == v && ta.get(1).equals(tb.get(0))
+                            && tb.get(1) >= v)
+                        expected++;
+            ArrayList<Tuple> result = run(ps.execute(new TransactionId()));
+            assertEquals(expected, result.size());
+            for (Tuple t : result)
+                assertEquals(new IntField(v), t.getField(0));
+        }
+        assertEquals(9, Parser.getPlanCache().hits() - hits);
+    }
+
+    /**
+     * Prepared inserts and deletes modify the table with the bound values
+     */
+    @Test public void insertAndDelete() throws Exception {
+        PreparedStatement insert = parser.prepareStatement("INSERT INTO pb VALUES (?, ?);");
+        PreparedStatement delete = parser.prepareStatement("DELETE FROM pb WHERE pb.c0 = ?;");
+        PreparedStatement select = parser.prepareStatement("SELECT pb.c1 FROM pb WHERE pb.c0 = ?;");
+        assertEquals(2, insert.getParameterCount());
+        assertEquals(1, delete.getParameterCount());
+
+        for (int i = 0; i < 5; i++) {
+            insert.setInt(1, 1000);
+            insert.setInt(2, i);
+            ArrayList<Tuple> result = run(insert.execute(new TransactionId()));
+            assertEquals(new IntField(1), result.get(0).getField(0));
+        }
+        select.setInt(1, 1000);
+        assertEquals(5, run(select.execute(new TransactionId())).size());
+
+        delete.setInt(1, 1000);
+        ArrayList<Tuple> result = run(delete.execute(new TransactionId()));
+        assertEquals(new IntField(5), result.get(0).getField(0));
+        assertEquals(0, run(select.execute(new TransactionId())).size());
+
+        select.setInt(1, 3);
+        assertEquals(count(bTuples, 0, 3),
+                run(select.execute(new TransactionId())).size());
+    }
+
+    /**
+     * Unbound parameters, parameters out of range and statements that
+     * cannot be prepared are rejected
+     */
+    @Test public void errors() throws Exception {
+        PreparedStatement ps = parser.prepareStatement("SELECT pa.c0 FROM pa WHERE pa.c1 = ?;");
+        try {
+            ps.execute(new TransactionId());
+            fail("expected ParsingException for an unbound parameter");
+        } catch (ParsingException e) {
+        }
+        try {
+            ps.setInt(2, 1);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        ps.setInt(1, 4);
+        assertEquals(count(aTuples, 1, 4), run(ps.execute(new TransactionId())).size());
+        ps.clearParameters();
+        try {
+            ps.execute(new TransactionId());
+            fail("expected ParsingException for an unbound parameter");
+        } catch (ParsingException e) {
+        }
+        try {
+            parser.prepareStatement("COMMIT;");
+            fail("expected ParsingException for a transaction statement");
+        } catch (ParsingException e) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
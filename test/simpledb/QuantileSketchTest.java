@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class QuantileSketchTest extends SimpleDbTestBase {
+
+    /** The fraction of values less than or equal to v */
+    private static double rankOf(int v, ArrayList<Integer> sorted) {
+        int i = Collections.binarySearch(sorted, v + 1);
+        if (i < 0)
+            i = -i - 1;
+        while (i > 0 && sorted.get(i - 1) > v)
+            i--;
+        return (double) i / sorted.size();
+    }
+
+    /**
+     * Few values are kept exactly, so quantiles are exact
+     */
+    @Test public void smallInputs() {
+        QuantileSketch s = new QuantileSketch();
+        for (int i = 100; i >= 1; i--)
+            s.add(i);
+        assertEquals(100, s.size());
+        assertEquals(1, s.quantile(0));
+        assertEquals(50, s.quantile(0.5));
+        assertEquals(90, s.quantile(0.9));
+        assertEquals(100, s.quantile(1));
+    }
+
+    /**
+     * Quantiles of large inputs have ranks within about 1% of the
+     * requested ones
+     */
+    @Test public void largeInputs() {
+        Random r = new Random(1);
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        QuantileSketch s = new QuantileSketch();
+        for (int i = 0; i < 200000; i++) {
+            int v = (int) (r.nextGaussian() * 10000);
+            values.add(v);
+            s.add(v);
+        }
+        Collections.sort(values);
+        for (double q : new double[] { 0.01, 0.25, 0.5, 0.75, 0.9, 0.99 })
+            assertEquals(q, rankOf(s.quantile(q), values), 0.02);
+        assertEquals((int) values.get(0), s.quantile(0));
+    }
+
+    /**
+     * Merging sketches of parts of the input estimates the quantiles of the
+     * whole
+     */
+    @Test public void merge() {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        QuantileSketch total = new QuantileSketch();
+        for (int part = 0; part < 8; part++) {
+            QuantileSketch s = new QuantileSketch();
+            for (int i = 0; i < 20000; i++) {
+                int v = part * 10000 + i;
+                values.add(v);
+                s.add(v);
+            }
+            total.merge(s);
+        }
+        assertEquals(160000, total.size());
+        Collections.sort(values);
+        for (double q : new double[] { 0.1, 0.5, 0.9 })
+            assertEquals(q, rankOf(total.quantile(q), values), 0.02);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDifferentK() {
+        new QuantileSketch(100).merge(new QuantileSketch(200));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void empty() {
+        new QuantileSketch().quantile(0.5);
+    }
+
+    /**
+     * Memory stays bounded however many values are added
+     */
+    @Test public void bounded() {
+        QuantileSketch s = new QuantileSketch();
+        for (int i = 0; i < 1000000; i++)
+            s.add(i);
+        assertTrue(s.retained() < 4 * QuantileSketch.DEFAULT_K);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QuantileSketchTest.class);
+    }
+}
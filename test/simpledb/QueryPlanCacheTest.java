@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import Zql.ZQuery;
+import Zql.ZqlParser;
+
+public class QueryPlanCacheTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> aTuples;
+    private ArrayList<ArrayList<Integer>> bTuples;
+    private HashMap<String, TableStats> stats;
+
+    @Before public void setUp() throws Exception {
+        aTuples = new ArrayList<ArrayList<Integer>>();
+        bTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 500, 50, null, aTuples, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, bTuples, "c");
+        Database.getCatalog().addTable(a, "a");
+        Database.getCatalog().addTable(b, "b");
+        stats = new HashMap<String, TableStats>();
+        stats.put("a", new TableStats(a.getId(), 1000));
+        stats.put("b", new TableStats(b.getId(), 1000));
+    }
+
+    private static ZQuery parse(String sql) throws Exception {
+        return (ZQuery) new ZqlParser(new ByteArrayInputStream(sql.getBytes()))
+                .readStatement();
+    }
+
+    private int run(QueryPlanCache cache, String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        ZQuery q = parse(sql);
+        LogicalPlan lp = new Parser().parseQueryLogicalPlan(tid, q);
+        OpIterator plan = cache.physicalPlan(QueryPlanCache.normalize(q), lp,
+                tid, stats, false);
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private int expected(int max) {
+        int count = 0;
+        for (ArrayList<Integer> ta : aTuples)
+            for (ArrayList<Integer> tb : bTuples)
+                if (ta.get(0).equals(tb.get(0)) && ta.get(1) < max)
+                    count++;
+        return count;
+    }
+
+    private static String join(int max) {
+        return "SELECT * FROM a, b WHERE a.c0 = b.c0 AND a.c1 < " + max + ";";
+    }
+
+    /**
+     * Queries that differ only in their constants have the same shape
+     */
+    @Test public void normalize() throws Exception {
+        String s = QueryPlanCache.normalize(parse(join(5)));
+        assertNotNull(s);
+        assertEquals(s, QueryPlanCache.normalize(parse(join(17))));
+        assertFalse(s.contains("5"));
+        assertEquals(
+                QueryPlanCache.normalize(parse("SELECT a.c0 FROM a WHERE a.c1 = 'x';")),
+                QueryPlanCache.normalize(parse("SELECT a.c0 FROM a WHERE a.c1 = 'yz';")));
+        assertFalse(s.equals(QueryPlanCache.normalize(parse(
+                "SELECT * FROM a, b WHERE a.c0 = b.c0 AND a.c0 < 5;"))));
+        assertNull(QueryPlanCache.normalize(parse(
+                "SELECT a.c0 FROM a WHERE a.c0 = (SELECT b.c0 FROM b WHERE b.c1 = 3);")));
+    }
+
+    /**
+     * A repeated query reuses the cached plan with its own constants, until
+     * the statistics of one of its tables are replaced
+     */
+    @Test public void reuseAndInvalidate() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache();
+        assertEquals(expected(10), run(cache, join(10)));
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.size());
+
+        assertEquals(expected(30), run(cache, join(30)));
+        assertEquals(expected(2), run(cache, join(2)));
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+
+        stats.put("b", new TableStats(Database.getCatalog().getTableId("b"), 1000));
+        assertEquals(expected(30), run(cache, join(30)));
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+        assertEquals(expected(30), run(cache, join(30)));
+        assertEquals(3, cache.hits());
+    }
+
+    /**
+     * A query whose constants make a filter much more or less selective is
+     * optimized again, and its plan replaces the cached one
+     */
+    @Test public void replanOnSelectivity() throws Exception {
+        assertTrue(QueryPlanCache.similarSelectivity(0.2, 0.05));
+        assertFalse(QueryPlanCache.similarSelectivity(0.5, 0.01));
+        assertTrue(QueryPlanCache.similarSelectivity(0.0, 1e-7));
+
+        QueryPlanCache cache = new QueryPlanCache();
+        assertEquals(expected(40), run(cache, join(40)));
+        assertEquals(expected(2), run(cache, join(2)));
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+        assertEquals(expected(3), run(cache, join(3)));
+        assertEquals(1, cache.hits());
+        assertEquals(expected(45), run(cache, join(45)));
+        assertEquals(3, cache.misses());
+    }
+
+    /**
+     * The cache holds a bounded number of plans and evicts the least
+     * recently used one
+     */
+    @Test public void evictLeastRecentlyUsed() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(2);
+        run(cache, join(10));
+        run(cache, "SELECT a.c0 FROM a WHERE a.c1 = 3;");
+        run(cache, join(20));
+        run(cache, "SELECT b.c0 FROM b WHERE b.c1 = 3;");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.hits());
+
+        run(cache, join(40));
+        assertEquals(2, cache.hits());
+        run(cache, "SELECT a.c0 FROM a WHERE a.c1 = 4;");
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryPlanCacheTest.class);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+  private static List<String> collect(OpIterator it) throws Exception {
+    ArrayList<String> res = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      res.add(it.next().toString());
+    it.close();
+    Collections.sort(res);
+    return res;
+  }
+
+  /**
+   * Every added key must be reported as possibly contained, and most keys
+   * that were not added should be rejected
+   */
+  @Test public void mightContain() {
+    Random r = new Random(3);
+    HashSet<Integer> added = new HashSet<Integer>();
+    RuntimeFilter f = new RuntimeFilter(1000);
+    for (int i = 0; i < 1000; i++) {
+      int v = r.nextInt(1000000);
+      added.add(v);
+      f.add(new IntField(v));
+    }
+    for (int v : added)
+      assertTrue(f.mightContain(new IntField(v)));
+
+    int falsePositives = 0, tried = 0;
+    for (int v = 0; v < 1000000; v += 97) {
+      if (added.contains(v))
+        continue;
+      tried++;
+      if (f.mightContain(new IntField(v)))
+        falsePositives++;
+    }
+    assertTrue(falsePositives < tried / 20);
+  }
+
+  /**
+   * Keys outside the range of the added keys are always rejected
+   */
+  @Test public void range() {
+    RuntimeFilter f = new RuntimeFilter(Arrays.asList(new IntField(10),
+        new IntField(20)));
+    assertFalse(f.mightContain(new IntField(9)));
+    assertFalse(f.mightContain(new IntField(21)));
+    assertTrue(f.mightContain(new IntField(10)));
+    assertTrue(f.mightContain(new IntField(20)));
+  }
+
+  @Test public void empty() {
+    RuntimeFilter f = new RuntimeFilter(0);
+    assertFalse(f.mightContain(new IntField(0)));
+    assertFalse(f.mightContain(new StringField("a", 10)));
+  }
+
+  @Test public void stringKeys() {
+    RuntimeFilter f = new RuntimeFilter(Arrays.asList(new StringField("ab", 10),
+        new StringField("zz", 10)));
+    assertTrue(f.mightContain(new StringField("ab", 10)));
+    assertTrue(f.mightContain(new StringField("zz", 10)));
+  }
+
+  /**
+   * A filter pushed down through a Filter ends up in the SeqScan below it
+   */
+  @Test public void pushDown() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null,
+        null);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, table.getId(), "t");
+    Filter filter = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN,
+        new IntField(10)), scan);
+    RuntimeFilter rf = new RuntimeFilter(Arrays.asList(new IntField(5),
+        new IntField(6)));
+    assertTrue(RuntimeFilter.pushDown(filter, 0, rf));
+
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      int v = ((IntField) scan.next().getField(0)).getValue();
+      assertTrue(rf.mightContain(new IntField(v)));
+      n++;
+    }
+    assertTrue(n > 0);
+
+    RuntimeFilter.pushDown(filter, 0, null);
+    scan.rewind();
+    int all = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      all++;
+    }
+    scan.close();
+    assertEquals(2000, all);
+    assertFalse(RuntimeFilter.pushDown(TestUtil.createTupleList(1,
+        new int[] { 1 }), 0, rf));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Hash joins return the same result with runtime filters on their probe
+   * scans as a nested loops join does without them
+   */
+  @Test public void hashJoins() throws Exception {
+    HeapFile build = SystemTestUtil.createRandomHeapFile(2, 50, 1000, null,
+        null);
+    HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null,
+        null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    List<String> expected = collect(new Join(p,
+        new SeqScan(tid, build.getId(), "b"),
+        new SeqScan(tid, probe.getId(), "p")));
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, collect(new HashEquiJoin(p,
+        new SeqScan(tid, build.getId(), "b"),
+        new SeqScan(tid, probe.getId(), "p"))));
+    assertEquals(expected, collect(new ParallelHashEquiJoin(p,
+        new SeqScan(tid, build.getId(), "b"),
+        new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+            new IntField(0)), new SeqScan(tid, probe.getId(), "p")))));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RuntimeFilterTest.class);
+  }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortOrderTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] {
+            Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+    private static Tuple tuple(int a, String b, int c) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        t.setField(1, new StringField(b, Type.STRING_LEN));
+        t.setField(2, new IntField(c));
+        return t;
+    }
+
+    private static final int[] INTS = { Integer.MIN_VALUE, -65536, -256, -1,
+            0, 1, 255, 256, 65535, Integer.MAX_VALUE };
+    private static final String[] STRINGS = { "", "\u0000", "\u0000\u0000",
+            "\u0000a", "a", "a\u0000", "a\u0000b", "ab", "b", "ÿ",
+            "Ā", "￿", "abc" };
+
+    private static ArrayList<Tuple> tuples(Random r, int n) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            result.add(tuple(INTS[r.nextInt(INTS.length)],
+                    STRINGS[r.nextInt(STRINGS.length)],
+                    INTS[r.nextInt(INTS.length)]));
+        return result;
+    }
+
+    private static int sign(int x) {
+        return x < 0 ? -1 : x > 0 ? 1 : 0;
+    }
+
+    /**
+     * Comparing normalized keys gives the same result as comparing the
+     * fields, for every combination of directions
+     */
+    @Test public void keysPreserveOrder() {
+        Random r = new Random(1);
+        ArrayList<Tuple> ts = tuples(r, 300);
+        int[][] fieldLists = { { 0 }, { 1 }, { 1, 0 }, { 0, 1, 2 }, { 2, 1 } };
+        for (int[] fields : fieldLists) {
+            for (int dirs = 0; dirs < (1 << fields.length); dirs++) {
+                boolean[] asc = new boolean[fields.length];
+                for (int i = 0; i < fields.length; i++)
+                    asc[i] = (dirs & (1 << i)) == 0;
+                SortOrder order = new SortOrder(fields, asc);
+                Comparator<Tuple> cmp = order.comparator();
+                for (int i = 0; i < ts.size(); i++) {
+                    Tuple a = ts.get(i);
+                    Tuple b = ts.get(r.nextInt(ts.size()));
+                    byte[] ka = order.encode(a);
+                    byte[] kb = order.encode(b);
+                    int expected = sign(cmp.compare(a, b));
+                    assertEquals(a + " / " + b, expected,
+                            sign(SortOrder.compareKeys(ka, kb, 0)));
+                    // the long prefixes never contradict the keys
+                    int p = sign(Long.compareUnsigned(SortOrder.prefix(ka),
+                            SortOrder.prefix(kb)));
+                    if (p != 0)
+                        assertEquals(expected, p);
+                }
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortOrderTest.class);
+    }
+}
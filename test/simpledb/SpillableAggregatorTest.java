@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SpillableAggregatorTest extends SimpleDbTestBase {
+
+    /** room for about 100 int groups */
+    private static final long SMALL_BUDGET = 100 * (SpillableAggregator.GROUP_OVERHEAD + 4);
+
+    /**
+     * Tuples (g, v) with g one of groups values, v random
+     */
+    private static OpIterator input(int n, int groups, long seed) {
+        return TestUtil.createTupleList(2, TestUtil.randomData(n, seed,
+                new int[] { 0, -500 }, new int[] { groups, 1000 }));
+    }
+
+    private static void merge(Aggregator agg, OpIterator in) throws Exception {
+        in.open();
+        while (in.hasNext())
+            agg.mergeTupleIntoGroup(in.next());
+        in.close();
+    }
+
+    /**
+     * Spilling groups to disk gives the same results as aggregating them
+     * all in memory, for every operator
+     */
+    @Test public void spillMatchesInMemory() throws Exception {
+        Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+        for (Aggregator.Op op : ops) {
+            IntegerAggregator expected = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+            merge(expected, input(20000, 5000, 1));
+
+            SpillableAggregator agg = new SpillableAggregator(0, Type.INT_TYPE,
+                    1, Type.INT_TYPE, op, SMALL_BUDGET);
+            merge(agg, input(20000, 5000, 1));
+            assertEquals(SpillableAggregator.PARTITIONS, agg.numSpilledPartitions());
+
+            assertEquals(TestUtil.sortedResults(expected.iterator()),
+                    TestUtil.sortedResults(agg.iterator()));
+            agg.close();
+        }
+    }
+
+    /**
+     * Groups that fit in the budget are never spilled
+     */
+    @Test public void noSpill() throws Exception {
+        SpillableAggregator agg = new SpillableAggregator(0, Type.INT_TYPE, 1,
+                Type.INT_TYPE, Aggregator.Op.SUM, SMALL_BUDGET);
+        merge(agg, input(5000, 50, 2));
+        assertEquals(0, agg.numSpilledPartitions());
+        assertEquals(50, TestUtil.sortedResults(agg.iterator()).size());
+        agg.close();
+    }
+
+    /**
+     * String groups and values are written to and read from partitions
+     */
+    @Test public void stringGroups() throws Exception {
+        Object[] data = new Object[2 * 3000];
+        Random r = new Random(3);
+        for (int i = 0; i < 3000; i++) {
+            data[2 * i] = "g" + r.nextInt(1000);
+            data[2 * i + 1] = "v" + i;
+        }
+        StringAggregator expected = new StringAggregator(0, Type.STRING_TYPE,
+                1, Aggregator.Op.COUNT);
+        merge(expected, TestUtil.createTupleList(2, data));
+        SpillableAggregator agg = new SpillableAggregator(0, Type.STRING_TYPE,
+                1, Type.STRING_TYPE, Aggregator.Op.COUNT, SMALL_BUDGET);
+        merge(agg, TestUtil.createTupleList(2, data));
+        assertTrue(agg.numSpilledPartitions() > 0);
+        assertEquals(TestUtil.sortedResults(expected.iterator()),
+                TestUtil.sortedResults(agg.iterator()));
+        agg.close();
+    }
+
+    /**
+     * The Aggregate operator spills with a small budget, and can be rewound
+     * and reopened
+     */
+    @Test public void aggregateOperator() throws Exception {
+        Aggregate inMemory = new Aggregate(input(20000, 3000, 4), 1, 0,
+                Aggregator.Op.SUM);
+        ArrayList<String> expected = TestUtil.sortedResults(inMemory);
+
+        Aggregate op = new Aggregate(input(20000, 3000, 4), 1, 0,
+                Aggregator.Op.SUM);
+        op.setMemoryBudget(SMALL_BUDGET);
+        op.open();
+        ArrayList<String> first = new ArrayList<String>();
+        while (op.hasNext())
+            first.add(op.next().toString());
+        op.rewind();
+        ArrayList<String> second = new ArrayList<String>();
+        while (op.hasNext())
+            second.add(op.next().toString());
+        op.close();
+        assertEquals(first, second);
+        Collections.sort(first);
+        assertEquals(expected, first);
+        assertEquals(expected, TestUtil.sortedResults(op));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillableAggregatorTest.class);
+    }
+}
@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.SUM,
+            Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.MIN,
+            Aggregator.Op.AVG };
+    private static final int[] AFIELDS = { 2, 2, 2, 2, 2 };
+
+    /** Rows (a, b, x) with few distinct a and b */
+    private static final int[] MIN = { 0, 0, -300 };
+    private static final int[] RANGE = { 20, 3, 1000 };
+
+    /**
+     * Groups of sorted input are returned in input order, with the same
+     * aggregates as a hash aggregation, and the operator can be rewound
+     */
+    @Test public void sortedInput() throws Exception {
+        int[] data = TestUtil.randomData(3000, 1, MIN, RANGE);
+        SortOrder order = new SortOrder(new int[] { 1, 0 },
+                new boolean[] { false, true });
+        int[] gfields = { 0, 1 };
+        ArrayList<String> expected = TestUtil.results(new Aggregate(
+                new OrderBy(order, TestUtil.createTupleList(3, data)),
+                AFIELDS, OPS, gfields));
+        assertEquals(60, expected.size());
+
+        StreamAggregate op = new StreamAggregate(new OrderBy(order,
+                TestUtil.createTupleList(3, data)), AFIELDS, OPS, gfields);
+        assertEquals(expected, TestUtil.results(op));
+        op.open();
+        op.next();
+        op.rewind();
+        assertEquals(expected, TestUtil.toStrings(TestUtil.drain(op)));
+        op.close();
+    }
+
+    /**
+     * The groups of a TopN are adjacent too, so only the groups of its
+     * first tuples are returned
+     */
+    @Test public void topNInput() throws Exception {
+        int[] data = TestUtil.randomData(3000, 4, MIN, RANGE);
+        SortOrder order = new SortOrder(new int[] { 0, 2 },
+                new boolean[] { true, false });
+        int[] gfields = { 0 };
+        OpIterator top = new TopN(order, 500, TestUtil.createTupleList(3, data));
+        assertTrue(StreamAggregate.isOrderedOn(top, gfields));
+        ArrayList<String> expected = TestUtil.results(new Aggregate(
+                new TopN(order, 500, TestUtil.createTupleList(3, data)),
+                AFIELDS, OPS, gfields));
+        assertEquals(expected, TestUtil.results(
+                new StreamAggregate(top, AFIELDS, OPS, gfields)));
+    }
+
+    /**
+     * COUNT_DISTINCT needs the values of every group, so it is rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void countDistinctRejected() {
+        int[] data = TestUtil.randomData(10, 5, MIN, RANGE);
+        new StreamAggregate(TestUtil.createTupleList(3, data),
+                new int[] { 2 }, new Aggregator.Op[] {
+                        Aggregator.Op.COUNT_DISTINCT }, new int[] { 0 });
+    }
+
+    /**
+     * Without grouping there is a single group, even for empty input
+     */
+    @Test public void noGrouping() throws Exception {
+        int[] data = TestUtil.randomData(500, 2, MIN, RANGE);
+        assertEquals(TestUtil.results(new Aggregate(
+                TestUtil.createTupleList(3, data), AFIELDS, OPS, new int[0])),
+                TestUtil.results(new StreamAggregate(
+                        TestUtil.createTupleList(3, data), AFIELDS, OPS,
+                        new int[0])));
+        assertEquals("[0\t0\t0\t0\t0]", TestUtil.results(new StreamAggregate(
+                TestUtil.createTupleList(3, new int[0]), AFIELDS, OPS,
+                new int[0])).toString());
+    }
+
+    /**
+     * Sorts on the group-by fields, in any order, and scans of BTreeFiles
+     * on their key are known to be ordered; other inputs are not
+     */
+    @Test public void orderedInputs() throws Exception {
+        OpIterator in = TestUtil.createTupleList(3,
+                TestUtil.randomData(10, 3, MIN, RANGE));
+        SortOrder order = new SortOrder(new int[] { 1, 0, 2 },
+                new boolean[] { true, false, true });
+        assertTrue(StreamAggregate.isOrderedOn(new OrderBy(order, in),
+                new int[] { 0, 1 }));
+        assertTrue(StreamAggregate.isOrderedOn(new TopN(order, 5, in),
+                new int[] { 1 }));
+        assertFalse(StreamAggregate.isOrderedOn(new OrderBy(order, in),
+                new int[] { 0 }));
+        assertFalse(StreamAggregate.isOrderedOn(new OrderBy(order, in),
+                new int[0]));
+        assertFalse(StreamAggregate.isOrderedOn(in, new int[] { 0 }));
+
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 1);
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(5));
+        assertTrue(StreamAggregate.isOrderedOn(new Filter(p,
+                new BTreeScan(tid, bf.getId(), "t", null)), new int[] { 1 }));
+        assertFalse(StreamAggregate.isOrderedOn(new BTreeScan(tid,
+                bf.getId(), "t", null), new int[] { 0 }));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Grouping a BTree table on its key is planned as a StreamAggregate
+     */
+    @Test public void planned() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 100,
+                null, tuples, 0);
+        bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(bf, "sa", "c0");
+        TableStats.setTableStats("sa", new TableStats(bf.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT sa.c0, COUNT(*), SUM(sa.c1) FROM sa GROUP BY sa.c0;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof StreamAggregate);
+
+        int[] count = new int[100];
+        int[] sum = new int[100];
+        for (ArrayList<Integer> t : tuples) {
+            count[t.get(0)]++;
+            sum[t.get(0)] += t.get(1);
+        }
+        int prev = -1, rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertTrue(key > prev);
+            assertEquals(count[key], ((IntField) t.getField(1)).getValue());
+            assertEquals(sum[key], ((IntField) t.getField(2)).getValue());
+            prev = key;
+            rows += count[key];
+        }
+        plan.close();
+        assertEquals(5000, rows);
+
+        // a filter on another field keeps the unrestricted index scan
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT sa.c0, COUNT(*) FROM sa WHERE sa.c1 > 5 GROUP BY sa.c0;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof StreamAggregate);
+
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT sa.c1, COUNT(*) FROM sa GROUP BY sa.c1;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(((Operator) plan).getChildren()[0] instanceof StreamAggregate);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StreamAggregateTest.class);
+    }
+}
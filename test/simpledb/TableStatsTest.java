@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -151,4 +153,299 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+	
+	/**
+	 * Verify that statistics computed from a sample of the pages are close
+	 * to those computed from the whole table
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats full = new TableStats(this.tableId, IO_COST, 0);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 20);
+		
+		Assert.assertEquals(f.numPages(), full.sampledPages());
+		Assert.assertEquals(20, sampled.sampledPages());
+		Assert.assertEquals(10200, full.estimateTableCardinality(1.0));
+		Assert.assertEquals(10200, sampled.estimateTableCardinality(1.0), 200);
+		Assert.assertEquals(full.estimateScanCost(), sampled.estimateScanCost(), 0.001);
+		
+		final Field halfMaxMin = new IntField(16);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(32, full.numDistinctValues(col), 1);
+			Assert.assertEquals(32, sampled.numDistinctValues(col), 1);
+			Assert.assertEquals(1.0/32.0, sampled.avgSelectivity(col, Predicate.Op.EQUALS), 0.002);
+			Assert.assertEquals(full.estimateSelectivity(col, Predicate.Op.LESS_THAN, halfMaxMin),
+					sampled.estimateSelectivity(col, Predicate.Op.LESS_THAN, halfMaxMin), 0.05);
+		}
+	}
+	
+	/**
+	 * Verify that sampled pages are distinct, sorted and in range
+	 */
+	@Test public void choosePagesTest() {
+		java.util.Random r = new java.util.Random(3);
+		Assert.assertArrayEquals(new int[] { 0, 1, 2 }, TableStats.choosePages(3, 10, r));
+		Assert.assertArrayEquals(new int[] { 0, 1, 2 }, TableStats.choosePages(3, 0, r));
+		int[] pages = TableStats.choosePages(1000, 50, r);
+		Assert.assertEquals(50, pages.length);
+		for (int i = 1; i < pages.length; i++)
+			Assert.assertTrue(pages[i - 1] < pages[i]);
+		Assert.assertTrue(pages[0] >= 0 && pages[49] < 1000);
+		
+		// a field whose sampled values are all different keeps growing
+		Assert.assertEquals(10000, TableStats.extrapolateDistinct(100, 100, 10000));
+		// as does one with few repeats
+		Assert.assertEquals(10000, TableStats.extrapolateDistinct(995, 1000, 10000), 2000);
+		// one whose values repeat a lot does not
+		Assert.assertEquals(5, TableStats.extrapolateDistinct(5, 1000, 100000), 1);
+	}
+	
+	/**
+	 * Verify that statistics saved to a file are loaded back unchanged, and
+	 * only while the table's file is unchanged
+	 */
+	@Test public void persistStatsTest() throws IOException {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		File statsFile = File.createTempFile("table", ".stats");
+		statsFile.deleteOnExit();
+		try {
+			TableStats.setTableStats(this.tableName, s);
+			TableStats.saveStatistics(statsFile);
+			TableStats.getStatsMap().remove(this.tableName);
+			
+			Assert.assertTrue(TableStats.loadStatistics(statsFile).contains(this.tableName));
+			TableStats loaded = TableStats.getTableStats(this.tableName);
+			Assert.assertNotSame(s, loaded);
+			Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+			Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+			for (int col = 0; col < 10; col++) {
+				Assert.assertEquals(s.numDistinctValues(col), loaded.numDistinctValues(col));
+				Field v = new IntField(col * 3);
+				Assert.assertEquals(s.estimateSelectivity(col, Predicate.Op.LESS_THAN, v),
+						loaded.estimateSelectivity(col, Predicate.Op.LESS_THAN, v), 0.0);
+			}
+			
+			// a file changed in place keeps its size, but not its
+			// modification time
+			TableStats.getStatsMap().remove(this.tableName);
+			File file = this.f.getFile();
+			Assert.assertTrue(file.setLastModified(file.lastModified() + 10000));
+			Assert.assertFalse(TableStats.loadStatistics(statsFile).contains(this.tableName));
+		} finally {
+			TableStats.getStatsMap().remove(this.tableName);
+		}
+	}
+	
+	/**
+	 * Verify that committed insertions and deletions update the statistics,
+	 * aborted ones do not, and that many modifications recompute them
+	 */
+	@Test public void incrementalStatsTest() throws Exception {
+		final Field five = new IntField(5);
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		double before = s.estimateSelectivity(0, Predicate.Op.EQUALS, five);
+		TableStats.setTableStats(this.tableName, s);
+		try {
+			BufferPool bp = Database.getBufferPool();
+			ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 100; i++) {
+				Tuple t = Utility.getHeapTuple(5, 10);
+				bp.insertTuple(tid, this.tableId, t);
+				inserted.add(t);
+			}
+			Assert.assertEquals(10200, s.totalTuples());
+			bp.transactionComplete(tid, true);
+			Assert.assertEquals(10300, s.totalTuples());
+			Assert.assertEquals(100, s.modifiedTuples());
+			Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, five) > before);
+			
+			tid = new TransactionId();
+			for (int i = 0; i < 10; i++)
+				bp.insertTuple(tid, this.tableId, Utility.getHeapTuple(7, 10));
+			bp.transactionComplete(tid, false);
+			Assert.assertEquals(10300, s.totalTuples());
+			
+			tid = new TransactionId();
+			for (Tuple t : inserted)
+				bp.deleteTuple(tid, t);
+			bp.transactionComplete(tid, true);
+			Assert.assertEquals(10200, s.totalTuples());
+			Assert.assertEquals(before, s.estimateSelectivity(0, Predicate.Op.EQUALS, five), 0.0001);
+			Assert.assertSame(s, TableStats.getTableStats(this.tableName));
+			
+			// past the threshold, the statistics are recomputed in the background
+			TableStats.setRefreshThreshold(0.01, 10);
+			tid = new TransactionId();
+			for (int i = 0; i < 150; i++)
+				bp.insertTuple(tid, this.tableId, Utility.getHeapTuple(40, 10));
+			bp.transactionComplete(tid, true);
+			TableStats.awaitRefresh();
+			TableStats fresh = TableStats.getTableStats(this.tableName);
+			Assert.assertNotSame(s, fresh);
+			Assert.assertEquals(0, fresh.modifiedTuples());
+			Assert.assertEquals(10350, fresh.totalTuples());
+			Assert.assertEquals(150.0 / 10350, fresh.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(32)), 0.001);
+		} finally {
+			TableStats.setRefreshThreshold(TableStats.DEFAULT_REFRESH_FRACTION,
+					TableStats.DEFAULT_REFRESH_MIN_TUPLES);
+			TableStats.getStatsMap().remove(this.tableName);
+		}
+	}
+	
+	/**
+	 * Verify that the committed changes to a sampled table count as much as
+	 * the tuples the sample stands for
+	 */
+	@Test public void incrementalSampledStatsTest() throws Exception {
+		final Field five = new IntField(5);
+		TableStats s = new TableStats(this.tableId, IO_COST, 20);
+		Assert.assertTrue(s.sampledPages() < s.leafPages());
+		TableStats.setTableStats(this.tableName, s);
+		try {
+			BufferPool bp = Database.getBufferPool();
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 1000; i++)
+				bp.insertTuple(tid, this.tableId, Utility.getHeapTuple(5, 10));
+			bp.transactionComplete(tid, true);
+			Assert.assertEquals(11200, s.totalTuples(), 200);
+			// about 10200 / 32 of the old tuples and all new ones hold 5
+			Assert.assertEquals((10200.0 / 32 + 1000) / 11200,
+					s.estimateSelectivity(0, Predicate.Op.EQUALS, five), 0.01);
+		} finally {
+			TableStats.getStatsMap().remove(this.tableName);
+		}
+	}
+	
+	/**
+	 * Verify that predicates on a hot value of a skewed column are estimated
+	 * (almost) exactly, and that those on the other values stay close
+	 */
+	@Test public void skewedSelectivityTest() throws IOException {
+		// three quarters of the tuples hold the value 42
+		ArrayList<ArrayList<Integer>> skewed = new ArrayList<ArrayList<Integer>>();
+		Random r = new Random(5);
+		int hot = 0, below = 0;
+		for (int i = 0; i < 20000; i++) {
+			int v = r.nextInt(4) == 0 ? r.nextInt(100000) : 42;
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			t.add(v);
+			skewed.add(t);
+			if (v == 42)
+				hot++;
+			if (v < 50000)
+				below++;
+		}
+		TableStats s = createStats(skewed);
+		
+		Assert.assertEquals(hot / 20000.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(42)), 0.01);
+		Assert.assertEquals(1 - hot / 20000.0, s.estimateSelectivity(0, Predicate.Op.NOT_EQUALS, new IntField(42)), 0.01);
+		Assert.assertEquals(1.0 / 20000, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7)), 1e-4);
+		Assert.assertEquals(below / 20000.0, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50000)), 0.01);
+		Assert.assertEquals(hot / 20000.0, s.estimateSelectivity(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(42)), 0.001);
+	}
+	
+	private static TableStats createStats(ArrayList<ArrayList<Integer>> tuples) throws IOException {
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), tuples.get(0).size());
+		HeapFile hf = Utility.openHeapFile(tuples.get(0).size(), temp);
+		return new TableStats(hf.getId(), IO_COST);
+	}
+	
+	private static ArrayList<ArrayList<Integer>> column(int[] values) {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		for (int v : values) {
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			t.add(v);
+			tuples.add(t);
+		}
+		return tuples;
+	}
+	
+	private static double joinSelectivity(int[] a, Predicate.Op op, int[] b) {
+		long n = 0;
+		for (int v : a)
+			for (int w : b)
+				if (new IntField(v).compare(op, new IntField(w)))
+					n++;
+		return (double) n / a.length / b.length;
+	}
+	
+	/**
+	 * Verify that join selectivities are estimated from the overlap of the
+	 * value distributions of the joined columns
+	 */
+	@Test public void estimateJoinSelectivityTest() throws IOException {
+		Random r = new Random(6);
+		// a: 0..4999 twice each; b: a hot value, and 2500..12499 once each
+		int[] a = new int[10000];
+		for (int i = 0; i < a.length; i++)
+			a[i] = i / 2;
+		int[] b = new int[15000];
+		for (int i = 0; i < b.length; i++)
+			b[i] = i < 5000 ? 7 : 2500 + r.nextInt(10000);
+		TableStats sa = createStats(column(a));
+		TableStats sb = createStats(column(b));
+		
+		double eq = joinSelectivity(a, Predicate.Op.EQUALS, b);
+		Assert.assertEquals(eq, sa.estimateJoinSelectivity(0, Predicate.Op.EQUALS, sb, 0), eq * 0.2);
+		Assert.assertEquals(eq, sb.estimateJoinSelectivity(0, Predicate.Op.EQUALS, sa, 0), eq * 0.2);
+		Assert.assertEquals(1 - eq, sa.estimateJoinSelectivity(0, Predicate.Op.NOT_EQUALS, sb, 0), 0.001);
+		for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+			Assert.assertEquals(joinSelectivity(a, op, b), sa.estimateJoinSelectivity(0, op, sb, 0), 0.02);
+			Assert.assertEquals(joinSelectivity(b, op, a), sb.estimateJoinSelectivity(0, op, sa, 0), 0.02);
+		}
+		
+		// disjoint columns do not join
+		int[] c = new int[1000];
+		for (int i = 0; i < c.length; i++)
+			c[i] = 100000 + i;
+		TableStats sc = createStats(column(c));
+		Assert.assertEquals(0.0, sa.estimateJoinSelectivity(0, Predicate.Op.EQUALS, sc, 0), 1e-9);
+		Assert.assertEquals(1.0, sa.estimateJoinSelectivity(0, Predicate.Op.LESS_THAN, sc, 0), 1e-9);
+	}
+	
+	/**
+	 * Verify that statistics are computed for a BTreeFile from its leaf
+	 * pages, together with the shape of its tree, and that scans of it are
+	 * costed from that shape
+	 */
+	@Test public void btreeStatsTest() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 1000, null, tuples, 0);
+		bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+		Database.getCatalog().addTable(bf, "btreeStats", "c0");
+		
+		TableStats full = new TableStats(bf.getId(), IO_COST, 0);
+		Assert.assertEquals(20000, full.totalTuples());
+		Assert.assertEquals(full.leafPages(), full.sampledPages());
+		Assert.assertTrue(full.indexHeight() >= 2);
+		Assert.assertTrue(full.leafPages() < bf.numPages());
+		Assert.assertTrue(full.clusteringFactor() >= 0.0 && full.clusteringFactor() <= 1.0);
+		Assert.assertEquals((full.indexHeight() - 1 + full.leafPages()) * IO_COST,
+				full.estimateScanCost(), 0.001);
+		Assert.assertEquals(full.estimateScanCost(), full.estimateIndexScanCost(1.0), 0.001);
+		Assert.assertEquals(full.indexHeight() * IO_COST, full.estimateIndexScanCost(0.0001), 0.001);
+		
+		int key = tuples.get(0).get(0);
+		int matches = 0;
+		java.util.HashSet<Integer> distinct = new java.util.HashSet<Integer>();
+		for (ArrayList<Integer> t : tuples) {
+			distinct.add(t.get(0));
+			if (t.get(0) == key)
+				matches++;
+		}
+		Assert.assertEquals(distinct.size(), full.numDistinctValues(0), distinct.size() * 0.05);
+		Assert.assertEquals(matches / 20000.0,
+				full.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(key)), 0.001);
+		Assert.assertEquals(0.5, full.estimateSelectivity(1, Predicate.Op.LESS_THAN,
+				new IntField(500)), 0.02);
+		
+		TableStats sampled = new TableStats(bf.getId(), IO_COST, 10);
+		Assert.assertEquals(10, sampled.sampledPages());
+		Assert.assertEquals(full.leafPages(), sampled.leafPages());
+		Assert.assertEquals(20000, sampled.totalTuples(), 1000);
+		Assert.assertEquals(0.5, sampled.estimateSelectivity(1, Predicate.Op.LESS_THAN,
+				new IntField(500)), 0.05);
+	}
 }
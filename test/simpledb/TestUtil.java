@@ -166,6 +166,78 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return tuple data for createTupleList with n rows of min.length
+     *   fields, drawn row by row from a Random seeded with seed. Field c
+     *   is uniform in [min[c], min[c] + range[c]), or the row number when
+     *   range[c] is 0.
+     */
+    public static int[] randomData(int n, long seed, int[] min, int[] range) {
+        Random r = new Random(seed);
+        int width = min.length;
+        int[] data = new int[width * n];
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < width; c++) {
+                data[width * i + c] = range[c] == 0 ? i
+                        : min[c] + r.nextInt(range[c]);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @return the remaining tuples of an open OpIterator, which is left
+     *   open
+     */
+    public static ArrayList<Tuple> drain(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        while (it.hasNext())
+            result.add(it.next());
+        return result;
+    }
+
+    /**
+     * @return all tuples of an OpIterator, which is opened and closed
+     */
+    public static ArrayList<Tuple> readAll(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        it.open();
+        ArrayList<Tuple> result = drain(it);
+        it.close();
+        return result;
+    }
+
+    /**
+     * @return the string forms of tuples, in the same order
+     */
+    public static ArrayList<String> toStrings(List<Tuple> tuples) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (Tuple t : tuples)
+            result.add(t.toString());
+        return result;
+    }
+
+    /**
+     * @return the string forms of all tuples of an OpIterator, in the
+     *   order it returns them
+     */
+    public static ArrayList<String> results(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        return toStrings(readAll(it));
+    }
+
+    /**
+     * @return the string forms of all tuples of an OpIterator, sorted, for
+     *   comparing operators that return groups in no particular order
+     */
+    public static ArrayList<String> sortedResults(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        ArrayList<String> result = results(it);
+        Collections.sort(result);
+        return result;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+    /** Rows (v, i) for i = 0..n-1 and v random in [0, range) */
+    private static int[] randomData(int n, int range, long seed) {
+        return TestUtil.randomData(n, seed, new int[] { 0, 0 },
+                new int[] { range, 0 });
+    }
+
+    /**
+     * TopN returns the same tuples, in the same order, as the first n
+     * tuples of a full (stable) sort
+     */
+    @Test public void matchesOrderBy() throws Exception {
+        int[] data = randomData(3000, 100, 1);
+        ArrayList<String> sorted = TestUtil.results(
+                new OrderBy(0, true, TestUtil.createTupleList(2, data)));
+        ArrayList<String> sortedDesc = TestUtil.results(
+                new OrderBy(0, false, TestUtil.createTupleList(2, data)));
+
+        for (int n : new int[] { 0, 1, 10, 100, 3000, 5000 }) {
+            TopN t = new TopN(0, true, n, TestUtil.createTupleList(2, data));
+            t.open();
+            assertEquals(sorted.subList(0, Math.min(n, 3000)),
+                    TestUtil.toStrings(TestUtil.drain(t)));
+            t.rewind();
+            assertEquals(Math.min(n, 3000), TestUtil.drain(t).size());
+            t.close();
+
+            t = new TopN(0, false, n, TestUtil.createTupleList(2, data));
+            assertEquals(sortedDesc.subList(0, Math.min(n, 3000)),
+                    TestUtil.results(t));
+        }
+    }
+
+    /**
+     * Limit returns the first n tuples of its child
+     */
+    @Test public void limit() throws Exception {
+        int[] data = randomData(50, 100, 2);
+        ArrayList<String> expected = TestUtil.results(
+                TestUtil.createTupleList(2, data));
+        Limit l = new Limit(20, TestUtil.createTupleList(2, data));
+        l.open();
+        assertEquals(expected.subList(0, 20),
+                TestUtil.toStrings(TestUtil.drain(l)));
+        l.rewind();
+        assertEquals(expected.subList(0, 20),
+                TestUtil.toStrings(TestUtil.drain(l)));
+        l.close();
+    }
+
+    /**
+     * LIMIT clauses are split off statements before they are parsed, and
+     * planned as TopN below ORDER BY
+     */
+    @Test public void parseLimit() throws Exception {
+        assertEquals(10, Parser.limitOf("SELECT * FROM t ORDER BY t.a LIMIT 10;"));
+        assertEquals(5, Parser.limitOf("select * from t limit 5"));
+        assertEquals(LogicalPlan.NO_LIMIT, Parser.limitOf("SELECT * FROM t;"));
+        assertEquals("SELECT * FROM t ORDER BY t.a;",
+                Parser.stripLimit("SELECT * FROM t ORDER BY t.a LIMIT 10 ;"));
+        // the LIMIT of a statement is found at its own end, not at the end
+        // of the input it is read from
+        InputStream in = new ByteArrayInputStream(
+                "SELECT * FROM t WHERE t.b = 'x;y' LIMIT 3;\nSELECT * FROM t LIMIT 9;"
+                        .getBytes("UTF-8"));
+        String first = Parser.readStatement(in);
+        assertEquals("SELECT * FROM t WHERE t.b = 'x;y' LIMIT 3;", first);
+        assertEquals(3, Parser.limitOf(first));
+        assertEquals(9, Parser.limitOf(Parser.readStatement(in)));
+        assertEquals("", Parser.readStatement(in));
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 1000, null, tuples, "c");
+        Database.getCatalog().addTable(f, "tn");
+        TableStats.setTableStats("tn", new TableStats(f.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT tn.c0 FROM tn ORDER BY tn.c0 DESC LIMIT 7;");
+        assertEquals(7, lp.getLimit());
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(plan.toString(), ((Operator) plan).getChildren()[0] instanceof TopN);
+
+        int max = Integer.MAX_VALUE;
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            int v = ((IntField) plan.next().getField(0)).getValue();
+            assertTrue(v <= max);
+            max = v;
+            count++;
+        }
+        plan.close();
+        assertEquals(7, count);
+        int larger = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) > max)
+                larger++;
+        assertTrue(larger < 7);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}